@@ -42,7 +42,8 @@ public interface AuthenticationService {
 	final String TOKEN_ALT = "a";
 
 	/**
-	 * Authenticate by token.
+	 * Authenticate by token. Recently used tokens are answered from a cache, with the user as it was when the token was read - a user changed (other than
+	 * by a launch on this server) or removed may be seen as it was for a short while (a minute).
 	 * 
 	 * @param token
 	 *            The authentication token.
@@ -54,6 +55,37 @@ public interface AuthenticationService {
 	 */
 	Optional<Authentication> authenticateByToken(Long token, Long alternate, HttpServletRequest req);
 
+	/**
+	 * Authenticate an LTI launch: find or create the user, update the user's LMS supplied information if it has changed, and create an authentication, all
+	 * as one transaction.
+	 * 
+	 * @param subscriptionId
+	 *            The subscription id.
+	 * @param lmsId
+	 *            The user's LMS id.
+	 * @param email
+	 *            The user's email from the LMS.
+	 * @param familyName
+	 *            The user's family name from the LMS.
+	 * @param givenName
+	 *            The user's given name from the LMS.
+	 * @param sisId
+	 *            The user's SIS id from the LMS.
+	 * @param ipAddress
+	 *            The ip address.
+	 * @param browserUserAgent
+	 *            the browser.
+	 * @param context
+	 *            The authentication context.
+	 * @param role
+	 *            The user's role in the context.
+	 * @param placement
+	 *            The placement id.
+	 * @return The authentication, or not if the launch could not be authenticated.
+	 */
+	Optional<Authentication> authenticateLaunch(Long subscriptionId, String lmsId, String email, String familyName, String givenName, String sisId,
+			String ipAddress, String browserUserAgent, String context, String role, String placement);
+
 	/**
 	 * Create an authentication for a user who has been vetted.
 	 * 
@@ -101,7 +133,8 @@ public interface AuthenticationService {
 	Optional<Long> getBroswerUserAgent(String browserUserAgent);
 
 	/**
-	 * Remove all authentication (and access records) from this subscription.
+	 * Remove all authentication (and access records) from this subscription. Other servers may accept the removed tokens from their caches for a short while
+	 * (a minute).
 	 * 
 	 * @param subscriptionId
 	 *            The subscription id.
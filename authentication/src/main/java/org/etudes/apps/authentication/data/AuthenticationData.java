@@ -37,7 +37,7 @@ public interface AuthenticationData {
 	Optional<Authentication> createAuthentication(User user, String ipAddress, Long browser, String context, String role, String placement, Date date);
 
 	/**
-	 * Create if needed a browser record for this browser user agent string.
+	 * Create if needed a browser record for this browser user agent string. A new record is committed on its own, even if made in a unit of work.
 	 * 
 	 * @param browserUserAgent
 	 *            The browser user agent string.
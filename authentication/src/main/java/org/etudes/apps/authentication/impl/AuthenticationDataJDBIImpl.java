@@ -26,6 +26,8 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 
@@ -33,7 +35,6 @@ import org.etudes.apps.authentication.data.AuthenticationData;
 import org.etudes.apps.authentication.model.Authentication;
 import org.etudes.apps.db.DB;
 import org.etudes.apps.db.DB.Holder;
-import org.etudes.apps.user.UserService;
 import org.etudes.apps.user.model.User;
 import org.skife.jdbi.v2.StatementContext;
 import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
@@ -45,45 +46,61 @@ import org.slf4j.LoggerFactory;
 
 public class AuthenticationDataJDBIImpl implements AuthenticationData {
 	/**
-	 * Map a result set to an Authentication object.
+	 * Map a result set to an Authentication object, with the user from the joined user columns.
 	 */
 	protected class AuthenticationMapper implements ResultSetMapper<Authentication> {
 		@Override
 		public Authentication map(int index, ResultSet r, StatementContext ctx) throws SQLException {
 			Authentication rv = new Authentication(r.getLong("id"), r.getLong("browser"), r.getString("context"), toDate(r.getLong("date")), r.getString("ip"),
-					r.getString("placement"), r.getString("role"), userOf(r.getLong("user")));
+					r.getString("placement"), r.getString("role"), userOf(r));
 			return rv;
 		}
 
-		protected User userOf(Long id) {
+		protected User userOf(ResultSet r) throws SQLException {
 
-			Optional<User> user = userService.getUser(id);
-			if (user.isPresent()) {
-				return user.get();
-			} else {
+			// the user is outer joined, so may be missing
+			long id = r.getLong("user_id");
+			if (id == 0L) {
 				// TODO: what to do if we don't find a user?
-				logger.warn("userOf: not found: " + id);
+				logger.warn("userOf: not found: " + r.getLong("user"));
 				return null;
 			}
+
+			return new User(id, r.getString("email"), r.getString("name_family"), r.getString("name_given"), r.getString("lms_id"), false, r.getString("sis_id"),
+					r.getLong("subscription"), false);
 		}
 	}
 
 	final static private Logger logger = LoggerFactory.getLogger(AuthenticationDataJDBIImpl.class);
 
-	protected DB db = null;
+	/** The most browser agents we keep in memory - there are usually a few hundred; past this, agents are read from the db. */
+	protected final static int MAX_CACHED_BROWSERS = 10000;
+
+	/** Select authentication fields and the authentication's user fields, in one pass - add the where clause. */
+	protected final static String SELECT_AUTHENTICATION = "select A.id, A.browser, A.context, A.date, A.ip, A.placement, A.role, A.user, " //
+			+ "U.id as user_id, U.email, U.name_family, U.name_given, U.lms_id, U.sis_id, U.subscription " //
+			+ "from authentication A left outer join user U on A.user = U.id ";
 
-	protected UserService userService;
+	/** Browser ids by agent, and agents by id, for every browser record we have read or created. */
+	protected final ConcurrentHashMap<String, Long> browserIds = new ConcurrentHashMap<>();
+	protected final ConcurrentHashMap<Long, String> browserAgents = new ConcurrentHashMap<>();
+
+	/** Browser records being created, by agent, so concurrent launches with a new agent wait for the one insert. */
+	protected final ConcurrentHashMap<String, CompletableFuture<Long>> browsersCreating = new ConcurrentHashMap<>();
+
+	protected DB db = null;
 
 	@Inject
-	public AuthenticationDataJDBIImpl(DB db, UserService userService) {
+	public AuthenticationDataJDBIImpl(DB db) {
 		this.db = db;
-		this.userService = userService;
 
 		logger.info("UserDataJDBIImpl() with DBI: " + this.db);
 
 		if (db.isAutoDdl()) {
 			createTables();
 		}
+
+		loadBrowsers();
 	}
 
 	@Override
@@ -103,7 +120,7 @@ public class AuthenticationDataJDBIImpl implements AuthenticationData {
 					.bind("user", user.get_id()) //
 					.executeAndReturnGeneratedKeys(LongColumnMapper.PRIMITIVE).first();
 
-			Authentication auth = h.createQuery("select id, browser, context, date, ip, placement, role, user from authentication where id = :id") //
+			Authentication auth = h.createQuery(SELECT_AUTHENTICATION + "where A.id = :id") //
 					.bind("id", id) //
 					.map(new AuthenticationMapper()).first();
 
@@ -115,37 +132,31 @@ public class AuthenticationDataJDBIImpl implements AuthenticationData {
 
 	@Override
 	public Optional<Long> createBrowser(String browserUserAgent) {
-		Holder<Long> rv = new Holder<>();
-
-		// first try a read
-		rv.value = readBrowser(browserUserAgent);
-		if (rv.value.isPresent())
-			return rv.value;
 
-		db.transact(h -> {
-			// to assure we have a browser record only for new agents, and in a race we don't get a failure, insert ignore first, then read if needed
+		// first try a read - almost always from memory
+		Optional<Long> rv = readBrowser(browserUserAgent);
+		if (rv.isPresent())
+			return rv;
 
-			Long id = null;
-			// insert ignore is not supported by H2 so is not testable - instead, just catch the exception when the browser record already exists
-			try {
-				id = h.createStatement("insert into browser (agent) values (:agent)") //
-						.bind("agent", browserUserAgent) //
-						.executeAndReturnGeneratedKeys(LongColumnMapper.PRIMITIVE).first();
-			} catch (UnableToExecuteStatementException e) {
-			}
+		// only one insert per agent - others wait for it
+		CompletableFuture<Long> mine = new CompletableFuture<>();
+		CompletableFuture<Long> creating = browsersCreating.putIfAbsent(browserUserAgent, mine);
+		if (creating != null)
+			return Optional.ofNullable(creating.join());
 
-			// if this did not create, we need to read
+		Long id = null;
+		try {
+			// created by the flight that just finished?
+			id = browserIds.get(browserUserAgent);
 			if (id == null) {
-				id = h.createQuery("select id from browser where agent = :agent") //
-						.bind("agent", browserUserAgent) //
-						.map(LongColumnMapper.PRIMITIVE) //
-						.first();
+				id = insertBrowser(browserUserAgent).orElse(null);
 			}
+		} finally {
+			mine.complete(id);
+			browsersCreating.remove(browserUserAgent, mine);
+		}
 
-			rv.value = Optional.ofNullable(id);
-		});
-
-		return rv.value;
+		return Optional.ofNullable(id);
 	}
 
 	@Override
@@ -172,8 +183,8 @@ public class AuthenticationDataJDBIImpl implements AuthenticationData {
 	public Optional<Authentication> readAuthentication(Long id) {
 		Holder<Authentication> rv = new Holder<>();
 
-		db.transact(h -> {
-			Authentication auth = h.createQuery("select id, browser, context, date, ip, placement, role, user from authentication where id = :id") //
+		db.read(h -> {
+			Authentication auth = h.createQuery(SELECT_AUTHENTICATION + "where A.id = :id") //
 					.bind("id", id).map(new AuthenticationMapper()) //
 					.first();
 
@@ -187,11 +198,8 @@ public class AuthenticationDataJDBIImpl implements AuthenticationData {
 	public List<Authentication> readAuthentications(Long subscriptionId) {
 		Holder<List<Authentication>> rv = new Holder<>();
 
-		db.transact(h -> {
-			List<Authentication> auths = h
-					.createQuery("select authentication.id, authentication.browser, authentication.context, authentication.date, authentication.ip, " //
-							+ "authentication.placement, authentication.role, authentication.user " //
-							+ "from authentication join user on authentication.user = user.id where user.subscription = :subscription") //
+		db.read(h -> {
+			List<Authentication> auths = h.createQuery(SELECT_AUTHENTICATION + "where U.subscription = :subscription") //
 					.bind("subscription", subscriptionId) //
 					.map(new AuthenticationMapper()) //
 					.list();
@@ -204,9 +212,13 @@ public class AuthenticationDataJDBIImpl implements AuthenticationData {
 
 	@Override
 	public Optional<String> readBrowser(Long id) {
+		String cached = browserAgents.get(id);
+		if (cached != null)
+			return Optional.of(cached);
+
 		Holder<String> rv = new Holder<>();
 
-		db.transact(h -> {
+		db.read(h -> {
 			String browser = h.createQuery("select agent from browser where id = :id") //
 					.bind("id", id) //
 					.map(StringColumnMapper.INSTANCE) //
@@ -215,14 +227,20 @@ public class AuthenticationDataJDBIImpl implements AuthenticationData {
 			rv.value = Optional.ofNullable(browser);
 		});
 
+		rv.value.ifPresent(agent -> rememberBrowser(id, agent));
+
 		return rv.value;
 	}
 
 	@Override
 	public Optional<Long> readBrowser(String browserUserAgent) {
+		Long cached = browserIds.get(browserUserAgent);
+		if (cached != null)
+			return Optional.of(cached);
+
 		Holder<Long> rv = new Holder<>();
 
-		db.transact(h -> {
+		db.read(h -> {
 			Long id = h.createQuery("select id from browser where agent = :agent") //
 					.bind("agent", browserUserAgent) //
 					.map(LongColumnMapper.PRIMITIVE) //
@@ -231,9 +249,111 @@ public class AuthenticationDataJDBIImpl implements AuthenticationData {
 			rv.value = Optional.ofNullable(id);
 		});
 
+		// the db may match the agent without case, so only the id is known to go with this agent
+		rv.value.ifPresent(id -> rememberBrowserId(browserUserAgent, id));
+
 		return rv.value;
 	}
 
+	/**
+	 * Insert a browser record for this agent, or find the one that is already there. In a unit of work, this is part of its transaction, and the id is
+	 * remembered only once the unit of work commits - a rolled back record must not be remembered. (Best to find the browser before the unit of work.)
+	 * 
+	 * @param browserUserAgent
+	 *            The browser user agent string.
+	 * @return The browser id, or not if the db failed.
+	 */
+	protected Optional<Long> insertBrowser(String browserUserAgent) {
+		Holder<Long> rv = new Holder<>();
+		Holder<Boolean> inserted = new Holder<>();
+
+		db.transact(h -> {
+			// to assure we have a browser record only for new agents, and in a race we don't get a failure, insert ignore first, then read if needed
+
+			Long id = null;
+			// insert ignore is not supported by H2 so is not testable - instead, just catch the exception when the browser record already exists
+			try {
+				id = h.createStatement("insert into browser (agent) values (:agent)") //
+						.bind("agent", browserUserAgent) //
+						.executeAndReturnGeneratedKeys(LongColumnMapper.PRIMITIVE).first();
+			} catch (UnableToExecuteStatementException e) {
+			}
+			inserted.value = Optional.of(id != null);
+
+			// if this did not create, we need to read
+			if (id == null) {
+				id = h.createQuery("select id from browser where agent = :agent") //
+						.bind("agent", browserUserAgent) //
+						.map(LongColumnMapper.PRIMITIVE) //
+						.first();
+			}
+
+			rv.value = Optional.ofNullable(id);
+		});
+
+		if (rv.value.isPresent()) {
+			Long id = rv.value.get();
+			boolean created = inserted.value.orElse(Boolean.FALSE);
+			db.afterCommit(() -> {
+				if (created) {
+					rememberBrowser(id, browserUserAgent);
+				} else {
+					rememberBrowserId(browserUserAgent, id);
+				}
+				return true;
+			});
+		}
+
+		return rv.value;
+	}
+
+	/**
+	 * Read the browser records into memory, so launches from browsers we know don't need the db to find the browser id. If the db is not available, we
+	 * fill in as we go instead.
+	 */
+	protected void loadBrowsers() {
+		db.read(h -> {
+			h.createQuery("select id, agent from browser order by id") //
+					.setMaxRows(MAX_CACHED_BROWSERS) //
+					.map((index, r, ctx) -> {
+						rememberBrowser(r.getLong("id"), r.getString("agent"));
+						return null;
+					}) //
+					.list();
+		});
+
+		logger.info("loadBrowsers: " + browserIds.size());
+	}
+
+	/**
+	 * Remember a browser record, both ways.
+	 * 
+	 * @param id
+	 *            The browser id.
+	 * @param agent
+	 *            The agent string, as stored in the record.
+	 */
+	protected void rememberBrowser(Long id, String agent) {
+		if (browserAgents.size() < MAX_CACHED_BROWSERS) {
+			browserAgents.putIfAbsent(id, agent);
+		}
+		rememberBrowserId(agent, id);
+	}
+
+	/**
+	 * Remember the browser id for an agent string - which might not be the agent string as stored in the record, only equal to it as the db compares.
+	 * 
+	 * @param agent
+	 *            The agent string.
+	 * @param id
+	 *            The browser id.
+	 */
+	protected void rememberBrowserId(String agent, Long id) {
+		if (browserIds.size() < MAX_CACHED_BROWSERS) {
+			browserIds.putIfAbsent(agent, id);
+		}
+	}
+
 	/**
 	 * Create our tables if needed.
 	 */
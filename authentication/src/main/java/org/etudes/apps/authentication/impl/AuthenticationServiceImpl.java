@@ -23,6 +23,7 @@ import java.net.UnknownHostException;
 import java.util.Date;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
@@ -30,36 +31,74 @@ import javax.servlet.http.HttpServletRequest;
 import org.etudes.apps.authentication.AuthenticationService;
 import org.etudes.apps.authentication.data.AuthenticationData;
 import org.etudes.apps.authentication.model.Authentication;
+import org.etudes.apps.db.DB;
+import org.etudes.apps.db.DB.Holder;
 import org.etudes.apps.user.UserService;
 import org.etudes.apps.user.model.User;
 import org.jvnet.hk2.annotations.Service;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 @Service
 public class AuthenticationServiceImpl implements AuthenticationService {
 	final static private Logger logger = LoggerFactory.getLogger(AuthenticationServiceImpl.class);
 
+	/** The max number of authentications to keep in the token cache. */
+	protected static long CACHE_MAX_SIZE = 10000;
+
+	/**
+	 * How long, in seconds, an authentication, and its user, stays in the token cache after being read. Removing authentications, or changing or removing
+	 * the user, clears them from this server's cache only (launch changes) or not at all (other changes), so servers may accept a removed token, or see the
+	 * old user, for up to this long.
+	 */
+	protected static long CACHE_TTL_SECONDS = 60;
+
 	/** The max size for the user-agent database field, in characters. */
 	protected static int MAX_USER_AGENT = 255;
 
 	protected static byte[] noAddress = { 0, 0, 0, 0 };
 
+	/** Authentications by token (id), with their users, recently read. */
+	protected Cache<Long, Authentication> authentications = CacheBuilder.newBuilder().maximumSize(CACHE_MAX_SIZE)
+			.expireAfterWrite(CACHE_TTL_SECONDS, TimeUnit.SECONDS).recordStats().build();
+
 	/** Data handler. */
 	protected AuthenticationData data;
 
+	/** For running a launch as a unit of work. */
+	protected DB db;
+
 	protected UserService userService;
 
 	/**
 	 * Create the authentication service
 	 * 
-	 * @param config
-	 *            The configuration
+	 * @param data
+	 *            The AuthenticationData object that interfaces with the persisted authentication data.
+	 * @param userService
+	 *            The UserService.
+	 * @param db
+	 *            The DB.
+	 * @param metrics
+	 *            The metric registry, for reporting cache statistics.
 	 */
 	@Inject
-	public AuthenticationServiceImpl(AuthenticationData data, UserService userService) {
+	public AuthenticationServiceImpl(AuthenticationData data, UserService userService, DB db, MetricRegistry metrics) {
 		this.data = data;
 		this.userService = userService;
+		this.db = db;
+
+		metrics.register(MetricRegistry.name(AuthenticationService.class, "cache", "hits"), (Gauge<Long>) () -> authentications.stats().hitCount());
+		metrics.register(MetricRegistry.name(AuthenticationService.class, "cache", "misses"), (Gauge<Long>) () -> authentications.stats().missCount());
+		metrics.register(MetricRegistry.name(AuthenticationService.class, "cache", "evictions"),
+				(Gauge<Long>) () -> authentications.stats().evictionCount());
+		metrics.register(MetricRegistry.name(AuthenticationService.class, "cache", "size"), (Gauge<Long>) () -> authentications.size());
+
 		logger.info("AuthenticationService");
 	}
 
@@ -75,6 +114,11 @@ public class AuthenticationServiceImpl implements AuthenticationService {
 			return Optional.empty();
 		}
 
+		// check the cache - no db access for a hit
+		Authentication cached = authentications.getIfPresent(token);
+		if (cached != null)
+			return Optional.of(copy(cached));
+
 		// find this authentication
 		Optional<Authentication> rv = data.readAuthentication(token);
 		if (!rv.isPresent()) {
@@ -82,9 +126,55 @@ public class AuthenticationServiceImpl implements AuthenticationService {
 			return Optional.empty();
 		}
 
+		authentications.put(token, copy(rv.get()));
+
 		return rv;
 	}
 
+	@Override
+	public Optional<Authentication> authenticateLaunch(Long subscriptionId, String lmsId, String email, String familyName, String givenName, String sisId,
+			String ipAddress, String browserUserAgent, String context, String role, String placement) {
+		Holder<Authentication> rv = new Holder<>();
+
+		// find the browser first, outside the unit of work, so a new browser's record stands however the launch ends
+		Optional<Long> browser = getBroswerUserAgent(browserUserAgent);
+		if (!browser.isPresent())
+			return Optional.empty();
+
+		Holder<Long> saved = new Holder<>();
+		boolean done = db.unitOfWork(() -> {
+			rv.value = Optional.empty();
+			saved.value = Optional.empty();
+
+			// get the user
+			Optional<User> user = userService.getUser(subscriptionId, lmsId);
+			if (!user.isPresent())
+				return;
+
+			// update user info, saving only if changed
+			User u = user.get();
+			u.setEmail(email);
+			u.setFamilyName(familyName);
+			u.setGivenName(givenName);
+			u.setSisId(sisId);
+			if (u.isChanged()) {
+				userService.saveUser(u);
+				saved.value = Optional.of(u.get_id());
+			}
+
+			// record the authentication
+			rv.value = data.createAuthentication(u, ipAddress, browser.get(), context, role, placement, new Date());
+		});
+
+		if (!done)
+			return Optional.empty();
+
+		// cached authentications for the user have the old user
+		saved.value.ifPresent(this::forgetUser);
+
+		return rv.value;
+	}
+
 	@Override
 	public Optional<Authentication> authenticateUser(User u, String ipAddress, String browserUserAgent, String context, String role, String placement) {
 
@@ -122,6 +212,9 @@ public class AuthenticationServiceImpl implements AuthenticationService {
 	@Override
 	public void removeSubscriptionAuthentications(Long subscriptionId) {
 		data.deleteAuthentications(subscriptionId);
+
+		// forget any cached authentications for users in the subscription
+		authentications.asMap().values().removeIf(a -> (a.getUser() != null) && subscriptionId.equals(a.getUser().getSubscriptionId()));
 	}
 
 	/**
@@ -151,6 +244,32 @@ public class AuthenticationServiceImpl implements AuthenticationService {
 		return rv;
 	}
 
+	/**
+	 * Copy an authentication, and its user, so callers never share the authentication we keep in the cache.
+	 * 
+	 * @param auth
+	 *            The authentication.
+	 * @return The copy.
+	 */
+	protected Authentication copy(Authentication auth) {
+		User u = auth.getUser();
+		User user = (u == null) ? null
+				: new User(u.get_id(), u.getEmail(), u.getFamilyName(), u.getGivenName(), u.getLmsId(), u.isLoginSet(), u.getSisId(), u.getSubscriptionId(),
+						u.isTokensSet());
+		return new Authentication(auth.get_id(), auth.getBrowser(), auth.getContext(), auth.getDate(), auth.getIpAddress(), auth.getPlacement(),
+				auth.getRole(), user);
+	}
+
+	/**
+	 * Forget any cached authentications for this user, so the next use reads the user again.
+	 * 
+	 * @param userId
+	 *            The user id.
+	 */
+	protected void forgetUser(Long userId) {
+		authentications.asMap().values().removeIf(a -> (a.getUser() != null) && userId.equals(a.getUser().get_id()));
+	}
+
 	/**
 	 * Testing may not provide a request object... safe way to get the remote IP
 	 * 
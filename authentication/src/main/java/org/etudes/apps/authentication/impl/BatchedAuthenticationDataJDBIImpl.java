@@ -0,0 +1,291 @@
+/**********************************************************************************
+ *
+ * Copyright (c) 2017 Etudes, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.etudes.apps.authentication.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import org.etudes.apps.authentication.AuthenticationService;
+import org.etudes.apps.authentication.model.Authentication;
+import org.etudes.apps.db.DB;
+import org.etudes.apps.db.IdBlocks;
+import org.etudes.apps.user.model.User;
+import org.skife.jdbi.v2.PreparedBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Authentication data, with new authentications written by group commit.
+ * 
+ * A new authentication takes its id from a block of ids reserved in the db, and is queued for the writer. The writer takes everything waiting, up to
+ * BATCH_SIZE, and writes it in one transaction with a JDBC batch; what arrives while it writes goes in the next batch. Each caller waits for the batch with
+ * its authentication to commit, and gets the authentication only once it is in the db, so any server can read it.
+ * 
+ * Made in a unit of work, the authentication gets its id and is written once the unit of work commits, so a unit of work that rolls back writes nothing,
+ * one that is retried writes only the authentication from the attempt that commits, and no connection is held while waiting for ids. The authentication
+ * has no id until then. If the write fails, the unit of work reports failure.
+ */
+public class BatchedAuthenticationDataJDBIImpl extends AuthenticationDataJDBIImpl {
+	final static private Logger logger = LoggerFactory.getLogger(BatchedAuthenticationDataJDBIImpl.class);
+
+	/** How long the writer waits for something to write before checking if it should stop, in milliseconds. */
+	protected final static long POLL_MILLIS = 100;
+
+	/** The most authentications written in a transaction. */
+	protected final static int BATCH_SIZE = 500;
+
+	/** The most authentications waiting to be written - when full (the db must be down), new authentications fail. */
+	protected final static int MAX_WAITING = 20000;
+
+	/** How long a caller waits for its authentication to be written, in milliseconds. */
+	protected final static long COMMIT_WAIT = 10000;
+
+	/** How long stop() waits for the writer to finish what is waiting, in milliseconds. */
+	protected final static long STOP_WAIT = 5000;
+
+	/** How many ids to reserve at a time. */
+	protected final static int ID_BLOCK_SIZE = 1000;
+
+	protected final static String INSERT_AUTHENTICATION = "insert into authentication (id, browser, context, date, ip, placement, role, user)" //
+			+ " values (:id, :browser, :context, :date, :ip, :placement, :role, :user)";
+
+	/** An authentication waiting to be written, and the future its caller waits on - completed with true when written, false if not. */
+	protected static class Pending {
+		final Authentication auth;
+		final CompletableFuture<Boolean> written = new CompletableFuture<>();
+
+		Pending(Authentication auth) {
+			this.auth = auth;
+		}
+	}
+
+	/** Ids for new authentications. */
+	protected final IdBlocks ids;
+
+	/** Authentications waiting to be written, in order. */
+	protected final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>(MAX_WAITING);
+
+	/** Runs the writer. */
+	protected final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "authentication-writer");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/** Count of authentications written, and those that failed to write. */
+	protected final Counter written;
+	protected final Counter failed;
+
+	@Inject
+	public BatchedAuthenticationDataJDBIImpl(DB db, MetricRegistry metrics) {
+		super(db);
+
+		ids = new IdBlocks(db, "authentication", ID_BLOCK_SIZE);
+
+		metrics.register(MetricRegistry.name(AuthenticationService.class, "writer", "waiting"), (Gauge<Integer>) () -> queue.size());
+		written = metrics.counter(MetricRegistry.name(AuthenticationService.class, "writer", "written"));
+		failed = metrics.counter(MetricRegistry.name(AuthenticationService.class, "writer", "failed"));
+
+		writer.execute(this::writeLoop);
+
+		logger.info("BatchedAuthenticationDataJDBIImpl");
+	}
+
+	@Override
+	public Optional<Authentication> createAuthentication(User user, String ipAddress, Long browser, String context, String role, String placement, Date date) {
+		// the user as it would be read back, joined with the authentication
+		User u = new User(user.get_id(), user.getEmail(), user.getFamilyName(), user.getGivenName(), user.getLmsId(), false, user.getSisId(),
+				user.getSubscriptionId(), false);
+		Authentication auth = new Authentication(null, browser, context, date, ipAddress, placement, role, u);
+
+		// in a unit of work, take the id and write once it commits - taking an id may wait for a block to be reserved, which needs another connection
+		if (db.inUnitOfWork()) {
+			db.afterCommit(() -> assignId(auth) && commit(auth));
+			return Optional.of(auth);
+		}
+
+		return (assignId(auth) && commit(auth)) ? Optional.of(auth) : Optional.empty();
+	}
+
+	/**
+	 * Give the authentication the next id.
+	 * 
+	 * @param auth
+	 *            The authentication.
+	 * @return true if it has its id, false if no id could be had.
+	 */
+	protected boolean assignId(Authentication auth) {
+		Optional<Long> id = ids.next();
+		if (!id.isPresent()) {
+			failed.inc();
+			return false;
+		}
+
+		auth.set_id(id.get());
+		return true;
+	}
+
+	/**
+	 * Queue the authentication for the writer, and wait for it to be written.
+	 * 
+	 * @param auth
+	 *            The authentication.
+	 * @return true if written, false if not.
+	 */
+	protected boolean commit(Authentication auth) {
+		Pending pending = new Pending(auth);
+		if (writer.isShutdown() || !queue.offer(pending)) {
+			logger.warn("commit: not taking: " + auth.get_id());
+			failed.inc();
+			return false;
+		}
+
+		try {
+			return pending.written.get(COMMIT_WAIT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException | TimeoutException e) {
+			// it may still be written, but the caller never gets its id
+			logger.warn("commit: " + auth.get_id() + " " + e.toString());
+			return false;
+		}
+	}
+
+	/**
+	 * Write what is waiting, a batch at a time, until stopped and nothing is waiting. Runs on the writer.
+	 */
+	protected void writeLoop() {
+		while (true) {
+			Pending first;
+			try {
+				first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				// stop() gave up waiting
+				return;
+			}
+
+			if (first == null) {
+				if (writer.isShutdown())
+					return;
+				continue;
+			}
+
+			List<Pending> batch = new ArrayList<>();
+			batch.add(first);
+			queue.drainTo(batch, BATCH_SIZE - 1);
+			writeBatch(batch);
+		}
+	}
+
+	/**
+	 * Write a batch, and tell the callers how it went. If the db won't take the batch while up, the authentications are written one at a time.
+	 * 
+	 * @param batch
+	 *            The waiting authentications.
+	 */
+	protected void writeBatch(List<Pending> batch) {
+		List<Authentication> auths = new ArrayList<>();
+		for (Pending p : batch) {
+			auths.add(p.auth);
+		}
+
+		if (write(auths)) {
+			batch.forEach(p -> p.written.complete(Boolean.TRUE));
+			return;
+		}
+
+		// something in the batch the db won't take - write them one at a time
+		for (Pending p : batch) {
+			boolean done = db.isUp() && write(Collections.singletonList(p.auth));
+			if (!done) {
+				logger.warn("writeBatch: failed: " + p.auth.get_id());
+				failed.inc();
+			}
+			p.written.complete(done);
+		}
+	}
+
+	/**
+	 * Stop taking authentications, and let the writer finish those waiting. Any still waiting then fail.
+	 */
+	@PreDestroy
+	public void stop() {
+		writer.shutdown();
+		try {
+			if (!writer.awaitTermination(STOP_WAIT, TimeUnit.MILLISECONDS)) {
+				writer.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		for (Pending p = queue.poll(); p != null; p = queue.poll()) {
+			p.written.complete(Boolean.FALSE);
+		}
+	}
+
+	/**
+	 * Write these authentications, in one transaction. Called on the writer, never in a unit of work.
+	 * 
+	 * @param auths
+	 *            The authentications.
+	 * @return true if written, false if not.
+	 */
+	protected boolean write(List<Authentication> auths) {
+		boolean rv = db.transact(h -> {
+			PreparedBatch batch = h.prepareBatch(INSERT_AUTHENTICATION);
+			for (Authentication a : auths) {
+				batch.add() //
+						.bind("id", a.get_id()) //
+						.bind("browser", a.getBrowser()) //
+						.bind("context", a.getContext()) //
+						.bind("date", a.getDate().getTime()) //
+						.bind("ip", a.getIpAddress()) //
+						.bind("placement", a.getPlacement()) //
+						.bind("role", a.getRole()) //
+						.bind("user", a.getUser().get_id());
+			}
+			batch.execute();
+		});
+
+		if (rv) {
+			written.inc(auths.size());
+		}
+
+		return rv;
+	}
+}
@@ -18,20 +18,24 @@
 
 package org.etudes.apps.authentication;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 import org.assertj.core.api.Assertions;
 import org.etudes.apps.authentication.data.AuthenticationData;
 import org.etudes.apps.authentication.impl.AuthenticationDataJDBIImpl;
 import org.etudes.apps.authentication.model.Authentication;
 import org.etudes.apps.db.DB;
-import org.etudes.apps.user.UserService;
+import org.etudes.apps.db.DB.Holder;
+import org.etudes.apps.user.data.UserData;
+import org.etudes.apps.user.impl.UserDataJDBIImpl;
 import org.etudes.apps.user.model.User;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
-import org.mockito.Mockito;
 
 import com.codahale.metrics.MetricRegistry;
 
@@ -48,9 +52,9 @@ public class AuthenticationDataJDBITest {
 	// create the DBI to test
 	private static AuthenticationData data = null;
 
-	private static User USER_1 = new User(1l, "email", "family", "given", "lms-1", false, "sis", 10l, false);
+	private static DB db = null;
 
-	private static final UserService userService = Mockito.mock(UserService.class);
+	private static User USER_1 = null;
 
 	@Before
 	public void setUp() throws Exception {
@@ -63,11 +67,18 @@ public class AuthenticationDataJDBITest {
 
 		Environment environment = new Environment("test-env", Jackson.newObjectMapper(), null, new MetricRegistry(), null);
 
-		DB db = new DB(new DBIFactory().build(environment, database, "db"), true);
+		db = new DB(new DBIFactory().build(environment, database, "db"), true);
 
-		Mockito.when(userService.getUser(1L)).thenReturn(Optional.of(USER_1));
+		// the user tables, and a user, for the authentications to join with
+		UserData userData = new UserDataJDBIImpl(db);
+		USER_1 = userData.readCreateUser(10L, "lms-1").get();
+		USER_1.setEmail("email");
+		USER_1.setFamilyName("family");
+		USER_1.setGivenName("given");
+		USER_1.setSisId("sis");
+		userData.updateUser(USER_1);
 
-		data = new AuthenticationDataJDBIImpl(db, userService);
+		data = new AuthenticationDataJDBIImpl(db);
 	}
 
 	/**
@@ -75,7 +86,7 @@ public class AuthenticationDataJDBITest {
 	 */
 	@After
 	public void tearDown() {
-
+		db.stop();
 	}
 
 	/**
@@ -119,5 +130,67 @@ public class AuthenticationDataJDBITest {
 		authFound = data.readAuthentication(auth.get().get_id());
 		Assertions.assertThat(authFound.isPresent()).isEqualTo(true);
 		Assertions.assertThat(authFound.get()).isEqualTo(auth.get());
+
+		// find the authentications for the user's subscription, with the user
+		List<Authentication> auths = data.readAuthentications(10L);
+		Assertions.assertThat(auths).contains(auth.get());
+		Assertions.assertThat(auths).allMatch(a -> USER_1.equals(a.getUser()));
+	}
+
+	/**
+	 * Test browser records, which are kept in memory, both ways.
+	 */
+	@Test
+	public void testBrowsers() {
+
+		// the same agent gets the same browser
+		Optional<Long> browser = data.createBrowser("junit/browsers");
+		Assertions.assertThat(browser.isPresent()).isTrue();
+		Assertions.assertThat(data.createBrowser("junit/browsers")).isEqualTo(browser);
+		Assertions.assertThat(data.readBrowser("junit/browsers")).isEqualTo(browser);
+
+		// a new data object starts knowing the browsers already recorded
+		AuthenticationData other = new AuthenticationDataJDBIImpl(db);
+		Assertions.assertThat(other.readBrowser("junit/browsers")).isEqualTo(browser);
+		Assertions.assertThat(other.readBrowser(browser.get())).isEqualTo(Optional.of("junit/browsers"));
+		Assertions.assertThat(other.createBrowser("junit/browsers")).isEqualTo(browser);
+
+		// a new agent, created by many at once, gets one browser
+		List<CompletableFuture<Optional<Long>>> creates = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			creates.add(CompletableFuture.supplyAsync(() -> data.createBrowser("junit/concurrent")));
+		}
+		Optional<Long> concurrent = creates.get(0).join();
+		Assertions.assertThat(concurrent.isPresent()).isTrue();
+		Assertions.assertThat(concurrent).isNotEqualTo(browser);
+		creates.forEach(c -> Assertions.assertThat(c.join()).isEqualTo(concurrent));
+		Assertions.assertThat(other.createBrowser("junit/concurrent")).isEqualTo(concurrent);
+
+		// created in a unit of work that rolls back, is neither recorded nor remembered
+		boolean done = db.unitOfWork(() -> {
+			Assertions.assertThat(data.createBrowser("junit/rollback").isPresent()).isTrue();
+			throw new IllegalStateException("rollback");
+		});
+		Assertions.assertThat(done).isFalse();
+		Assertions.assertThat(data.readBrowser("junit/rollback").isPresent()).isFalse();
+		Assertions.assertThat(new AuthenticationDataJDBIImpl(db).readBrowser("junit/rollback").isPresent()).isFalse();
+
+		// and in one that commits, is both
+		Holder<Long> committed = new Holder<>();
+		done = db.unitOfWork(() -> {
+			committed.value = data.createBrowser("junit/commit");
+		});
+		Assertions.assertThat(done).isTrue();
+		Assertions.assertThat(committed.value.isPresent()).isTrue();
+		Assertions.assertThat(data.readBrowser(committed.value.get())).isEqualTo(Optional.of("junit/commit"));
+		Assertions.assertThat(new AuthenticationDataJDBIImpl(db).readBrowser("junit/commit")).isEqualTo(committed.value);
+
+		// an independent transaction is refused in a unit of work
+		Holder<Boolean> independent = new Holder<>();
+		db.unitOfWork(() -> {
+			independent.value = Optional.of(db.transactIndependently(h -> {
+			}));
+		});
+		Assertions.assertThat(independent.value).isEqualTo(Optional.of(Boolean.FALSE));
 	}
 }
@@ -52,13 +52,17 @@ import org.etudes.apps.authentication.AuthenticationService;
 import org.etudes.apps.authentication.data.AuthenticationData;
 import org.etudes.apps.authentication.impl.AuthenticationServiceImpl;
 import org.etudes.apps.authentication.model.Authentication;
+import org.etudes.apps.db.DB;
 import org.etudes.apps.user.UserService;
 import org.etudes.apps.user.model.User;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.InOrder;
 import org.mockito.Mockito;
 
+import com.codahale.metrics.MetricRegistry;
+
 /**
  * Test the AuthenticationService impl
  * 
@@ -436,8 +440,11 @@ public class AuthenticationServiceTest {
 
 	private static final UserService userService = Mockito.mock(UserService.class);
 
-	// create the service to test
-	private static final AuthenticationService authenticationService = new AuthenticationServiceImpl(authenticationData, userService);
+	// mock the db, running units of work directly
+	private static final DB db = Mockito.mock(DB.class);
+
+	// the service to test - new for each test, so each starts with an empty cache
+	private AuthenticationService authenticationService = null;
 
 	private static Authentication AUTH_1 = new Authentication(1l, 101L, "context", parse("2016-03-10T18:30:00.000-0000"), "127.0.0.1", "placement", "role",
 			new User(1l, "email", "family", "given", "lms-1", false, "sis", 2L, false));
@@ -453,6 +460,7 @@ public class AuthenticationServiceTest {
 	 */
 	@Before
 	public void setup() {
+		authenticationService = new AuthenticationServiceImpl(authenticationData, userService, db, new MetricRegistry());
 
 		Mockito.when(authenticationData.readAuthentication(1L)).thenReturn(Optional.of(AUTH_1));
 		Mockito.when(authenticationData.readAuthentication(2L)).thenReturn(Optional.of(AUTH_2));
@@ -464,6 +472,16 @@ public class AuthenticationServiceTest {
 				.thenReturn(Optional.of(new Authentication(4l, 102L, "ctx", parse("2016-03-10T18:30:00.000-0000"), "127.0.0.1", "pl", "rl", USER)));
 
 		Mockito.when(authenticationData.createBrowser("junit/test")).thenReturn(Optional.of(102L));
+
+		// as read, with changes tracked
+		USER.clearChanged();
+		Mockito.when(userService.getUser(200L, "lms-4")).thenReturn(Optional.of(USER));
+		Mockito.when(userService.getUser(1L)).thenReturn(Optional.of(AUTH_2.getUser()));
+
+		Mockito.when(db.unitOfWork(Mockito.any(Runnable.class))).thenAnswer(i -> {
+			((Runnable) i.getArguments()[0]).run();
+			return true;
+		});
 		Mockito.when(authenticationData.readBrowser(102L)).thenReturn(Optional.of("junit/test"));
 	}
 
@@ -474,6 +492,8 @@ public class AuthenticationServiceTest {
 	public void tearDown() {
 
 		Mockito.reset(authenticationData);
+		Mockito.reset(userService);
+		Mockito.reset(db);
 	}
 
 	/**
@@ -507,4 +527,116 @@ public class AuthenticationServiceTest {
 		Assertions.assertThat(auth.get().getRole()).isEqualTo("rl");
 		Assertions.assertThat(auth.get().get_id()).isEqualTo(4L);
 	}
+
+	/**
+	 * Test that a launch finds the browser before starting its unit of work, and does not start one if it can't
+	 */
+	@Test
+	public void testLaunchBrowserFirst() {
+		Optional<Authentication> auth = authenticationService.authenticateLaunch(200L, "lms-4", "email", "family", "given", "sis", "127.0.0.1", "junit/test",
+				"ctx", "pl", "rl");
+		Assertions.assertThat(auth.isPresent()).isTrue();
+		Assertions.assertThat(auth.get().get_id()).isEqualTo(4L);
+
+		InOrder order = Mockito.inOrder(authenticationData, db);
+		order.verify(authenticationData).createBrowser("junit/test");
+		order.verify(db).unitOfWork(Mockito.any(Runnable.class));
+		order.verify(authenticationData).createAuthentication(Mockito.eq(USER), Mockito.eq("127.0.0.1"), Mockito.eq(102L), Mockito.eq("ctx"),
+				Mockito.eq("pl"), Mockito.eq("rl"), Mockito.any(Date.class));
+
+		Mockito.when(authenticationData.createBrowser("junit/down")).thenReturn(Optional.empty());
+		Mockito.clearInvocations(db);
+		Assertions.assertThat(authenticationService.authenticateLaunch(200L, "lms-4", "email", "family", "given", "sis", "127.0.0.1", "junit/down", "ctx",
+				"pl", "rl")).isEmpty();
+		Mockito.verify(db, Mockito.never()).unitOfWork(Mockito.any(Runnable.class));
+	}
+
+	/**
+	 * Test that repeated token authentications are served from the cache, and that removing the subscription's authentications clears it.
+	 */
+	@Test
+	public void testCache() {
+
+		HttpServletRequest req_1 = new Req("127.0.0.1");
+
+		// the first read goes to the data, the rest come from the cache, with no db access for the user either
+		Assertions.assertThat(authenticationService.authenticateByToken(2L, null, req_1)).isEqualTo(Optional.of(AUTH_2));
+		Assertions.assertThat(authenticationService.authenticateByToken(2L, null, req_1)).isEqualTo(Optional.of(AUTH_2));
+		Assertions.assertThat(authenticationService.authenticateByToken(null, 2L, req_1)).isEqualTo(Optional.of(AUTH_2));
+		Mockito.verify(authenticationData, Mockito.times(1)).readAuthentication(2L);
+		Mockito.verify(userService, Mockito.never()).getUser(Mockito.anyLong());
+
+		// invalid tokens are not cached
+		Assertions.assertThat(authenticationService.authenticateByToken(0L, null, req_1)).isEqualTo(Optional.empty());
+		Assertions.assertThat(authenticationService.authenticateByToken(0L, null, req_1)).isEqualTo(Optional.empty());
+		Mockito.verify(authenticationData, Mockito.times(2)).readAuthentication(0L);
+
+		// callers don't share the cached authentication, or its user
+		Authentication mine = authenticationService.authenticateByToken(2L, null, req_1).get();
+		mine.setRole("changed");
+		mine.getUser().setEmail("changed");
+		Authentication again = authenticationService.authenticateByToken(2L, null, req_1).get();
+		Assertions.assertThat(again.getRole()).isEqualTo("role");
+		Assertions.assertThat(again.getUser().getEmail()).isEqualTo("email");
+		Mockito.verify(authenticationData, Mockito.times(1)).readAuthentication(2L);
+
+		// removing the subscription's authentications forgets the cached authentication
+		authenticationService.removeSubscriptionAuthentications(2L);
+		Assertions.assertThat(authenticationService.authenticateByToken(2L, null, req_1)).isEqualTo(Optional.of(AUTH_2));
+		Mockito.verify(authenticationData, Mockito.times(2)).readAuthentication(2L);
+		Assertions.assertThat(authenticationService.authenticateByToken(2L, null, req_1)).isEqualTo(Optional.of(AUTH_2));
+		Mockito.verify(authenticationData, Mockito.times(2)).readAuthentication(2L);
+	}
+
+	/**
+	 * Test that a launch that changes the user forgets the user's cached authentications.
+	 */
+	@Test
+	public void testCacheLaunchChange() {
+
+		HttpServletRequest req_1 = new Req("127.0.0.1");
+		Authentication auth = new Authentication(5l, 102L, "ctx", parse("2016-03-10T18:30:00.000-0000"), "127.0.0.1", "pl", "rl", USER);
+		Mockito.when(authenticationData.readAuthentication(5L)).thenReturn(Optional.of(auth));
+
+		authenticationService.authenticateByToken(5L, null, req_1);
+		authenticationService.authenticateByToken(5L, null, req_1);
+		Mockito.verify(authenticationData, Mockito.times(1)).readAuthentication(5L);
+
+		// a launch with no change keeps it
+		authenticationService.authenticateLaunch(200L, "lms-4", "email", "family", "given", "sis", "127.0.0.1", "junit/test", "ctx", "pl", "rl");
+		authenticationService.authenticateByToken(5L, null, req_1);
+		Mockito.verify(authenticationData, Mockito.times(1)).readAuthentication(5L);
+
+		// a launch that changes the user drops it
+		authenticationService.authenticateLaunch(200L, "lms-4", "new email", "family", "given", "sis", "127.0.0.1", "junit/test", "ctx", "pl", "rl");
+		USER.setEmail("email");
+		USER.clearChanged();
+		authenticationService.authenticateByToken(5L, null, req_1);
+		Mockito.verify(authenticationData, Mockito.times(2)).readAuthentication(5L);
+	}
+
+	/**
+	 * Test an LTI launch authentication, with the user saved only if the LMS information changed.
+	 */
+	@Test
+	public void testLaunch() {
+
+		// the LMS information matches the user
+		Optional<Authentication> auth = authenticationService.authenticateLaunch(200L, "lms-4", "email", "family", "given", "sis", "127.0.0.1", "junit/test",
+				"ctx", "pl", "rl");
+		Assertions.assertThat(auth.isPresent()).isTrue();
+		Assertions.assertThat(auth.get().get_id()).isEqualTo(4L);
+		Mockito.verify(userService, Mockito.never()).saveUser(Mockito.any(User.class));
+
+		// the LMS information has changed
+		auth = authenticationService.authenticateLaunch(200L, "lms-4", "email", "family", "new given", "sis", "127.0.0.1", "junit/test", "ctx", "pl", "rl");
+		Assertions.assertThat(auth.isPresent()).isTrue();
+		Mockito.verify(userService, Mockito.times(1)).saveUser(USER);
+		Assertions.assertThat(USER.getGivenName()).isEqualTo("new given");
+		USER.setGivenName("given");
+
+		// an unknown user
+		auth = authenticationService.authenticateLaunch(200L, "lms-5", "email", "family", "given", "sis", "127.0.0.1", "junit/test", "ctx", "pl", "rl");
+		Assertions.assertThat(auth.isPresent()).isFalse();
+	}
 }
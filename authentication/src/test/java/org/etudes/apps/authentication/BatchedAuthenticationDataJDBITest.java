@@ -0,0 +1,179 @@
+/**********************************************************************************
+ *
+ * Copyright (c) 2017 Etudes, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.etudes.apps.authentication;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.assertj.core.api.Assertions;
+import org.etudes.apps.authentication.impl.AuthenticationDataJDBIImpl;
+import org.etudes.apps.authentication.impl.BatchedAuthenticationDataJDBIImpl;
+import org.etudes.apps.authentication.model.Authentication;
+import org.etudes.apps.db.DB;
+import org.etudes.apps.db.DB.Holder;
+import org.etudes.apps.user.data.UserData;
+import org.etudes.apps.user.impl.UserDataJDBIImpl;
+import org.etudes.apps.user.model.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+import io.dropwizard.db.DataSourceFactory;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.jdbi.DBIFactory;
+import io.dropwizard.setup.Environment;
+
+/**
+ * Test the BatchedAuthenticationDataJDBI impl
+ */
+public class BatchedAuthenticationDataJDBITest {
+
+	private static BatchedAuthenticationDataJDBIImpl data = null;
+
+	private static DB db = null;
+
+	private static User USER_1 = null;
+
+	@Before
+	public void setUp() throws Exception {
+
+		DataSourceFactory database = new DataSourceFactory();
+		database.setDriverClass("org.h2.Driver");
+		database.setUrl("jdbc:h2:mem:batched");
+		database.setUser("u");
+		database.setPassword("p");
+
+		Environment environment = new Environment("test-env", Jackson.newObjectMapper(), null, new MetricRegistry(), null);
+
+		db = new DB(new DBIFactory().build(environment, database, "db"), true);
+
+		// the user tables, and a user, for the authentications to join with
+		UserData userData = new UserDataJDBIImpl(db);
+		USER_1 = userData.readCreateUser(10L, "lms-1").get();
+		USER_1.setEmail("email");
+		USER_1.setFamilyName("family");
+		USER_1.setGivenName("given");
+		USER_1.setSisId("sis");
+		userData.updateUser(USER_1);
+
+		data = new BatchedAuthenticationDataJDBIImpl(db, new MetricRegistry());
+	}
+
+	/**
+	 * Cleanup after the test.
+	 */
+	@After
+	public void tearDown() {
+		data.stop();
+		db.stop();
+	}
+
+	/**
+	 * Test that authentications are in the db when made, and are written as they would be by the unbatched impl
+	 */
+	@Test
+	public void test() {
+		Long browser = data.createBrowser("junit/batched").get();
+		Date date = new Date();
+
+		// make some authentications - ids are from a block, in order
+		Authentication first = data.createAuthentication(USER_1, "127.0.0.1", browser, "context", "role", "placement", date).get();
+		Authentication second = data.createAuthentication(USER_1, "127.0.0.2", browser, "context", "role", "placement", date).get();
+		Assertions.assertThat(second.get_id()).isEqualTo(first.get_id() + 1);
+
+		// already written, and read back from the db the same
+		AuthenticationDataJDBIImpl unbatched = new AuthenticationDataJDBIImpl(db);
+		Assertions.assertThat(unbatched.readAuthentication(first.get_id())).isEqualTo(Optional.of(first));
+		Assertions.assertThat(unbatched.readAuthentication(second.get_id())).isEqualTo(Optional.of(second));
+		Assertions.assertThat(data.readAuthentications(10L)).contains(first, second);
+
+		// another server takes ids from the next block
+		BatchedAuthenticationDataJDBIImpl other = new BatchedAuthenticationDataJDBIImpl(db, new MetricRegistry());
+		Authentication third = other.createAuthentication(USER_1, "127.0.0.3", browser, "context", "role", "placement", date).get();
+		Assertions.assertThat(third.get_id()).isGreaterThan(second.get_id());
+		Assertions.assertThat(unbatched.readAuthentication(third.get_id())).isEqualTo(Optional.of(third));
+		other.stop();
+
+		// once stopped, no more
+		Assertions.assertThat(other.createAuthentication(USER_1, "127.0.0.4", browser, "context", "role", "placement", date)).isEmpty();
+	}
+
+	/**
+	 * Test that in a unit of work, the authentication gets its id and is written only if the unit of work commits
+	 */
+	@Test
+	public void testUnitOfWork() {
+		Long browser = data.createBrowser("junit/batched").get();
+		Date date = new Date();
+
+		Holder<Authentication> made = new Holder<>();
+		boolean done = db.unitOfWork(() -> {
+			made.value = data.createAuthentication(USER_1, "127.0.0.1", browser, "context", "role", "placement", date);
+			Assertions.assertThat(made.value.get().get_id()).isNull();
+		});
+		Assertions.assertThat(done).isTrue();
+		Assertions.assertThat(made.value.get().get_id()).isNotNull();
+		Assertions.assertThat(data.readAuthentication(made.value.get().get_id())).isEqualTo(made.value);
+
+		Holder<Authentication> rolledBack = new Holder<>();
+		done = db.unitOfWork(() -> {
+			rolledBack.value = data.createAuthentication(USER_1, "127.0.0.99", browser, "context", "role", "placement", date);
+			throw new IllegalStateException("rollback");
+		});
+		Assertions.assertThat(done).isFalse();
+		Assertions.assertThat(rolledBack.value).isPresent();
+		Assertions.assertThat(rolledBack.value.get().get_id()).isNull();
+		Assertions.assertThat(data.readAuthentications(10L).stream().filter(a -> "127.0.0.99".equals(a.getIpAddress()))).isEmpty();
+	}
+
+	/**
+	 * Test many callers at once, past the first block of ids
+	 */
+	@Test
+	public void testConcurrent() throws Exception {
+		Long browser = data.createBrowser("junit/batched").get();
+		Date date = new Date();
+
+		ExecutorService callers = Executors.newFixedThreadPool(8);
+		List<Future<Optional<Authentication>>> futures = new ArrayList<>();
+		for (int i = 0; i < 1500; i++) {
+			futures.add(callers.submit(() -> data.createAuthentication(USER_1, "127.0.0.1", browser, "context", "role", "placement", date)));
+		}
+
+		Set<Long> ids = new HashSet<>();
+		for (Future<Optional<Authentication>> f : futures) {
+			ids.add(f.get().get().get_id());
+		}
+		callers.shutdown();
+
+		Assertions.assertThat(ids).hasSize(1500);
+		Set<Long> read = new HashSet<>();
+		data.readAuthentications(10L).forEach(a -> read.add(a.get_id()));
+		Assertions.assertThat(read).containsAll(ids);
+	}
+}
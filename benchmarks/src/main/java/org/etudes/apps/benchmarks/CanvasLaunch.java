@@ -0,0 +1,198 @@
+/**********************************************************************************
+ *
+ * Copyright (c) 2017 Etudes, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+package org.etudes.apps.benchmarks;
+
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import net.oauth.OAuth;
+import net.oauth.OAuthAccessor;
+import net.oauth.OAuthConsumer;
+import net.oauth.OAuthMessage;
+import net.oauth.signature.OAuthSignatureMethod;
+import net.oauth.signature.RSA_SHA1;
+
+/**
+ * CanvasLaunch makes the LTI launch a Canvas course sends us, signed, for the benchmarks.
+ */
+public class CanvasLaunch {
+
+	public final static String KEY = "1";
+
+	public final static String SECRET = "SECRET";
+
+	public final static String URL = "https://apps.etudes.org/api/lti/launch/301";
+
+	/**
+	 * @return An accessor for our consumer, with its HMAC keys prepared, as LTIConsumerService makes them.
+	 */
+	public static OAuthAccessor hmacAccessor() {
+		OAuthConsumer consumer = new OAuthConsumer("about:blank#OAuth+CallBack+NotUsed", KEY, SECRET, null);
+		OAuthSignatureMethod.prepareConsumer(consumer);
+		return new OAuthAccessor(consumer);
+	}
+
+	/**
+	 * @return A new 2048 bit RSA key pair.
+	 */
+	public static KeyPair rsaKeys() {
+		try {
+			KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+			generator.initialize(2048);
+			return generator.generateKeyPair();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param keys
+	 *            The consumer's keys.
+	 * @return An accessor that signs with the private key, as the consumer would.
+	 */
+	public static OAuthAccessor rsaSigningAccessor(KeyPair keys) {
+		OAuthConsumer consumer = new OAuthConsumer("about:blank", KEY, null, null);
+		consumer.setProperty(RSA_SHA1.PRIVATE_KEY, keys.getPrivate());
+		return new OAuthAccessor(consumer);
+	}
+
+	/**
+	 * @param keys
+	 *            The consumer's keys.
+	 * @return An accessor that verifies with the public key, configured as PEM as we would configure it.
+	 */
+	public static OAuthAccessor rsaVerifyingAccessor(KeyPair keys) {
+		String pem = "-----BEGIN PUBLIC KEY-----\n" + Base64.getMimeEncoder().encodeToString(keys.getPublic().getEncoded())
+				+ "\n-----END PUBLIC KEY-----\n";
+		OAuthConsumer consumer = new OAuthConsumer("about:blank", KEY, null, null);
+		consumer.setProperty(RSA_SHA1.PUBLIC_KEY, pem);
+		return new OAuthAccessor(consumer);
+	}
+
+	/**
+	 * @return The launch fields Canvas sends for an instructor launching from a course navigation link, before the oauth_ fields.
+	 */
+	public static List<OAuth.Parameter> fields() {
+		return OAuth.newList( //
+				"context_id", "4dde05e8ca1973bcca9bffc13e1548820eee93a3", //
+				"context_label", "HIST 101", //
+				"context_title", "History 101 - World Civilizations (Spring 2017)", //
+				"custom_canvas_api_domain", "etudes.instructure.com", //
+				"custom_canvas_course_id", "1298", //
+				"custom_canvas_enrollment_state", "active", //
+				"custom_canvas_user_id", "4721", //
+				"custom_canvas_user_login_id", "jsmith@example.edu", //
+				"custom_canvas_workflow_state", "available", //
+				"ext_roles",
+				"urn:lti:instrole:ims/lis/Instructor,urn:lti:role:ims/lis/Instructor,urn:lti:sysrole:ims/lis/User", //
+				"launch_presentation_document_target", "iframe", //
+				"launch_presentation_height", "400", //
+				"launch_presentation_locale", "en", //
+				"launch_presentation_return_url", "https://etudes.instructure.com/courses/1298/external_content/success/external_tool_redirect", //
+				"launch_presentation_width", "800", //
+				"lis_course_offering_sourcedid", "HIST-101-01-SP17", //
+				"lis_person_contact_email_primary", "jsmith@example.edu", //
+				"lis_person_name_family", "Smith", //
+				"lis_person_name_full", "Jane Smith", //
+				"lis_person_name_given", "Jane", //
+				"lis_person_sourcedid", "900123456", //
+				"lti_message_type", "basic-lti-launch-request", //
+				"lti_version", "LTI-1p0", //
+				"resource_link_id", "5b0f1e7b3e9f1d30d2b98c6b2b3f5c7e3f2a9c14", //
+				"resource_link_title", "Assessments", //
+				"roles", "Instructor", //
+				"tool_consumer_info_product_family_code", "canvas", //
+				"tool_consumer_info_version", "cloud", //
+				"tool_consumer_instance_contact_email", "notifications@instructure.com", //
+				"tool_consumer_instance_guid", "7db438071375c02373713c12c73869ff2f470b68.etudes.instructure.com", //
+				"tool_consumer_instance_name", "Etudes", //
+				"user_id", "535fa085f22b4655f48cd5a36a9215f64c062838", //
+				"user_image", "https://etudes.instructure.com/images/thumbnails/11546/6xo2fQE8ZWbvf0Q9UVZk0wK8ZlA3sFuIL7bUxk2Y");
+	}
+
+	/**
+	 * @return The launch body form encoded, as it is posted.
+	 */
+	public static String formBody(OAuthMessage message) throws IOException {
+		return OAuth.formEncode(message.getParameters());
+	}
+
+	/**
+	 * @param scheme
+	 *            The scheme the request arrives with (http behind a load balancer, or https).
+	 * @return A request for the launch URL, with no query string, as the servlet container would present the launch post - the load balancer's
+	 *         X-Forwarded-Proto header says https.
+	 */
+	public static HttpServletRequest request(String scheme) {
+		final String url = scheme + URL.substring(URL.indexOf(':'));
+		return new HttpServletRequestWrapper(mock(HttpServletRequest.class)) {
+			@Override
+			public String getHeader(String name) {
+				return "X-Forwarded-Proto".equalsIgnoreCase(name) ? "https" : null;
+			}
+
+			@Override
+			public Enumeration<String> getHeaders(String name) {
+				return Collections.emptyEnumeration();
+			}
+
+			@Override
+			public String getMethod() {
+				return "POST";
+			}
+
+			@Override
+			public String getQueryString() {
+				return null;
+			}
+
+			@Override
+			public StringBuffer getRequestURL() {
+				return new StringBuffer(url);
+			}
+		};
+	}
+
+	/**
+	 * Make the launch message, signed now with a new nonce.
+	 * 
+	 * @param accessor
+	 *            The accessor to sign with.
+	 * @param signatureMethod
+	 *            The signature method (i.e. HMAC-SHA1).
+	 * @return The signed message.
+	 */
+	public static OAuthMessage signed(OAuthAccessor accessor, String signatureMethod) throws Exception {
+		OAuthMessage message = new OAuthMessage("POST", URL, fields());
+		message.addParameter(OAuth.OAUTH_CALLBACK, "about:blank");
+		message.addParameter(OAuth.OAUTH_SIGNATURE_METHOD, signatureMethod);
+		message.addRequiredParameters(accessor);
+		return message;
+	}
+}
@@ -0,0 +1,94 @@
+/**********************************************************************************
+ *
+ * Copyright (c) 2017 Etudes, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+package org.etudes.apps.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.etudes.apps.lti.FormBody;
+import org.etudes.apps.lti.Launch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.oauth.OAuth;
+import net.oauth.OAuthAccessor;
+
+/**
+ * A full launch check, as LTI.postLaunch does it: decode the posted body, then validate the version, timestamp and signature. Nonces are not checked
+ * - the same launch is checked over and over.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LaunchBenchmark {
+
+	protected OAuthAccessor accessor;
+	protected byte[] body;
+	protected Launch launch;
+	protected HttpServletRequest request;
+
+	/** The scheme the launch arrives with - http is what we see behind the load balancer; unless we trust X-Forwarded-Proto it needs a second check. */
+	@Param({ "https", "http" })
+	protected String scheme;
+
+	@Param({ "false", "true" })
+	protected boolean trustForwardedProto;
+
+	@Setup
+	public void setUp() {
+		accessor = CanvasLaunch.hmacAccessor();
+		request = CanvasLaunch.request(scheme);
+		launch = new Launch(null, trustForwardedProto);
+	}
+
+	/**
+	 * Sign the launch again for each iteration, to keep the timestamp in the validator's window.
+	 */
+	@Setup(Level.Iteration)
+	public void sign() throws Exception {
+		body = CanvasLaunch.formBody(CanvasLaunch.signed(accessor, OAuth.HMAC_SHA1)).getBytes(StandardCharsets.UTF_8);
+
+		Optional<String> error = validSignature();
+		if (error.isPresent()) {
+			throw new IllegalStateException("launch did not validate: " + error.get());
+		}
+	}
+
+	@Benchmark
+	public Optional<String> validSignature() throws Exception {
+		FormBody form = FormBody.read(new ByteArrayInputStream(body), "UTF-8");
+		return launch.validSignature(request, accessor, form);
+	}
+}
@@ -0,0 +1,112 @@
+/**********************************************************************************
+ *
+ * Copyright (c) 2017 Etudes, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+package org.etudes.apps.benchmarks;
+
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.oauth.OAuth;
+import net.oauth.OAuthAccessor;
+import net.oauth.OAuthMessage;
+import net.oauth.signature.OAuthSignatureMethod;
+
+/**
+ * The pieces of OAuth signature checking done for every launch, on a Canvas launch.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SignatureBenchmark {
+
+	protected OAuthAccessor hmac;
+	protected OAuthMessage hmacSha1;
+	protected OAuthMessage hmacSha256;
+	protected OAuthMessage rsaSha1;
+	protected OAuthAccessor rsaVerifying;
+
+	/** A signature, and its base64 encoding. */
+	protected byte[] signature;
+	protected String signatureEncoded;
+
+	/** A launch value with plenty to percent encode. */
+	protected String value;
+
+	@Benchmark
+	public byte[] base64Decode() {
+		return OAuthSignatureMethod.decodeBase64(signatureEncoded);
+	}
+
+	@Benchmark
+	public String base64Encode() {
+		return OAuthSignatureMethod.base64Encode(signature);
+	}
+
+	@Benchmark
+	public String baseString() throws Exception {
+		return OAuthSignatureMethod.getBaseString(hmacSha1);
+	}
+
+	@Benchmark
+	public void hmacSha1() throws Exception {
+		OAuthSignatureMethod.newSigner(hmacSha1, hmac).validate(hmacSha1);
+	}
+
+	@Benchmark
+	public void hmacSha256() throws Exception {
+		OAuthSignatureMethod.newSigner(hmacSha256, hmac).validate(hmacSha256);
+	}
+
+	@Benchmark
+	public String percentEncode() {
+		return OAuth.percentEncode(value);
+	}
+
+	@Benchmark
+	public void rsaSha1() throws Exception {
+		OAuthSignatureMethod.newSigner(rsaSha1, rsaVerifying).validate(rsaSha1);
+	}
+
+	@Setup
+	public void setUp() throws Exception {
+		hmac = CanvasLaunch.hmacAccessor();
+		hmacSha1 = CanvasLaunch.signed(hmac, OAuth.HMAC_SHA1);
+		hmacSha256 = CanvasLaunch.signed(hmac, OAuth.HMAC_SHA256);
+
+		KeyPair keys = CanvasLaunch.rsaKeys();
+		rsaSha1 = CanvasLaunch.signed(CanvasLaunch.rsaSigningAccessor(keys), OAuth.RSA_SHA1);
+		rsaVerifying = CanvasLaunch.rsaVerifyingAccessor(keys);
+
+		signatureEncoded = hmacSha1.getSignature();
+		signature = OAuthSignatureMethod.decodeBase64(signatureEncoded);
+		value = hmacSha1.getParameter("ext_roles");
+	}
+}
@@ -18,22 +18,44 @@
 
 package org.etudes.apps.db;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
 
 import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.DefaultStatementBuilder;
 import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.StatementContext;
 import org.skife.jdbi.v2.exceptions.DBIException;
 import org.skife.jdbi.v2.exceptions.UnableToObtainConnectionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class DB {
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+import io.dropwizard.lifecycle.Managed;
+
+public class DB implements Managed {
 
 	/**
 	 * Represents an operation that accepts a single input argument and returns no result. Unlike most other functional interfaces, {@code Consumer} is expected
@@ -59,6 +81,33 @@ public class DB {
 		void accept(T t) throws DBIException;
 	}
 
+	/**
+	 * The state of the circuit breaker around opening handles: closed (db up, handles open normally), open (db down, fail fast), or halfOpen (one probe
+	 * in flight to see if the db is back).
+	 */
+	protected enum Breaker {
+		closed, halfOpen, open
+	}
+
+	/**
+	 * A job waiting for the database, with when it was queued.
+	 */
+	protected static class Deferred {
+		final Consumer<Handle> job;
+		final long queued = System.currentTimeMillis();
+
+		Deferred(Consumer<Handle> job) {
+			this.job = job;
+		}
+	}
+
+	/**
+	 * The outcome of one attempt at a transaction.
+	 */
+	protected enum Attempt {
+		fail, retry, success
+	}
+
 	/**
 	 * A way to hold and update a value that can be made final and used in a lambda.
 	 * 
@@ -68,11 +117,62 @@ public class DB {
 		public Optional<T> value = Optional.empty();
 	}
 
+	/**
+	 * A statement builder that sets the read query timeout on each statement.
+	 */
+	protected static class ReadStatementBuilder extends DefaultStatementBuilder {
+		@Override
+		public PreparedStatement create(Connection conn, String sql, StatementContext ctx) throws SQLException {
+			PreparedStatement rv = super.create(conn, sql, ctx);
+			rv.setQueryTimeout(READ_TIMEOUT_SECONDS);
+			return rv;
+		}
+	}
+
 	final static private Logger logger = LoggerFactory.getLogger(DB.class);
 
 	/** How many retries we attempt before giving up, in transact(), in case of db down or SQLException deadlock. */
 	protected final static int MAX_RETRIES = 5;
 
+	/** How many threads run transactAsync() jobs. */
+	protected final static int ASYNC_THREADS = 4;
+
+	/** The first retry delay, in milliseconds, doubling with each further retry. */
+	protected final static long RETRY_BASE_DELAY = 250;
+
+	/** The longest retry delay, in milliseconds. */
+	protected final static long RETRY_MAX_DELAY = 4000;
+
+	/** How many retries, across all transactions, we allow in each RETRY_BUDGET_WINDOW - once used up, transactions fail rather than retry. */
+	protected final static int RETRY_BUDGET = 100;
+
+	/** The retry budget window, in milliseconds. */
+	protected final static long RETRY_BUDGET_WINDOW = 10000;
+
+	/** How many failures in a row to open a handle trip the breaker open. */
+	protected final static int BREAKER_FAILURES = 3;
+
+	/** How long, in milliseconds, the breaker stays open before letting a probe through. */
+	protected final static long BREAKER_OPEN_TIME = 2000;
+
+	/** How often, in milliseconds, we check for deferred jobs to run. */
+	protected final static long DEFERRED_INTERVAL = 5000;
+
+	/** How many jobs may wait for the database - once full, new jobs are rejected. */
+	protected final static int MAX_DEFERRED_JOBS = 1000;
+
+	/** How long, in milliseconds, stop() waits for running jobs to finish. */
+	protected final static long STOP_WAIT = 5000;
+
+	/** How many attempts we make before giving up, in read(), in case of db down. */
+	protected final static int READ_MAX_RETRIES = 2;
+
+	/** How long, in milliseconds, read() waits before trying again when the db is down. */
+	protected final static long READ_RETRY_DELAY = 250;
+
+	/** How long, in seconds, a statement run from read() may take before it is cancelled. */
+	protected final static int READ_TIMEOUT_SECONDS = 10;
+
 	/**
 	 * Safe way to prepare a boolean for writing to the database (as a mysql tinyint 0/1).
 	 * 
@@ -160,19 +260,139 @@ public class DB {
 		return Optional.of(new Date(value));
 	}
 
+	/** Runs transactAsync() attempts, and schedules their retries. */
+	protected final ScheduledExecutorService asyncExecutor = Executors.newScheduledThreadPool(ASYNC_THREADS, r -> {
+		Thread t = new Thread(r, "db-async");
+		t.setDaemon(true);
+		return t;
+	});
+
 	/** The AutoDDL setting. */
 	protected final boolean autoDdl;
 
 	/** The wrapped DBI. */
 	protected final DBI dbi;
 
-	protected List<Consumer<Handle>> deferredJobs = Collections.synchronizedList(new ArrayList<>());
+	/** The circuit breaker state. */
+	protected final AtomicReference<Breaker> breaker = new AtomicReference<>(Breaker.closed);
+
+	/** Count of times the breaker closed. */
+	protected final Counter breakerClosed;
+
+	/** Count of times the breaker opened. */
+	protected final Counter breakerOpened;
+
+	/** When the breaker last opened. */
+	protected final AtomicLong breakerOpenedAt = new AtomicLong();
+
+	/** Failures in a row to open a handle, while the breaker is closed. */
+	protected final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+	/** Runs the deferred jobs, in order, in the background. */
+	protected final ScheduledExecutorService deferredExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "db-deferred");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/** Jobs waiting for the database. */
+	protected final BlockingQueue<Deferred> deferredJobs = new ArrayBlockingQueue<>(MAX_DEFERRED_JOBS);
+
+	/** Set while a drain of the deferred jobs, asked for by open(), is waiting or running. */
+	protected final AtomicBoolean drainRequested = new AtomicBoolean();
+
+	/** Count of jobs rejected because the deferred queue was full. */
+	protected final Counter deferredRejected;
 
-	protected Boolean status = Boolean.FALSE;
+	/** Statement builder for read(). */
+	protected final ReadStatementBuilder readStatementBuilder = new ReadStatementBuilder();
+
+	/** The handle of the unit of work the current thread is doing, if any. */
+	protected final ThreadLocal<Handle> unitOfWork = new ThreadLocal<>();
+
+	/** The jobs to run once the current thread's unit of work commits. */
+	protected final ThreadLocal<List<BooleanSupplier>> afterCommit = new ThreadLocal<>();
+
+	/** Retries taken in the current retry budget window. */
+	protected final AtomicInteger retriesInWindow = new AtomicInteger();
+
+	/** When the current retry budget window started. */
+	protected final AtomicLong retryWindowStart = new AtomicLong(System.currentTimeMillis());
 
 	public DB(DBI dbi, boolean autoDdl) {
+		this(dbi, autoDdl, new MetricRegistry());
+	}
+
+	public DB(DBI dbi, boolean autoDdl, MetricRegistry metrics) {
 		this.autoDdl = autoDdl;
 		this.dbi = dbi;
+
+		metrics.register(MetricRegistry.name(DB.class, "deferred", "depth"), (Gauge<Integer>) () -> deferredJobs.size());
+		metrics.register(MetricRegistry.name(DB.class, "deferred", "age"), (Gauge<Long>) () -> {
+			Deferred oldest = deferredJobs.peek();
+			return (oldest == null) ? 0L : System.currentTimeMillis() - oldest.queued;
+		});
+		this.deferredRejected = metrics.counter(MetricRegistry.name(DB.class, "deferred", "rejected"));
+
+		metrics.register(MetricRegistry.name(DB.class, "breaker", "state"), (Gauge<String>) () -> breaker.get().name());
+		this.breakerClosed = metrics.counter(MetricRegistry.name(DB.class, "breaker", "closed"));
+		this.breakerOpened = metrics.counter(MetricRegistry.name(DB.class, "breaker", "opened"));
+	}
+
+	/**
+	 * Start the background work - the scheduled deferred job drain. Until started, deferred jobs run only when a handle is next opened.
+	 */
+	@Override
+	public void start() {
+		deferredExecutor.scheduleWithFixedDelay(this::runDeferred, DEFERRED_INTERVAL, DEFERRED_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop the background work - the deferred job drain and async transactions. Jobs still waiting are dropped, and async transactions not yet run complete as
+	 * failed. Register with the environment's lifecycle, or call when done with the DB.
+	 */
+	@Override
+	public void stop() {
+		deferredExecutor.shutdownNow();
+		asyncExecutor.shutdown();
+		try {
+			if (!asyncExecutor.awaitTermination(STOP_WAIT, TimeUnit.MILLISECONDS)) {
+				logger.warn("stop: async transactions still running");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (!deferredJobs.isEmpty()) {
+			logger.warn("stop: dropping deferred jobs: " + deferredJobs.size());
+			deferredJobs.clear();
+		}
+	}
+
+	/**
+	 * Run this job once the current thread's unit of work commits, outside of it, or now if not in a unit of work. Jobs registered by an attempt of the unit of
+	 * work that rolls back are dropped (a retry registers them again). If a job fails, the unit of work reports failure, though its transaction stands.
+	 * 
+	 * @param job
+	 *            The job, returning true if it succeeded, false if not.
+	 * @return true if the job is registered, or run now successfully, false if run now and it failed.
+	 */
+	public boolean afterCommit(BooleanSupplier job) {
+		List<BooleanSupplier> jobs = afterCommit.get();
+		if (jobs == null)
+			return job.getAsBoolean();
+
+		jobs.add(job);
+		return true;
+	}
+
+	/**
+	 * Check if the current thread is in a unit of work.
+	 * 
+	 * @return true if it is, false if not.
+	 */
+	public boolean inUnitOfWork() {
+		return unitOfWork.get() != null;
 	}
 
 	/**
@@ -190,28 +410,102 @@ public class DB {
 	 * @return TRUE if we do, FALSE if not.
 	 */
 	public Boolean isUp() {
-		synchronized (status) {
-			return status;
-		}
+		return breaker.get() == Breaker.closed;
 	}
 
+	/**
+	 * Open a handle, unless the breaker is open, in which case we fail fast.
+	 * 
+	 * @return The handle, or not if the db is down.
+	 */
 	public Optional<Handle> open() {
+		if (!allowOpen())
+			return Optional.empty();
+
 		try {
 			Handle h = dbi.open();
 
-			// we have a handle, see if we need to run deferred jobs
-			runDeferred(h);
-
 			// we are 'up'
 			setUp();
 
+			// we have a handle, see if we need to run deferred jobs - one drain at a time, however many handles are opened meanwhile
+			if (!deferredJobs.isEmpty() && drainRequested.compareAndSet(false, true)) {
+				try {
+					deferredExecutor.execute(() -> {
+						try {
+							runDeferred();
+						} finally {
+							drainRequested.set(false);
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					// stopped
+					drainRequested.set(false);
+				}
+			}
+
 			return Optional.of(h);
 		} catch (UnableToObtainConnectionException e) {
 			// we are 'down'
 			setDown();
 
 			return Optional.empty();
+		} catch (RuntimeException | Error e) {
+			// don't leave a probe hanging, whatever went wrong
+			setDown();
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Run this read-only job now, if we can get a database handle. In a unit of work, the job runs on the unit of work's handle. Otherwise, the job runs in auto-commit, with no begin / commit, so it should be a single select (or a
+	 * set of selects that don't need to be consistent with each other). Statements are limited to READ_TIMEOUT_SECONDS. If the db is down, we retry briefly.
+	 * 
+	 * @param job
+	 *            The job. Must not write. Job may run multiple times.
+	 * @return true if run successfully, false if not.
+	 */
+	public boolean read(ConsumerThrowing<Handle> job) {
+
+		// in a unit of work, join it
+		Handle bound = unitOfWork.get();
+		if (bound != null) {
+			job.accept(bound);
+			return true;
+		}
+
+		// we will do READ_MAX_RETRIES attempts in case of db not available
+		int retries = READ_MAX_RETRIES;
+		while (retries > 0) {
+			Optional<Handle> handle = open();
+			if (handle.isPresent()) {
+				try (Handle h = handle.get()) {
+					h.setStatementBuilder(readStatementBuilder);
+					job.accept(h);
+					return true;
+				} catch (DBIException e) {
+					logger.info("read: " + e.toString());
+					return false;
+				} catch (Throwable t) {
+					logger.info("read: fatal: " + t.toString());
+					return false;
+				}
+			}
+
+			logger.info("read: retry: " + (READ_MAX_RETRIES - retries) + " DB Down");
+			retries--;
+
+			// if we are retrying, take a very quick break first
+			if (retries > 0) {
+				try {
+					Thread.sleep(READ_RETRY_DELAY);
+				} catch (InterruptedException ie) {
+				}
+			}
 		}
+
+		return false;
 	}
 
 	/**
@@ -237,14 +531,16 @@ public class DB {
 	}
 
 	/**
-	 * Run this job now, if we can, or later, once we have a database handle.
+	 * Run this job now, if we can, or later, once we have a database handle. Jobs run later run in the background, in the order they were scheduled. If too
+	 * many jobs are already waiting, the job is rejected.
 	 * 
 	 * @param job
 	 *            The job.
-	 * @return true if run now, false if schedule for later run.
+	 * @return true if run now, false if schedule for later run (or rejected).
 	 */
 	public boolean schedule(Consumer<Handle> job) {
-		Optional<Handle> handle = open();
+		// if other jobs are waiting, this one waits behind them
+		Optional<Handle> handle = deferredJobs.isEmpty() ? open() : Optional.empty();
 		if (handle.isPresent()) {
 			try (Handle h = handle.get()) {
 				job.accept(h);
@@ -254,107 +550,294 @@ public class DB {
 			}
 			return true;
 		} else {
-			deferredJobs.add(job);
+			if (!deferredJobs.offer(new Deferred(job))) {
+				logger.warn("schedule: deferred jobs full, rejecting job");
+				deferredRejected.inc();
+			}
 			return false;
 		}
 	}
 
 	/**
-	 * Run this job now, if we can get a database handle, and in case of deadlock error, retry a few times before giving up.
+	 * Run this job now, if we can get a database handle, and in case of deadlock error, retry a few times before giving up. In a unit of work, the job runs
+	 * as part of the unit of work's transaction.
 	 * 
 	 * @param job
 	 *            The job. All transaction code is added to the basic statements in the job, and should NOT be in the job. Job may run multiple times.
 	 * @return true if run successfully, false if not.
 	 */
 	public boolean transact(ConsumerThrowing<Handle> job) {
-		boolean success = false;
+
+		// in a unit of work, join its transaction - errors go to the unit of work, which will rollback and maybe retry
+		Handle bound = unitOfWork.get();
+		if (bound != null) {
+			job.accept(bound);
+			return true;
+		}
+
+		return transactIndependently(job);
+	}
+
+	/**
+	 * Run this job now, as transact() does, but always in its own transaction, committed (or not) when the job is done. Refused in a unit of work: the unit
+	 * of work holds a connection, and waiting for a second one while holding it can exhaust the pool, with every thread waiting for another's connection.
+	 * Do such writes before the unit of work, or with afterCommit().
+	 * 
+	 * @param job
+	 *            The job. All transaction code is added to the basic statements in the job, and should NOT be in the job. Job may run multiple times.
+	 * @return true if run successfully, false if not, or if in a unit of work.
+	 */
+	public boolean transactIndependently(ConsumerThrowing<Handle> job) {
+		if (unitOfWork.get() != null) {
+			logger.warn("transactIndependently: refused in a unit of work", new IllegalStateException());
+			return false;
+		}
 
 		// we will do MAX_RETRIES retries in case of deadlock or db not available
-		int retries = MAX_RETRIES;
-		while (retries > 0) {
-			Optional<Handle> handle = open();
-			if (handle.isPresent()) {
-				try (Handle h = handle.get()) {
-					try {
-						h.begin();
-						job.accept(h);
-						h.commit();
-						retries = 0;
-						success = true;
-					} catch (DBIException e) {
-						logger.info("transact: retry: " + (MAX_RETRIES - retries) + " " + e.toString());
-						if (e.getCause() instanceof SQLException) {
-							SQLException s = (SQLException) e.getCause();
-
-							if (s.getErrorCode() == 1213) {
-								// a mysql deadlock killed the transaction, so we might retry
-								retries--;
-							} else {
-								// some other error, we are done
-								retries = 0;
-							}
-						}
-						h.rollback();
-					} catch (Throwable t) {
-						logger.info("transact: fatal: " + (MAX_RETRIES - retries) + " " + t.toString());
-						h.rollback();
-
-						// we don't try again
-						retries = 0;
-					}
-				}
-			} else {
-				// try again like a deadlock
-				logger.info("transact: retry: " + (MAX_RETRIES - retries) + " DB Down");
-				retries--;
+		for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
+			Attempt outcome = attempt(job, attempt);
+			if (outcome == Attempt.success)
+				return true;
+			if ((outcome == Attempt.fail) || (attempt + 1 == MAX_RETRIES) || !acquireRetry())
+				return false;
+
+			// take a break before retrying
+			try {
+				Thread.sleep(retryDelay(attempt));
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return false;
 			}
+		}
 
-			// if we are retrying, take a quick break first
-			if (retries > 0) {
-				// sleep 1 .. 4 seconds, depending on how many retries we've done.
-				try {
-					Thread.sleep((5 - retries) * 1000);
-				} catch (InterruptedException ie) {
-				}
+		return false;
+	}
+
+	/**
+	 * Run this job as a transaction on the async executor, retrying (like transact) on deadlock or db not available, with the retries scheduled, not slept,
+	 * so no thread waits between attempts.
+	 * 
+	 * @param job
+	 *            The job. All transaction code is added to the basic statements in the job, and should NOT be in the job. Job may run multiple times.
+	 * @return A future completing with true if run successfully, false if not.
+	 */
+	public CompletableFuture<Boolean> transactAsync(ConsumerThrowing<Handle> job) {
+		CompletableFuture<Boolean> rv = new CompletableFuture<>();
+		try {
+			asyncExecutor.execute(() -> transactAsync(job, 0, rv));
+		} catch (RejectedExecutionException e) {
+			logger.info("transactAsync: stopped");
+			rv.complete(Boolean.FALSE);
+		}
+		return rv;
+	}
+
+	/**
+	 * Run this work as a single unit - one handle and one transaction, bound to this thread, shared by all the read() and transact() calls made while doing
+	 * the work. In case of deadlock error, the whole unit is retried, as with transact(). If already in a unit of work, the work joins it.
+	 * 
+	 * Jobs given to afterCommit() during the work run once the unit of work commits.
+	 * 
+	 * @param work
+	 *            The work. Work may run multiple times, and should reset any results it collects when it starts.
+	 * @return true if run and committed successfully, and all the after commit jobs succeeded, false if not.
+	 */
+	public boolean unitOfWork(Runnable work) {
+		if (unitOfWork.get() != null) {
+			work.run();
+			return true;
+		}
+
+		List<BooleanSupplier> jobs = new ArrayList<>();
+		boolean rv = transact(h -> {
+			// only the jobs from the attempt that commits
+			jobs.clear();
+			unitOfWork.set(h);
+			afterCommit.set(jobs);
+			try {
+				work.run();
+			} finally {
+				unitOfWork.remove();
+				afterCommit.remove();
+			}
+		});
+		if (!rv)
+			return false;
+
+		for (BooleanSupplier job : jobs) {
+			if (!job.getAsBoolean()) {
+				logger.warn("unitOfWork: after commit job failed");
+				rv = false;
 			}
 		}
 
-		return success;
+		return rv;
 	}
 
 	/**
-	 * Run the deferred jobs on this handle.
+	 * Take one from the retry budget, if any is left in the current window.
 	 * 
-	 * @param handle
-	 *            The database handle.
+	 * @return true if we may retry, false if the budget is used up.
 	 */
-	protected void runDeferred(Handle h) {
+	protected boolean acquireRetry() {
+		long now = System.currentTimeMillis();
+		long start = retryWindowStart.get();
+		if ((now - start > RETRY_BUDGET_WINDOW) && retryWindowStart.compareAndSet(start, now)) {
+			retriesInWindow.set(0);
+		}
 
-		// grab the current list of jobs, clearing it
-		List<Consumer<Handle>> jobs = new ArrayList<>();
-		synchronized (deferredJobs) {
-			jobs.addAll(deferredJobs);
-			deferredJobs.clear();
+		if (retriesInWindow.incrementAndGet() <= RETRY_BUDGET)
+			return true;
+
+		logger.info("transact: retry budget exhausted");
+		return false;
+	}
+
+	/**
+	 * Check the breaker to see if we should try to open a handle. When open for long enough, one caller is let through as a probe.
+	 * 
+	 * @return true to try to open, false to fail fast.
+	 */
+	protected boolean allowOpen() {
+		Breaker b = breaker.get();
+		if (b == Breaker.closed)
+			return true;
+
+		// with a probe in flight, or not open for long enough, fail fast
+		if ((b == Breaker.halfOpen) || (System.currentTimeMillis() - breakerOpenedAt.get() < BREAKER_OPEN_TIME))
+			return false;
+
+		return breaker.compareAndSet(Breaker.open, Breaker.halfOpen);
+	}
+
+	/**
+	 * Make one attempt to run the job in a transaction.
+	 * 
+	 * @param job
+	 *            The job.
+	 * @param attempt
+	 *            The attempt number, starting at 0, for logging.
+	 * @return The outcome.
+	 */
+	protected Attempt attempt(ConsumerThrowing<Handle> job, int attempt) {
+		Optional<Handle> handle = open();
+		if (!handle.isPresent()) {
+			// try again like a deadlock
+			logger.info("transact: retry: " + attempt + " DB Down");
+			return Attempt.retry;
+		}
+
+		try (Handle h = handle.get()) {
+			try {
+				h.begin();
+				job.accept(h);
+				h.commit();
+				return Attempt.success;
+			} catch (DBIException e) {
+				logger.info("transact: retry: " + attempt + " " + e.toString());
+				h.rollback();
+
+				// a mysql deadlock killed the transaction, so we might retry - some other error, we are done
+				if ((e.getCause() instanceof SQLException) && (((SQLException) e.getCause()).getErrorCode() == 1213)) {
+					return Attempt.retry;
+				}
+				return Attempt.fail;
+			} catch (Throwable t) {
+				logger.info("transact: fatal: " + attempt + " " + t.toString());
+				h.rollback();
+
+				// we don't try again
+				return Attempt.fail;
+			}
 		}
+	}
+
+	/**
+	 * Compute the delay before the next retry - exponential in the attempts made so far, with jitter so retries from many requests spread out.
+	 * 
+	 * @param attempt
+	 *            The attempt that just failed, starting at 0.
+	 * @return The delay, in milliseconds.
+	 */
+	protected long retryDelay(int attempt) {
+		long delay = Math.min(RETRY_MAX_DELAY, RETRY_BASE_DELAY << attempt);
+		return ThreadLocalRandom.current().nextLong(delay / 2, delay + 1);
+	}
+
+	/**
+	 * Run the deferred jobs, in order, if we can get a database handle. A job that fails is dropped. Runs on the deferredExecutor.
+	 */
+	protected void runDeferred() {
+		if (deferredJobs.isEmpty())
+			return;
 
-		// run each
-		jobs.stream().forEach(j -> j.accept(h));
+		Optional<Handle> handle = open();
+		if (!handle.isPresent())
+			return;
+
+		try (Handle h = handle.get()) {
+			Deferred d;
+			while ((d = deferredJobs.poll()) != null) {
+				try {
+					d.job.accept(h);
+				} catch (RuntimeException e) {
+					logger.info("runDeferred: " + e.toString());
+				}
+			}
+		}
 	}
 
+	/**
+	 * Record a failure to open a handle - trip the breaker open if the probe failed, or if we have had too many failures in a row.
+	 */
 	protected void setDown() {
-		synchronized (status) {
-			if (status) {
+		Breaker b = breaker.get();
+		if ((b == Breaker.halfOpen) || ((b == Breaker.closed) && (consecutiveFailures.incrementAndGet() >= BREAKER_FAILURES))) {
+			breakerOpenedAt.set(System.currentTimeMillis());
+			if (breaker.compareAndSet(b, Breaker.open)) {
 				logger.error("DB Down");
-				status = Boolean.FALSE;
+				breakerOpened.inc();
 			}
 		}
 	}
 
+	/**
+	 * Record a successful handle open - close the breaker if needed.
+	 */
 	protected void setUp() {
-		synchronized (status) {
-			if (!status) {
-				logger.warn("DB Up");
-				status = Boolean.TRUE;
+		if (consecutiveFailures.get() != 0) {
+			consecutiveFailures.set(0);
+		}
+
+		Breaker b = breaker.get();
+		if ((b != Breaker.closed) && breaker.compareAndSet(b, Breaker.closed)) {
+			logger.warn("DB Up");
+			breakerClosed.inc();
+		}
+	}
+
+	/**
+	 * Make an attempt of an async transaction, scheduling the next attempt if needed, or completing the future.
+	 * 
+	 * @param job
+	 *            The job.
+	 * @param attempt
+	 *            The attempt number, starting at 0.
+	 * @param rv
+	 *            The future to complete.
+	 */
+	protected void transactAsync(ConsumerThrowing<Handle> job, int attempt, CompletableFuture<Boolean> rv) {
+		Attempt outcome = attempt(job, attempt);
+		if (outcome == Attempt.success) {
+			rv.complete(Boolean.TRUE);
+		} else if ((outcome == Attempt.fail) || (attempt + 1 == MAX_RETRIES) || !acquireRetry()) {
+			rv.complete(Boolean.FALSE);
+		} else {
+			try {
+				asyncExecutor.schedule(() -> transactAsync(job, attempt + 1, rv), retryDelay(attempt), TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				logger.info("transactAsync: stopped");
+				rv.complete(Boolean.FALSE);
 			}
 		}
 	}
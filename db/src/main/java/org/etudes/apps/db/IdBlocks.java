@@ -0,0 +1,197 @@
+/**********************************************************************************
+ *
+ * Copyright (c) 2017 Etudes, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.etudes.apps.db;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.etudes.apps.db.DB.Holder;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.util.LongColumnMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands out ids for a table from blocks reserved in the database, so records can be given their id before they are written. Each block is reserved with one
+ * short transaction on the id_block table, which holds the next unreserved id for each table, and is then used up in memory. Ids left in a block when the
+ * server stops are never used.
+ * 
+ * Blocks are reserved on the db's async executor, the next one starting when the current block is half used, so taking an id rarely waits. When it must, it
+ * waits for the reservation without holding the monitor, so other takers are not held up behind it.
+ * 
+ * All servers writing the table must take ids this way - an auto_increment insert could take an id reserved, but not yet written, by a block.
+ */
+public class IdBlocks {
+	final static private Logger logger = LoggerFactory.getLogger(IdBlocks.class);
+
+	/** How long to wait for a block to be reserved, in milliseconds. */
+	protected final static long RESERVE_WAIT = 10000;
+
+	/** The db. */
+	protected final DB db;
+
+	/** The table (and the id_block entry) we are handing out ids for. */
+	protected final String table;
+
+	/** How many ids to reserve at a time. */
+	protected final int size;
+
+	/** The next id to hand out from the current block, and the end (exclusive) of the block. */
+	protected long next = 0;
+	protected long end = 0;
+
+	/** The reservation of the next block, if started - completing with its first id, or not if it failed. */
+	protected CompletableFuture<Optional<Long>> ahead = null;
+
+	/**
+	 * Construct
+	 * 
+	 * @param db
+	 *            The db.
+	 * @param table
+	 *            The table, with a bigint "id" primary key. The first block starts past the largest id in the table.
+	 * @param size
+	 *            How many ids to reserve at a time.
+	 */
+	public IdBlocks(DB db, String table, int size) {
+		this.db = db;
+		this.table = table;
+		this.size = size;
+
+		if (db.isAutoDdl()) {
+			createTables();
+		}
+	}
+
+	/**
+	 * Take the next id.
+	 * 
+	 * @return The id, or not if a new block was needed and could not be reserved.
+	 */
+	public Optional<Long> next() {
+		while (true) {
+			CompletableFuture<Optional<Long>> reservation;
+			synchronized (this) {
+				if (next < end) {
+					// half way through the block, start reserving the next one
+					if ((ahead == null) && (end - next <= size / 2)) {
+						ahead = reserve();
+					}
+					return Optional.of(next++);
+				}
+
+				// a reservation that failed before we got here is tried again
+				if ((ahead == null) || (ahead.isDone() && !ahead.join().isPresent())) {
+					ahead = reserve();
+				}
+				reservation = ahead;
+			}
+
+			Optional<Long> start;
+			try {
+				start = reservation.get(RESERVE_WAIT, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return Optional.empty();
+			} catch (ExecutionException | TimeoutException e) {
+				logger.warn("next: no block for: " + table + " " + e.toString());
+				return Optional.empty();
+			}
+			if (!start.isPresent())
+				return Optional.empty();
+
+			// the first taker to get here starts using the block; the others find it in use
+			synchronized (this) {
+				if (ahead == reservation) {
+					ahead = null;
+					next = start.get();
+					end = next + size;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reserve a block, in its own transaction, on the db's async executor.
+	 * 
+	 * @return A future completing with the first id of the block, or not if it could not be reserved.
+	 */
+	protected CompletableFuture<Optional<Long>> reserve() {
+		Holder<Long> rv = new Holder<>();
+
+		// a second try, in case we lost a race to make the table's first block
+		return db.transactAsync(h -> reserve(h, rv)) //
+				.thenCompose(done -> done ? CompletableFuture.completedFuture(Boolean.TRUE) : db.transactAsync(h -> reserve(h, rv))) //
+				.thenApply(done -> {
+					if (!done) {
+						logger.warn("reserve: failed for: " + table);
+						return Optional.empty();
+					}
+					return rv.value;
+				});
+	}
+
+	/**
+	 * Reserve a block, in the transaction.
+	 * 
+	 * @param h
+	 *            The handle, in a transaction.
+	 * @param rv
+	 *            Set to the first id of the block.
+	 */
+	protected void reserve(Handle h, Holder<Long> rv) {
+		Long start = h.createQuery("select next_id from id_block where name = :name for update") //
+				.bind("name", table) //
+				.map(LongColumnMapper.WRAPPER) //
+				.first();
+
+		// the first block for the table - this fails on the unique name if another server gets there first, and the next try finds its entry
+		if (start == null) {
+			start = h.createQuery("select coalesce(max(id), 0) + 1 from " + table) //
+					.map(LongColumnMapper.WRAPPER) //
+					.first();
+			h.createStatement("insert into id_block (name, next_id) values (:name, :next)") //
+					.bind("name", table) //
+					.bind("next", start + size) //
+					.execute();
+		} else {
+			h.createStatement("update id_block set next_id = :next where name = :name") //
+					.bind("name", table) //
+					.bind("next", start + size) //
+					.execute();
+		}
+
+		rv.value = Optional.of(start);
+	}
+
+	/**
+	 * Create our tables if needed.
+	 */
+	protected void createTables() {
+		db.schedule(h -> {
+			h.execute("create table if not exists id_block (" //
+					+ "name varchar (64) not null primary key," //
+					+ "next_id bigint unsigned not null" //
+					+ ")");
+		});
+	}
+}
@@ -0,0 +1,393 @@
+/**********************************************************************************
+ *
+ * Copyright (c) 2017 Etudes, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.etudes.apps.db;
+
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Before;
+import org.etudes.apps.db.DB.Holder;
+import org.junit.Test;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
+
+/**
+ * Test the DB, against H2, with connections we can make fail
+ */
+public class DBTest {
+
+	/** Connections to an in-memory H2, or failures, as we say. */
+	protected static class Switch {
+		volatile boolean down = false;
+		volatile boolean error = false;
+		volatile int opened = 0;
+		volatile int tries = 0;
+
+		Connection open() throws SQLException {
+			tries++;
+			if (error)
+				throw new AssertionError("error");
+			if (down)
+				throw new SQLException("down");
+			opened++;
+			return DriverManager.getConnection("jdbc:h2:mem:DBTest;DB_CLOSE_DELAY=-1");
+		}
+	}
+
+	private Switch connections = null;
+
+	private DB db = null;
+
+	private AtomicInteger drains = null;
+
+	@Before
+	public void setUp() throws Exception {
+		connections = new Switch();
+		drains = new AtomicInteger();
+		db = new DB(new DBI(() -> connections.open()), false) {
+			@Override
+			protected void runDeferred() {
+				drains.incrementAndGet();
+				super.runDeferred();
+			}
+		};
+	}
+
+	@After
+	public void tearDown() {
+		db.stop();
+	}
+
+	/** Open a handle and close it. */
+	private boolean openAndClose() {
+		return db.open().map(h -> {
+			h.close();
+			return Boolean.TRUE;
+		}).orElse(Boolean.FALSE);
+	}
+
+	/** Take the db down, as the breaker sees it. */
+	private void down() {
+		connections.down = true;
+		for (int i = 0; i < DB.BREAKER_FAILURES; i++) {
+			openAndClose();
+		}
+		Assertions.assertThat(db.isUp()).isFalse();
+	}
+
+	/** Bring the db back, as the breaker sees it, once it lets a probe through. */
+	private void up() throws InterruptedException {
+		connections.down = false;
+		openedLongAgo();
+		Assertions.assertThat(openAndClose()).isTrue();
+		Assertions.assertThat(db.isUp()).isTrue();
+	}
+
+	/** Let the breaker, open, let a probe through. */
+	private void openedLongAgo() {
+		db.breakerOpenedAt.set(System.currentTimeMillis() - DB.BREAKER_OPEN_TIME);
+	}
+
+	/** A job failing as a mysql deadlock does. */
+	private static void deadlock() {
+		throw new UnableToExecuteStatementException(new SQLException("deadlock", "40001", 1213), null);
+	}
+
+	/** Wait for the deferred jobs to be run. */
+	private void awaitDeferred() throws InterruptedException {
+		for (int i = 0; (i < 100) && !db.deferredJobs.isEmpty(); i++) {
+			Thread.sleep(50);
+		}
+		Assertions.assertThat(db.deferredJobs).isEmpty();
+	}
+
+	/**
+	 * Test that jobs scheduled while down are run, in order, when the db is back - with one drain however many handles are opened
+	 */
+	@Test
+	public void testDeferred() throws Exception {
+		List<String> ran = new ArrayList<>();
+
+		// up, run now
+		Assertions.assertThat(db.schedule(h -> ran.add("now"))).isTrue();
+		Assertions.assertThat(ran).containsExactly("now");
+
+		// down, deferred
+		down();
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch draining = new CountDownLatch(1);
+		Assertions.assertThat(db.schedule(h -> {
+			draining.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+			}
+			ran.add("first");
+		})).isFalse();
+		Assertions.assertThat(db.schedule(h -> ran.add("second"))).isFalse();
+
+		// back up - the drain starts, and holds, while many more handles are opened
+		up();
+		Assertions.assertThat(draining.await(5, TimeUnit.SECONDS)).isTrue();
+		for (int i = 0; i < 100; i++) {
+			openAndClose();
+		}
+
+		// jobs scheduled while others wait go behind them
+		Assertions.assertThat(db.schedule(h -> ran.add("third"))).isFalse();
+
+		release.countDown();
+		awaitDeferred();
+		Assertions.assertThat(ran).containsExactly("now", "first", "second", "third");
+
+		// one drain, asked for by the first open
+		db.deferredExecutor.submit(() -> {
+		}).get();
+		Assertions.assertThat(drains.get()).isEqualTo(1);
+		Assertions.assertThat(db.drainRequested.get()).isFalse();
+	}
+
+	/**
+	 * Test that the deferred jobs are bounded, and those past the bound are rejected and counted
+	 */
+	@Test
+	public void testDeferredBound() throws Exception {
+		down();
+		for (int i = 0; i < DB.MAX_DEFERRED_JOBS + 10; i++) {
+			db.schedule(h -> {
+			});
+		}
+		Assertions.assertThat(db.deferredJobs).hasSize(DB.MAX_DEFERRED_JOBS);
+		Assertions.assertThat(db.deferredRejected.getCount()).isEqualTo(10);
+
+		// stopping drops them
+		db.stop();
+		Assertions.assertThat(db.deferredJobs).isEmpty();
+	}
+
+	/**
+	 * Test that, once started, deferred jobs are run without waiting for someone to open a handle
+	 */
+	@Test
+	public void testStart() throws Exception {
+		down();
+		List<String> ran = new ArrayList<>();
+		db.schedule(h -> ran.add("deferred"));
+
+		connections.down = false;
+		openedLongAgo();
+		Thread.sleep(DB.DEFERRED_INTERVAL / 5);
+		Assertions.assertThat(drains.get()).isEqualTo(0);
+
+		db.start();
+		for (int i = 0; (i < 100) && ran.isEmpty(); i++) {
+			Thread.sleep(DB.DEFERRED_INTERVAL / 20);
+		}
+		Assertions.assertThat(ran).containsExactly("deferred");
+		Assertions.assertThat(db.isUp()).isTrue();
+	}
+
+	/**
+	 * Test the breaker against a db we can't reach: open after enough failures, failing fast while open, one probe after a while, open again when it fails
+	 */
+	@Test
+	public void testBreakerUnreachable() throws Exception {
+		db.stop();
+		String url = "jdbc:h2:" + Files.createTempDirectory("DBTest").resolve("none") + ";IFEXISTS=TRUE";
+		db = new DB(new DBI(url), false);
+
+		for (int i = 0; i < DB.BREAKER_FAILURES - 1; i++) {
+			Assertions.assertThat(db.open()).isEmpty();
+			Assertions.assertThat(db.breaker.get()).isEqualTo(DB.Breaker.closed);
+		}
+		Assertions.assertThat(db.open()).isEmpty();
+		Assertions.assertThat(db.breaker.get()).isEqualTo(DB.Breaker.open);
+		Assertions.assertThat(db.breakerOpened.getCount()).isEqualTo(1);
+
+		// probe, which fails
+		openedLongAgo();
+		Assertions.assertThat(db.open()).isEmpty();
+		Assertions.assertThat(db.breaker.get()).isEqualTo(DB.Breaker.open);
+		Assertions.assertThat(db.breakerOpened.getCount()).isEqualTo(2);
+		Assertions.assertThat(db.breakerClosed.getCount()).isEqualTo(0);
+	}
+
+	/**
+	 * Test the breaker failing fast while open, letting one probe through, and closing when the probe succeeds
+	 */
+	@Test
+	public void testBreaker() throws Exception {
+		down();
+		int tries = connections.tries;
+
+		// open, fail fast, even though the db is back
+		connections.down = false;
+		Assertions.assertThat(db.open()).isEmpty();
+		Assertions.assertThat(connections.tries).isEqualTo(tries);
+
+		// one probe
+		openedLongAgo();
+		Assertions.assertThat(db.allowOpen()).isTrue();
+		Assertions.assertThat(db.breaker.get()).isEqualTo(DB.Breaker.halfOpen);
+		Assertions.assertThat(db.allowOpen()).isFalse();
+		Assertions.assertThat(db.open()).isEmpty();
+		db.setUp();
+		Assertions.assertThat(db.isUp()).isTrue();
+		Assertions.assertThat(db.breakerClosed.getCount()).isEqualTo(1);
+
+		// a failure or two does not open it
+		connections.down = true;
+		Assertions.assertThat(db.open()).isEmpty();
+		connections.down = false;
+		Assertions.assertThat(openAndClose()).isTrue();
+		Assertions.assertThat(db.consecutiveFailures.get()).isEqualTo(0);
+		Assertions.assertThat(db.isUp()).isTrue();
+	}
+
+	/**
+	 * Test that a probe failing with an Error does not leave the breaker half open
+	 */
+	@Test
+	public void testBreakerProbeError() throws Exception {
+		down();
+		connections.down = false;
+		connections.error = true;
+		openedLongAgo();
+		Assertions.assertThatThrownBy(() -> db.open()).isInstanceOf(AssertionError.class);
+		Assertions.assertThat(db.breaker.get()).isEqualTo(DB.Breaker.open);
+
+		// the next probe goes through
+		connections.error = false;
+		up();
+	}
+
+	/**
+	 * Test that transact retries on deadlock, not on other failures, and not past the retry budget
+	 */
+	@Test
+	public void testRetry() throws Exception {
+		AtomicInteger runs = new AtomicInteger();
+		Assertions.assertThat(db.transact(h -> {
+			runs.incrementAndGet();
+			deadlock();
+		})).isFalse();
+		Assertions.assertThat(runs.get()).isEqualTo(DB.MAX_RETRIES);
+
+		runs.set(0);
+		Assertions.assertThat(db.transact(h -> {
+			runs.incrementAndGet();
+			throw new IllegalStateException();
+		})).isFalse();
+		Assertions.assertThat(runs.get()).isEqualTo(1);
+
+		// budget used up - no retries
+		runs.set(0);
+		db.retriesInWindow.set(DB.RETRY_BUDGET);
+		Assertions.assertThat(db.transact(h -> {
+			if (runs.incrementAndGet() == 1)
+				deadlock();
+		})).isFalse();
+		Assertions.assertThat(runs.get()).isEqualTo(1);
+
+		// a new window - retries again
+		runs.set(0);
+		db.retryWindowStart.set(System.currentTimeMillis() - DB.RETRY_BUDGET_WINDOW - 1);
+		Assertions.assertThat(db.transact(h -> {
+			if (runs.incrementAndGet() == 1)
+				deadlock();
+		})).isTrue();
+		Assertions.assertThat(runs.get()).isEqualTo(2);
+	}
+
+	/**
+	 * Test that transactAsync commits, retries on deadlock with scheduled attempts, and fails without retry otherwise
+	 */
+	@Test
+	public void testTransactAsync() throws Exception {
+		db.transact(h -> {
+			h.execute("create table if not exists DBTEST (ID int)");
+			h.execute("delete from DBTEST");
+		});
+
+		AtomicInteger runs = new AtomicInteger();
+		Assertions.assertThat(db.transactAsync(h -> {
+			if (runs.incrementAndGet() < 3)
+				deadlock();
+			h.execute("insert into DBTEST (ID) values (1)");
+		}).get(10, TimeUnit.SECONDS)).isTrue();
+		Assertions.assertThat(runs.get()).isEqualTo(3);
+
+		runs.set(0);
+		Assertions.assertThat(db.transactAsync(h -> {
+			runs.incrementAndGet();
+			h.execute("insert into DBTEST (ID) values (2)");
+			throw new IllegalStateException();
+		}).get(10, TimeUnit.SECONDS)).isFalse();
+		Assertions.assertThat(runs.get()).isEqualTo(1);
+
+		Holder<List<Integer>> ids = new Holder<>();
+		Assertions.assertThat(db.read(h -> ids.value = Optional.of(h.createQuery("select ID from DBTEST").mapTo(Integer.class).list()))).isTrue();
+		Assertions.assertThat(ids.value.get()).containsExactly(1);
+
+		// stopped
+		db.stop();
+		Assertions.assertThat(db.transactAsync(h -> {
+		}).get(10, TimeUnit.SECONDS)).isFalse();
+	}
+
+	/**
+	 * Test that after commit jobs run when the unit of work commits, and not when it rolls back, and that independent transactions are refused in it
+	 */
+	@Test
+	public void testUnitOfWork() throws Exception {
+		List<String> ran = new ArrayList<>();
+
+		// not in a unit of work, runs now
+		Assertions.assertThat(db.afterCommit(() -> ran.add("now"))).isTrue();
+		Assertions.assertThat(ran).containsExactly("now");
+
+		Assertions.assertThat(db.unitOfWork(() -> {
+			Assertions.assertThat(db.inUnitOfWork()).isTrue();
+			db.afterCommit(() -> ran.add("committed"));
+			Assertions.assertThat(ran).containsExactly("now");
+			Assertions.assertThat(db.transactIndependently(h -> ran.add("independent"))).isFalse();
+		})).isTrue();
+		Assertions.assertThat(db.inUnitOfWork()).isFalse();
+		Assertions.assertThat(ran).containsExactly("now", "committed");
+
+		Assertions.assertThat(db.unitOfWork(() -> {
+			db.afterCommit(() -> ran.add("rolled back"));
+			throw new IllegalStateException();
+		})).isFalse();
+		Assertions.assertThat(ran).containsExactly("now", "committed");
+
+		// a failing after commit job fails the unit of work
+		Assertions.assertThat(db.unitOfWork(() -> db.afterCommit(() -> false))).isFalse();
+	}
+}
@@ -18,6 +18,8 @@
 
 package org.etudes.apps.dispatcher;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -28,7 +30,6 @@ import java.util.Optional;
 import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.CookieParam;
-import javax.ws.rs.FormParam;
 import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
@@ -39,12 +40,21 @@ import javax.ws.rs.core.Response;
 
 import org.etudes.apps.authentication.AuthenticationService;
 import org.etudes.apps.authentication.model.Authentication;
+import org.etudes.apps.db.DB.Holder;
+import org.etudes.apps.lti.BotDetector;
+import org.etudes.apps.lti.FormBody;
+import org.etudes.apps.lti.LTIConfiguration;
+import org.etudes.apps.lti.LTIConsumerService;
 import org.etudes.apps.lti.Launch;
 import org.etudes.apps.user.UserService;
-import org.etudes.apps.user.model.User;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.oauth.NonceStore;
+import net.oauth.OAuth;
+import net.oauth.OAuthAccessor;
+import net.oauth.OAuthProblemException;
+
 @Path("/lti/")
 public class LTI {
 	final static private Logger logger = LoggerFactory.getLogger(LTI.class);
@@ -53,34 +63,39 @@ public class LTI {
 	final String TOKEN = AuthenticationService.TOKEN;
 	final String TOKEN_ALT = AuthenticationService.TOKEN_ALT;
 
+	/** How long, in seconds, a consumer should wait before sending again a launch we could not check. */
+	protected final static int RETRY_AFTER_SECONDS = 5;
+
 	protected AuthenticationService authenticationService;
+	protected BotDetector bots;
+	protected LTIConsumerService consumerService;
+	protected Launch launch;
 	protected UserService userService;
 
 	@Inject
-	public LTI(AuthenticationService auth, UserService users) {
+	public LTI(AuthenticationService auth, UserService users, LTIConsumerService consumers, NonceStore nonces, LTIConfiguration config) {
 		authenticationService = auth;
+		consumerService = consumers;
 		userService = users;
+		launch = new Launch(nonces, config.isTrustForwardedProto());
+		bots = new BotDetector(config.getBotSignatures());
 
-		logger.info("LTI");
+		logger.info("LTI: bot signatures: " + bots.getSignatures());
 	}
 
 	/**
 	 * Respond to an LTI provider (i.e. us) launch from an LTI consumer (i.e. Sakai / Canvas).
+	 * 
+	 * The form encoded body is decoded once, as it is read, for both the signature check and the launch fields we use:
+	 * 
+	 * oauth_consumer_key (our subscription id), custom_canvas_course_id / custom_canvas_account_id / context_id (the course, or account, from which the
+	 * request is coming), custom_canvas_user_id / user_id (the canvas user id), lis_person_* (the user's name, email and sis id), roles (the user's role in
+	 * the course / account), resource_link_id (the placement), ext_content_return_types and ext_content_return_url.
 	 *
-	 * @param postBody
+	 * @param body
 	 *            The full post body.
-	 * @param oauth_consumer_key
-	 *            Our subscription id.
-	 * @param custom_canvas_course_id
-	 *            The course, or ...
-	 * @param custom_canvas_account_id
-	 *            The account, from which the request is coming.
-	 * @param custom_canvas_user_id
-	 *            The canvas user id.
-	 * @param roles
-	 *            The canvas user's role in the course / account.
-	 * @param custom_canvas_api_domain
-	 *            The canvas domain.
+	 * @param product
+	 *            The product code.
 	 * @param authenticationToken
 	 *            The (possibly) current authentication token (Note: currently ignored)
 	 * @param userAgent
@@ -91,42 +106,34 @@ public class LTI {
 	 */
 	@POST
 	@Path("/launch/{product : \\d+}")
-	public Response postLaunch(String postBody, //
+	public Response postLaunch(InputStream body, //
 			@PathParam("product") Integer product, //
-			// @FormParam("oauth_version") String oauth_version, //
-			@FormParam("oauth_consumer_key") String oauth_consumer_key, //
-			// @FormParam("oauth_timestamp") String oauth_timestamp, //
-			// @FormParam("oauth_nonce") String oauth_nonce, //
-			// @FormParam("oauth_signature_method") String oauth_signature_method, //
-			// @FormParam("oauth_signature") String oauth_signature, //
-			@FormParam("custom_canvas_course_id") String custom_canvas_course_id, //
-			@FormParam("custom_canvas_account_id") String custom_canvas_account_id, //
-			// @FormParam("lis_course_offering_sourcedid") String lis_course_offering_sourcedid, //
-			// @FormParam("context_label") String context_label, //
-			// @FormParam("context_title") String context_title, //
-			@FormParam("custom_canvas_user_id") String custom_canvas_user_id, //
-			// @FormParam("lis_person_name_full") String lis_person_name_full, //
-			@FormParam("custom_etudes_masquerading_user_id") String custom_etudes_masquerading_user_id, //
-			@FormParam("lis_person_name_family") String lis_person_name_family, //
-			@FormParam("lis_person_name_given") String lis_person_name_given, //
-			@FormParam("lis_person_contact_email_primary") String lis_person_contact_email_primary, //
-			@FormParam("lis_person_sourcedid") String lis_person_sourcedid, //
-			// @FormParam("user_image") String user_image, //
-			// @FormParam("custom_canvas_user_login_id") String custom_canvas_user_login_id, //
-			// @FormParam("custom_canvas_enrollment_state") String custom_canvas_enrollment_state, //
-			@FormParam("roles") String roles, //
-			// @FormParam("ext_roles") String ext_roles, //
-			@FormParam("custom_canvas_api_domain") String custom_canvas_api_domain, //
-			@FormParam("context_id") String context_id, //
-			@FormParam("resource_link_id") String resource_link_id, //
-			@FormParam("user_id") String user_id, //
-
-			@FormParam("ext_content_return_types") String ext_content_return_types, //
-			@FormParam("ext_content_return_url") String ext_content_return_url, //
-
 			@CookieParam(TOKEN) Long authenticationToken, @HeaderParam("user-agent") String userAgent, //
 			@Context HttpServletRequest req) {
 
+		FormBody form = null;
+		try {
+			form = FormBody.read(body, req.getCharacterEncoding());
+		} catch (IOException e) {
+			logger.warn("LTI Launch: failed to read body: " + e.toString());
+			return Response.status(Response.Status.BAD_REQUEST).build();
+		}
+
+		String oauth_consumer_key = form.get("oauth_consumer_key");
+		String custom_canvas_course_id = form.get("custom_canvas_course_id");
+		String custom_canvas_account_id = form.get("custom_canvas_account_id");
+		String custom_canvas_user_id = form.get("custom_canvas_user_id");
+		String lis_person_name_family = form.get("lis_person_name_family");
+		String lis_person_name_given = form.get("lis_person_name_given");
+		String lis_person_contact_email_primary = form.get("lis_person_contact_email_primary");
+		String lis_person_sourcedid = form.get("lis_person_sourcedid");
+		String roles = form.get("roles");
+		String context_id = form.get("context_id");
+		String resource_link_id = form.get("resource_link_id");
+		String user_id = form.get("user_id");
+		String ext_content_return_types = form.get("ext_content_return_types");
+		String ext_content_return_url = form.get("ext_content_return_url");
+
 		String[] contexts = { context_id, custom_canvas_account_id, custom_canvas_course_id };
 		String[] userIds = { user_id, custom_canvas_user_id };
 		LTIRole role = LTIRole.fromLaunch(roles);
@@ -145,46 +152,46 @@ public class LTI {
 			return Response.status(Response.Status.BAD_REQUEST).build();
 		}
 
-		// get the subscription TODO:
+		// get the subscription, and the consumer key / secret set up for it
 		final Long subscriptionId = Long.valueOf(oauth_consumer_key);
-		final String key = "12345";
-		final String secret = "SECRET";
+		Holder<OAuthAccessor> accessor = new Holder<>();
+		if (!consumerService.getAccessor(subscriptionId, accessor)) {
+			logInfo("LTI Launch subscription could not be read", product, oauth_consumer_key, String.join(":", contexts), resource_link_id,
+					req.getRemoteAddr(), userAgent, String.join(":", userIds), roles, Optional.empty());
+			return Response.status(Response.Status.SERVICE_UNAVAILABLE).header("Retry-After", RETRY_AFTER_SECONDS).build();
+		}
+		if (!accessor.value.isPresent()) {
+			logInfo("LTI Launch for unknown subscription", product, oauth_consumer_key, String.join(":", contexts), resource_link_id, req.getRemoteAddr(),
+					userAgent, String.join(":", userIds), roles, Optional.empty());
+			return Response.status(Response.Status.BAD_REQUEST).build();
+		}
 
 		// deal with launch context / product not matching subscription TODO:
 
 		// deal with bad LTI launch
-		Optional<String> launchError = new Launch().validSignature(req, key, secret, postBody);
+		Optional<OAuthProblemException> launchError = launch.validate(req, accessor.value.get(), form);
+		if (launchError.isPresent() && OAuth.Problems.TEMPORARILY_UNAVAILABLE.equals(launchError.get().getProblem())) {
+			logInfo("LTI Launch could not be checked", product, oauth_consumer_key, String.join(":", contexts), resource_link_id, req.getRemoteAddr(),
+					userAgent, String.join(":", userIds), roles, Optional.empty());
+			return Response.status(Response.Status.SERVICE_UNAVAILABLE).header("Retry-After", RETRY_AFTER_SECONDS).build();
+		}
 		if (launchError.isPresent()) {
 			logInfo("LTI Launch from suspected BOT", product, oauth_consumer_key, String.join(":", contexts), resource_link_id, req.getRemoteAddr(), userAgent,
-					String.join(":", userIds), roles, Optional.of(postBody));
+					String.join(":", userIds), roles, Optional.of(form.toString()));
 			return Response.status(Response.Status.BAD_REQUEST).build();
 		}
 
 		// all is well!
 
-		// get the user
-		Optional<User> user = userService.getUser(subscriptionId, first(userIds));
-		if (!user.isPresent()) {
-			logInfo("Failed to get or make user", product, oauth_consumer_key, String.join(":", contexts), resource_link_id, req.getRemoteAddr(), userAgent,
-					String.join(":", userIds), roles, Optional.empty());
-			return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
-		}
-
-		// update user info
-		user.get().setEmail(lis_person_contact_email_primary);
-		user.get().setFamilyName(lis_person_name_family);
-		user.get().setGivenName(lis_person_name_given);
-		user.get().setSisId(lis_person_sourcedid);
-		userService.saveUser(user.get()); // TODO: if changed
-
-		// record the authentication
+		// get (or make) and update the user, and record the authentication, as one transaction
 		// user, ip, agent, effective context, role, placement
 		// expand with placement
-		Optional<Authentication> auth = authenticationService.authenticateUser(user.get(), req.getRemoteAddr(), userAgent, first(contexts), role.toString(),
+		Optional<Authentication> auth = authenticationService.authenticateLaunch(subscriptionId, first(userIds), lis_person_contact_email_primary,
+				lis_person_name_family, lis_person_name_given, lis_person_sourcedid, req.getRemoteAddr(), userAgent, first(contexts), role.toString(),
 				resource_link_id);
 		if (!auth.isPresent()) {
-			logInfo("Failed to get new authentication", product, oauth_consumer_key, String.join(":", contexts), resource_link_id, req.getRemoteAddr(),
-					userAgent, String.join(":", userIds), roles, Optional.empty());
+			logInfo("Failed to get or make user, or new authentication", product, oauth_consumer_key, String.join(":", contexts), resource_link_id,
+					req.getRemoteAddr(), userAgent, String.join(":", userIds), roles, Optional.empty());
 			return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
 		}
 
@@ -212,7 +219,7 @@ public class LTI {
 				return redirect(redirect, Optional.empty());
 			} catch (UnsupportedEncodingException e) {
 				logInfo("lti_launch_url: encoding error", product, oauth_consumer_key, String.join(":", contexts), resource_link_id, req.getRemoteAddr(),
-						userAgent, String.join(":", userIds), roles, Optional.of(postBody));
+						userAgent, String.join(":", userIds), roles, Optional.of(form.toString()));
 				return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
 			}
 		}
@@ -245,25 +252,14 @@ public class LTI {
 	}
 
 	/**
-	 * Identify known bots from the user agent of the request.
+	 * Identify known bots from the user agent of the request, by the configured bot signatures.
 	 * 
 	 * @param userAgent
 	 *            The request's user agent.
-	 * @return true if from a known bot, false otherwise. see: https://www.keycdn.com/blog/web-crawlers/
+	 * @return true if from a known bot, false otherwise.
 	 */
 	protected boolean isFromBot(String userAgent) {
-		return ((userAgent != null) && ((userAgent.indexOf("Googlebot") != -1) //
-				|| (userAgent.indexOf("Mediapartners-Google") != -1) //
-				|| (userAgent.indexOf("AdsBot-Google") != -1) //
-				|| (userAgent.indexOf("Bingbot") != -1) //
-				|| (userAgent.indexOf("Yahoo! Slurp") != -1) //
-				|| (userAgent.indexOf("DuckDuckBot") != -1) //
-				|| (userAgent.indexOf("Baiduspider") != -1) //
-				|| (userAgent.indexOf("YandexBot") != -1) //
-				|| (userAgent.indexOf("Sogou") != -1) //
-				|| (userAgent.indexOf("Exabot") != -1) //
-				|| (userAgent.indexOf("ia_archiver") != -1) //
-		));
+		return bots.isBot(userAgent);
 	}
 
 	protected boolean isMissingValidData(String[] context, String[] user, LTIRole role, String subscriptionId, Integer product) {
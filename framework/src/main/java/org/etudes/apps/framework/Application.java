@@ -25,9 +25,16 @@ import org.etudes.apps.authentication.AuthenticationService;
 import org.etudes.apps.authentication.data.AuthenticationData;
 import org.etudes.apps.authentication.impl.AuthenticationDataJDBIImpl;
 import org.etudes.apps.authentication.impl.AuthenticationServiceImpl;
+import org.etudes.apps.authentication.impl.BatchedAuthenticationDataJDBIImpl;
 import org.etudes.apps.authentication.wapi.AuthAPI;
 import org.etudes.apps.db.DB;
 import org.etudes.apps.dispatcher.LTI;
+import org.etudes.apps.lti.LTIConfiguration;
+import org.etudes.apps.lti.LTIConsumerService;
+import org.etudes.apps.lti.data.LTIConsumerData;
+import org.etudes.apps.lti.impl.LTIConsumerDataJDBIImpl;
+import org.etudes.apps.lti.impl.LTIConsumerServiceImpl;
+import org.etudes.apps.lti.impl.NonceStoreJDBIImpl;
 import org.etudes.apps.user.UserService;
 import org.etudes.apps.user.data.UserData;
 import org.etudes.apps.user.impl.UserDataJDBIImpl;
@@ -44,6 +51,7 @@ import org.skife.jdbi.v2.DBI;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
 
 import io.dropwizard.assets.AssetsBundle;
@@ -53,6 +61,8 @@ import io.dropwizard.jdbi.DBIFactory;
 import io.dropwizard.lifecycle.ServerLifecycleListener;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
+import net.oauth.MemoryNonceStore;
+import net.oauth.NonceStore;
 
 public class Application extends io.dropwizard.Application<Configuration> {
 	// protected class NotifyManager implements Managed {
@@ -118,7 +128,8 @@ public class Application extends io.dropwizard.Application<Configuration> {
 		final DBI dbi = factory.build(environment, configuration.getDatabase(), "mysql");
 
 		// our wrapper around the dbi
-		DB db = new DB(dbi, configuration.isAutoDDL());
+		DB db = new DB(dbi, configuration.isAutoDDL(), environment.metrics());
+		environment.lifecycle().manage(db);
 
 		// add our services, etc. to the component system
 		environment.jersey().register(new AbstractBinder() {
@@ -132,6 +143,9 @@ public class Application extends io.dropwizard.Application<Configuration> {
 				bind(dbi).to(DBI.class);
 				bind(db).to(DB.class);
 
+				// make the metric registry available
+				bind(environment.metrics()).to(MetricRegistry.class);
+
 				// make our services available for injection - as singletons
 
 				// assessment
@@ -139,13 +153,27 @@ public class Application extends io.dropwizard.Application<Configuration> {
 				bind(AssessmentServiceImpl.class).to(AssessmentService.class).in(Singleton.class);
 
 				// authentication
-				bind(AuthenticationDataJDBIImpl.class).to(AuthenticationData.class).in(Singleton.class);
+				if (configuration.isBatchAuthentications()) {
+					bind(BatchedAuthenticationDataJDBIImpl.class).to(AuthenticationData.class).in(Singleton.class);
+				} else {
+					bind(AuthenticationDataJDBIImpl.class).to(AuthenticationData.class).in(Singleton.class);
+				}
 				bind(AuthenticationServiceImpl.class).to(AuthenticationService.class).in(Singleton.class);
 
 				// user & data
 				bind(UserDataJDBIImpl.class).to(UserData.class).in(Singleton.class);
 				bind(UserServiceImpl.class).to(UserService.class).in(Singleton.class);
 
+				// lti
+				bind(configuration.getLti()).to(LTIConfiguration.class);
+				bind(LTIConsumerDataJDBIImpl.class).to(LTIConsumerData.class).in(Singleton.class);
+				bind(LTIConsumerServiceImpl.class).to(LTIConsumerService.class).in(Singleton.class);
+				if (configuration.isSharedNonces()) {
+					bind(NonceStoreJDBIImpl.class).to(NonceStore.class).in(Singleton.class);
+				} else {
+					bind(MemoryNonceStore.class).to(NonceStore.class).in(Singleton.class);
+				}
+
 				// make our resources singleton
 				bind(AuthAPI.class).to(AuthAPI.class).in(Singleton.class);
 				bind(LTI.class).to(LTI.class).in(Singleton.class);
@@ -21,6 +21,8 @@ package org.etudes.apps.framework;
 import javax.validation.Valid;
 import javax.validation.constraints.NotNull;
 
+import org.etudes.apps.lti.LTIConfiguration;
+
 import io.dropwizard.db.DataSourceFactory;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
@@ -30,6 +32,20 @@ import lombok.EqualsAndHashCode;
 public class Configuration extends io.dropwizard.Configuration {
 	protected boolean autoDDL = false;
 
+	/** Keep LTI launch nonces in the database, shared by all servers, rather than in memory. */
+	protected boolean sharedNonces = false;
+
+	/**
+	 * Write new authentications by group commit, many launches' authentications in one transaction, with ids from blocks reserved in the database. All
+	 * servers must use the same setting.
+	 */
+	protected boolean batchAuthentications = false;
+
+	/** LTI launch settings. */
+	@Valid
+	@NotNull
+	protected LTIConfiguration lti = new LTIConfiguration();
+
 	@Valid
 	@NotNull
 	protected DataSourceFactory database = new DataSourceFactory();
@@ -20,9 +20,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A pool of OAuthConsumers that are constructed from Properties. Each consumer
@@ -57,51 +64,138 @@ public class ConsumerProperties {
 
     public ConsumerProperties(String resourceName, ClassLoader loader)
             throws IOException {
-        this(getProperties(getResource(resourceName, loader)));
+        this(getResource(resourceName, loader));
+    }
+
+    /**
+     * Construct from properties at the given URL. The URL is checked for
+     * changes (by its last modified time) at most every ten seconds, as
+     * consumers are requested, and the properties are reloaded if it
+     * changed. The check is made in the background; the request that
+     * triggers it doesn't wait for it.
+     */
+    public ConsumerProperties(URL source) throws IOException {
+        this.source = source;
+        this.sourceModified = lastModified(source);
+        this.snapshot = new Snapshot(getProperties(source));
+        this.nextCheck = new AtomicLong(System.currentTimeMillis() + RELOAD_CHECK_INTERVAL);
     }
 
     public ConsumerProperties(Properties consumerProperties) {
-        this.consumerProperties = consumerProperties;
+        this.source = null;
+        this.snapshot = new Snapshot(consumerProperties);
+        this.nextCheck = new AtomicLong(Long.MAX_VALUE);
     }
 
-    private final Properties consumerProperties;
+    /** How often, in ms, to check the source for changes. */
+    private static final long RELOAD_CHECK_INTERVAL = 10 * 1000L;
+
+    /** The properties and the consumers made from them. Replaced as a whole on reload. */
+    private volatile Snapshot snapshot;
+
+    private final URL source;
+
+    private volatile long sourceModified;
+
+    /** When to next check the source; Long.MAX_VALUE while a check is running. */
+    private final AtomicLong nextCheck;
 
-    private final Map<String, OAuthConsumer> pool = new HashMap<String, OAuthConsumer>();
+    /** Checks sources for changes, off the request threads. */
+    private static final ExecutorService RELOADER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "ConsumerProperties-reload");
+        t.setDaemon(true);
+        return t;
+    });
 
-    /** Get the consumer with the given name. */
+    /**
+     * Get the consumer with the given name. A consumer is made the first
+     * time it is asked for, and the same one is returned until the
+     * properties are reloaded. This doesn't block other callers. The
+     * consumer is made by {@link #newConsumer(String)}.
+     */
     public OAuthConsumer getConsumer(String name) throws MalformedURLException {
-        OAuthConsumer consumer;
-        synchronized (pool) {
-            consumer = pool.get(name);
+        checkSource();
+        final Snapshot current = snapshot;
+        OAuthConsumer consumer = current.pool.get(name);
+        if (consumer != null) {
+            return consumer;
         }
-        if (consumer == null) {
-            consumer = newConsumer(name);
+        try {
+            return current.pool.computeIfAbsent(name, n -> {
+                try {
+                    return newConsumer(n);
+                } catch (MalformedURLException e) {
+                    throw new UncheckedMalformedURL(e);
+                }
+            });
+        } catch (UncheckedMalformedURL e) {
+            throw e.cause;
         }
-        synchronized (pool) {
-            OAuthConsumer first = pool.get(name);
-            if (first == null) {
-                pool.put(name, consumer);
-            } else {
-                /*
-                 * Another thread just constructed an identical OAuthConsumer.
-                 * Use that one (and discard the one we just constructed).
-                 */
-                consumer = first;
+    }
+
+    /**
+     * Replace the properties. Consumers are made again, from the new
+     * properties, as they are asked for.
+     */
+    public void reload(Properties consumerProperties) {
+        snapshot = new Snapshot(consumerProperties);
+    }
+
+    /** If it's time, start a check of the source in the background. */
+    private void checkSource() {
+        long next = nextCheck.get();
+        if (System.currentTimeMillis() < next || !nextCheck.compareAndSet(next, Long.MAX_VALUE)) {
+            return;
+        }
+        try {
+            RELOADER.execute(this::reloadIfChanged);
+        } catch (RejectedExecutionException e) {
+            nextCheck.set(System.currentTimeMillis() + RELOAD_CHECK_INTERVAL);
+        }
+    }
+
+    /** Reload if the source changed, and schedule the next check. */
+    private void reloadIfChanged() {
+        try {
+            long modified = lastModified(source);
+            if (modified != sourceModified) {
+                reload(getProperties(source));
+                sourceModified = modified;
+            }
+        } catch (IOException e) {
+            // keep what we have; try again next time
+        } finally {
+            nextCheck.set(System.currentTimeMillis() + RELOAD_CHECK_INTERVAL);
+        }
+    }
+
+    private static long lastModified(URL source) throws IOException {
+        URLConnection connection = source.openConnection();
+        try {
+            return connection.getLastModified();
+        } finally {
+            // getLastModified may have opened the stream
+            if (connection.getDoInput()) {
+                try {
+                    connection.getInputStream().close();
+                } catch (IOException e) {
+                }
             }
         }
-        return consumer;
     }
 
-    @SuppressWarnings("rawtypes")
-	protected OAuthConsumer newConsumer(String name)
+    /** Make a consumer from the current properties. */
+    protected OAuthConsumer newConsumer(String name)
             throws MalformedURLException {
+        final Snapshot from = snapshot;
+        Properties consumerProperties = from.properties;
         String base = consumerProperties.getProperty(name
                 + ".serviceProvider.baseURL");
         URL baseURL = (base == null) ? null : new URL(base);
         OAuthServiceProvider serviceProvider = new OAuthServiceProvider(getURL(
-                baseURL, name + ".serviceProvider.requestTokenURL"), getURL(
-                baseURL, name + ".serviceProvider.userAuthorizationURL"),
-                getURL(baseURL, name + ".serviceProvider.accessTokenURL"));
+                consumerProperties, baseURL, name + ".serviceProvider.requestTokenURL"), getURL(
+                consumerProperties, baseURL, name + ".serviceProvider.userAuthorizationURL"),
+                getURL(consumerProperties, baseURL, name + ".serviceProvider.accessTokenURL"));
         OAuthConsumer consumer = new OAuthConsumer(consumerProperties
                 .getProperty(name + ".callbackURL"), consumerProperties
                 .getProperty(name + ".consumerKey"), consumerProperties
@@ -110,17 +204,65 @@ public class ConsumerProperties {
         if (baseURL != null) {
             consumer.setProperty("serviceProvider.baseURL", baseURL);
         }
-        for (Map.Entry prop : consumerProperties.entrySet()) {
-            String propName = (String) prop.getKey();
-            if (propName.startsWith(name + ".consumer.")) {
-                String c = propName.substring(name.length() + 10);
-                consumer.setProperty(c, prop.getValue());
+        Map<String, Object> props = from.consumerProperties.get(name);
+        if (props != null) {
+            for (Map.Entry<String, Object> prop : props.entrySet()) {
+                consumer.setProperty(prop.getKey(), prop.getValue());
             }
         }
         return consumer;
     }
 
-    private String getURL(URL base, String name) throws MalformedURLException {
+    /**
+     * Properties, with the [name].consumer.* properties grouped by consumer
+     * name once, rather than scanned for each new consumer. A property is
+     * grouped under every name it could belong to: a.consumer.b.consumer.c
+     * is property b.consumer.c of consumer a, and property c of consumer
+     * a.consumer.b.
+     */
+    private static class Snapshot {
+
+        Snapshot(Properties properties) {
+            this.properties = properties;
+            for (Map.Entry<Object, Object> prop : properties.entrySet()) {
+                String propName = (String) prop.getKey();
+                for (int c = propName.indexOf(CONSUMER); c >= 0; c = propName.indexOf(CONSUMER, c + 1)) {
+                    String name = propName.substring(0, c);
+                    Map<String, Object> props = consumerProperties.get(name);
+                    if (props == null) {
+                        props = new HashMap<String, Object>();
+                        consumerProperties.put(name, props);
+                    }
+                    props.put(propName.substring(c + CONSUMER.length()), prop.getValue());
+                }
+            }
+        }
+
+        private static final String CONSUMER = ".consumer.";
+
+        final Properties properties;
+
+        final Map<String, Map<String, Object>> consumerProperties = new HashMap<String, Map<String, Object>>();
+
+        final ConcurrentMap<String, OAuthConsumer> pool = new ConcurrentHashMap<String, OAuthConsumer>();
+
+    }
+
+    /** Carries a MalformedURLException out of computeIfAbsent. */
+    private static class UncheckedMalformedURL extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        UncheckedMalformedURL(MalformedURLException cause) {
+            super(cause);
+            this.cause = cause;
+        }
+
+        final MalformedURLException cause;
+
+    }
+
+    private static String getURL(Properties consumerProperties, URL base, String name) throws MalformedURLException {
         String url = consumerProperties.getProperty(name);
         if (base != null) {
             url = (new URL(base, url)).toExternalForm();
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 Etudes, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.oauth;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A NonceStore for a single server, keeping nonces in memory. Nonces are kept
+ * in buckets by their timestamp; once a bucket is older than the timestamp
+ * window, all its nonces would be refused by timestamp anyway, so the whole
+ * bucket is dropped.
+ */
+public class MemoryNonceStore implements NonceStore {
+
+    /** The default bucket width is 10 seconds. */
+    public static final long DEFAULT_BUCKET_WIDTH = 10 * 1000L;
+
+    /**
+     * Construct a store for the default timestamp window.
+     */
+    public MemoryNonceStore() {
+        this(SimpleOAuthValidator.DEFAULT_TIMESTAMP_WINDOW);
+    }
+
+    /**
+     * Public constructor.
+     *
+     * @param timestampWindowMsec
+     *            the window, in milliseconds, in which timestamps are accepted
+     */
+    public MemoryNonceStore(long timestampWindowMsec) {
+        this.timestampWindow = timestampWindowMsec;
+    }
+
+    protected final long bucketWidth = DEFAULT_BUCKET_WIDTH;
+    protected final long timestampWindow;
+
+    /** Nonces (consumer key and nonce) by timestamp bucket. */
+    protected final ConcurrentMap<Long, Set<String>> buckets = new ConcurrentHashMap<Long, Set<String>>();
+
+    /** The bucket current when we last dropped old buckets. */
+    protected final AtomicLong lastPurge = new AtomicLong();
+
+    public boolean add(String consumerKey, String nonce, long timestampMsec) {
+        purge();
+        Set<String> bucket = buckets.computeIfAbsent(timestampMsec / bucketWidth, b -> ConcurrentHashMap.newKeySet());
+        // the key's length keeps the key and nonce from running together
+        return bucket.add(consumerKey.length() + ":" + consumerKey + nonce);
+    }
+
+    /** @return how many nonces are being remembered */
+    public int size() {
+        int rv = 0;
+        for (Set<String> bucket : buckets.values()) {
+            rv += bucket.size();
+        }
+        return rv;
+    }
+
+    /** Drop the buckets too old to hold an acceptable timestamp, at most once per bucket width. */
+    protected void purge() {
+        long now = currentTimeMsec() / bucketWidth;
+        long last = lastPurge.get();
+        if (now != last && lastPurge.compareAndSet(last, now)) {
+            long oldest = (currentTimeMsec() - timestampWindow) / bucketWidth;
+            buckets.keySet().removeIf(b -> b < oldest);
+        }
+    }
+
+    protected long currentTimeMsec() {
+        return System.currentTimeMillis();
+    }
+
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2017 Etudes, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.oauth;
+
+/**
+ * A record of the nonces used by each consumer, so a validator can refuse a
+ * replayed message. Nonces need only be remembered as long as their timestamp
+ * would still be accepted.
+ */
+public interface NonceStore {
+
+    /**
+     * Record that this nonce has been used.
+     *
+     * @param consumerKey
+     *            the consumer that sent the nonce
+     * @param nonce
+     *            the nonce
+     * @param timestampMsec
+     *            the message timestamp, in milliseconds
+     * @return true if the nonce is new, false if it was already used
+     * @throws OAuthProblemException
+     *             if the nonce could not be checked just now
+     *             (temporarily_unavailable - the message may be sent again),
+     *             or will never be accepted (parameter_rejected)
+     */
+    boolean add(String consumerKey, String nonce, long timestampMsec) throws OAuthProblemException;
+
+}
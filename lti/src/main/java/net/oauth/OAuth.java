@@ -78,6 +78,7 @@ public class OAuth {
         public static final String PERMISSION_UNKNOWN = "permission_unknown";
         public static final String PERMISSION_DENIED = "permission_denied";
         public static final String USER_REFUSED = "user_refused";
+        public static final String TEMPORARILY_UNAVAILABLE = "temporarily_unavailable";
 
         public static final String OAUTH_ACCEPTABLE_VERSIONS = "oauth_acceptable_versions";
         public static final String OAUTH_ACCEPTABLE_TIMESTAMPS = "oauth_acceptable_timestamps";
@@ -119,6 +120,7 @@ public class OAuth {
 
             map.put(Problems.USER_REFUSED, serviceUnavailable);
             map.put(Problems.CONSUMER_KEY_REFUSED, serviceUnavailable);
+            map.put(Problems.TEMPORARILY_UNAVAILABLE, serviceUnavailable);
             return Collections.unmodifiableMap(map);
         }
 
@@ -77,13 +77,62 @@ public class SimpleOAuthValidator implements OAuthValidator {
      *            the maximum acceptable oauth_version
      */
     public SimpleOAuthValidator(long timestampWindowMsec, double maxVersion) {
+        this(timestampWindowMsec, maxVersion, null);
+    }
+
+    /**
+     * Construct a validator that also rejects messages with a nonce already
+     * used by the consumer.
+     *
+     * @param nonces
+     *            where used nonces are recorded
+     */
+    public SimpleOAuthValidator(NonceStore nonces) {
+        this(DEFAULT_TIMESTAMP_WINDOW, Double.parseDouble(OAuth.VERSION_1_0), nonces);
+    }
+
+    /**
+     * Public constructor.
+     *
+     * @param timestampWindowMsec
+     *            specifies, in milliseconds, the windows (into the past and
+     *            into the future) in which we'll accept timestamps.
+     * @param maxVersion
+     *            the maximum acceptable oauth_version
+     * @param nonces
+     *            where used nonces are recorded, or null to not check nonces
+     */
+    public SimpleOAuthValidator(long timestampWindowMsec, double maxVersion, NonceStore nonces) {
+        this(timestampWindowMsec, maxVersion, nonces, true);
+    }
+
+    /**
+     * Public constructor.
+     *
+     * @param timestampWindowMsec
+     *            specifies, in milliseconds, the windows (into the past and
+     *            into the future) in which we'll accept timestamps.
+     * @param maxVersion
+     *            the maximum acceptable oauth_version
+     * @param nonces
+     *            where used nonces are recorded, or null to not check nonces
+     * @param schemeTolerant
+     *            if true, accept a signature made with http for an https
+     *            message URL, or the other way - for when a load balancer
+     *            has changed the scheme and we can't tell the original.
+     */
+    public SimpleOAuthValidator(long timestampWindowMsec, double maxVersion, NonceStore nonces, boolean schemeTolerant) {
         this.timestampWindow = timestampWindowMsec;
         this.maxVersion = maxVersion;
+        this.nonces = nonces;
+        this.schemeTolerant = schemeTolerant;
     }
 
     protected final double minVersion = 1.0;
     protected final double maxVersion;
     protected final long timestampWindow;
+    protected final NonceStore nonces;
+    protected final boolean schemeTolerant;
 
     /** {@inherit} 
      * @throws URISyntaxException */
@@ -93,6 +142,7 @@ public class SimpleOAuthValidator implements OAuthValidator {
         validateVersion(message);
         validateTimestampAndNonce(message);
         validateSignature(message, accessor);
+        validateNonce(message);
     }
 
     /** Throw an exception if any SINGLE_PARAMETERS occur repeatedly. */
@@ -143,7 +193,11 @@ public class SimpleOAuthValidator implements OAuthValidator {
         }
     }
 
-    /** This implementation doesn't check the nonce value. */
+    /**
+     * This implementation checks the timestamp, and that the nonce is present.
+     * The nonce value is checked by validateNonce, once the signature is
+     * known to be good, so unsigned messages can't fill the nonce store.
+     */
     protected void validateTimestampAndNonce(OAuthMessage message)
     throws IOException, OAuthProblemException {
         message.requireParameters(OAuth.OAUTH_TIMESTAMP, OAuth.OAUTH_NONCE);
@@ -158,11 +212,23 @@ public class SimpleOAuthValidator implements OAuthValidator {
         }
     }
 
+    /** Throw an exception if the consumer has already used the nonce. */
+    protected void validateNonce(OAuthMessage message)
+    throws IOException, OAuthProblemException {
+        if (nonces == null) {
+            return;
+        }
+        long timestamp = Long.parseLong(message.getParameter(OAuth.OAUTH_TIMESTAMP)) * 1000L;
+        if (!nonces.add(message.getConsumerKey(), message.getParameter(OAuth.OAUTH_NONCE), timestamp)) {
+            throw new OAuthProblemException(OAuth.Problems.NONCE_USED);
+        }
+    }
+
     protected void validateSignature(OAuthMessage message, OAuthAccessor accessor)
     throws OAuthException, IOException, URISyntaxException {
         message.requireParameters(OAuth.OAUTH_CONSUMER_KEY,
                 OAuth.OAUTH_SIGNATURE_METHOD, OAuth.OAUTH_SIGNATURE);
-        OAuthSignatureMethod.newSigner(message, accessor).validate(message);
+        OAuthSignatureMethod.newSigner(message, accessor).validate(message, schemeTolerant);
     }
 
     protected long currentTimeMsec() {
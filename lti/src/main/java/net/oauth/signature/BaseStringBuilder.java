@@ -0,0 +1,362 @@
+/*
+ * Copyright 2017 Etudes, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.oauth.signature;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import net.oauth.OAuth;
+import net.oauth.OAuthMessage;
+
+/**
+ * Builds the signature base string of a message as bytes, in one pass over
+ * the parameters. Each name and value is percent encoded once, into a
+ * buffer that is reused; the parameters are sorted on their encoded bytes,
+ * and then written percent encoded a second time, which for encoded text
+ * only means escaping '%', '=' and '&amp;'.
+ * <p>
+ * The base string is ASCII, so the bytes can go straight to a Mac. Builders
+ * are per thread - use {@link #get()}, and finish with the bytes before
+ * getting the builder again.
+ */
+class BaseStringBuilder {
+
+    private static final ThreadLocal<BaseStringBuilder> BUILDERS = new ThreadLocal<BaseStringBuilder>() {
+        @Override
+        protected BaseStringBuilder initialValue() {
+            return new BaseStringBuilder();
+        }
+    };
+
+    /** Get this thread's builder, emptied. */
+    static BaseStringBuilder get() {
+        BaseStringBuilder builder = BUILDERS.get();
+        builder.reset();
+        return builder;
+    }
+
+    private static final int INITIAL_BYTES = 4096;
+
+    private static final int INITIAL_PARAMETERS = 64;
+
+    /** Buffers grown past this are dropped on reset, so one huge message doesn't pin memory. */
+    private static final int MAX_RETAINED_BYTES = 64 * 1024;
+
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    /** The once-encoded parameter names and values, back to back. */
+    private byte[] encoded;
+    private int encodedLength;
+
+    /** For each parameter, where its name starts, where its name ends (and value starts), and where its value ends, in encoded. */
+    private int[] starts;
+    private int[] separators;
+    private int[] ends;
+    private int count;
+
+    /** Parameter indexes, in sorted order, and scratch space for the sort. */
+    private int[] order;
+    private int[] scratch;
+
+    /** The base string. */
+    private byte[] out;
+    private int length;
+
+    /** Where the scheme starts in the base string, if it is http or https, else -1. */
+    private int httpAt;
+
+    /** If the scheme is https. */
+    private boolean secure;
+
+    private BaseStringBuilder() {
+        encoded = new byte[INITIAL_BYTES];
+        out = new byte[INITIAL_BYTES];
+        allocateParameters(INITIAL_PARAMETERS);
+    }
+
+    private void allocateParameters(int size) {
+        starts = new int[size];
+        separators = new int[size];
+        ends = new int[size];
+        order = new int[size];
+        scratch = new int[size];
+    }
+
+    private void reset() {
+        if (encoded.length > MAX_RETAINED_BYTES) {
+            encoded = new byte[INITIAL_BYTES];
+        }
+        if (out.length > MAX_RETAINED_BYTES) {
+            out = new byte[INITIAL_BYTES];
+        }
+        encodedLength = 0;
+        count = 0;
+        length = 0;
+        httpAt = -1;
+        secure = false;
+    }
+
+    /** Build the base string for this message. */
+    BaseStringBuilder build(OAuthMessage message)
+            throws IOException, URISyntaxException {
+        String url = message.URL;
+        int q = url.indexOf('?');
+        if (q >= 0) {
+            // the URL query string parameters are signed along with the others
+            addParameters(OAuth.decodeForm(url.substring(q + 1)));
+            url = url.substring(0, q);
+        }
+        addParameters(message.getParameters());
+        sort();
+
+        appendEncoded(message.method.toUpperCase());
+        append('&');
+        String normalized = OAuthSignatureMethod.normalizeUrl(url);
+        int colon = normalized.indexOf(':');
+        String scheme = normalized.substring(0, colon);
+        if (scheme.equals("http") || scheme.equals("https")) {
+            httpAt = length;
+            secure = (scheme.length() == 5);
+        }
+        appendEncoded(normalized);
+        append('&');
+        for (int i = 0; i < count; i++) {
+            int p = order[i];
+            if (i > 0) {
+                appendAscii("%26");
+            }
+            appendReencoded(starts[p], separators[p]);
+            appendAscii("%3D");
+            appendReencoded(separators[p], ends[p]);
+        }
+        return this;
+    }
+
+    /** @return the buffer holding the base string, from 0 to length(). */
+    byte[] bytes() {
+        return out;
+    }
+
+    int length() {
+        return length;
+    }
+
+    /** @return where the "http" of an http or https scheme starts in the base string, or -1 if the scheme is something else. */
+    int httpAt() {
+        return httpAt;
+    }
+
+    /** @return true if the scheme is https. */
+    boolean isSecure() {
+        return secure;
+    }
+
+    @Override
+    public String toString() {
+        return new String(out, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private void addParameters(Iterable<? extends Map.Entry> parameters) {
+        if (parameters == null) {
+            return;
+        }
+        for (Map.Entry parameter : parameters) {
+            if ("oauth_signature".equals(parameter.getKey())) {
+                continue;
+            }
+            if (count == starts.length) {
+                growParameters();
+            }
+            starts[count] = encodedLength;
+            encodeParameterPart(parameter.getKey());
+            separators[count] = encodedLength;
+            encodeParameterPart(parameter.getValue());
+            ends[count] = encodedLength;
+            order[count] = count;
+            count++;
+        }
+    }
+
+    private void growParameters() {
+        int[] s = starts, sep = separators, e = ends, o = order;
+        allocateParameters(count * 2);
+        System.arraycopy(s, 0, starts, 0, count);
+        System.arraycopy(sep, 0, separators, 0, count);
+        System.arraycopy(e, 0, ends, 0, count);
+        System.arraycopy(o, 0, order, 0, count);
+    }
+
+    private void encodeParameterPart(Object part) {
+        if (part == null) {
+            return;
+        }
+        String s = part.toString();
+        // most characters encode to themselves, the rest to at most 9 bytes
+        encoded = ensure(encoded, encodedLength, s.length() * 9);
+        encodedLength = percentEncode(s, encoded, encodedLength);
+    }
+
+    /** Sort the parameters by encoded name, then encoded value - a stable merge sort of the indexes. */
+    private void sort() {
+        mergeSort(0, count);
+    }
+
+    private void mergeSort(int from, int to) {
+        if (to - from < 8) {
+            for (int i = from + 1; i < to; i++) {
+                int p = order[i];
+                int j = i - 1;
+                while (j >= from && compare(order[j], p) > 0) {
+                    order[j + 1] = order[j];
+                    j--;
+                }
+                order[j + 1] = p;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(from, mid);
+        mergeSort(mid, to);
+        if (compare(order[mid - 1], order[mid]) <= 0) {
+            return;
+        }
+        System.arraycopy(order, from, scratch, from, to - from);
+        int i = from, j = mid, k = from;
+        while (i < mid && j < to) {
+            order[k++] = (compare(scratch[j], scratch[i]) < 0) ? scratch[j++] : scratch[i++];
+        }
+        while (i < mid) {
+            order[k++] = scratch[i++];
+        }
+        while (j < to) {
+            order[k++] = scratch[j++];
+        }
+    }
+
+    /**
+     * Compare as "name value" strings would - a name that is a prefix of
+     * another sorts first, since ' ' comes before any encoded character.
+     */
+    private int compare(int a, int b) {
+        int c = compare(starts[a], separators[a], starts[b], separators[b]);
+        if (c != 0) {
+            return c;
+        }
+        return compare(separators[a], ends[a], separators[b], ends[b]);
+    }
+
+    private int compare(int aFrom, int aTo, int bFrom, int bTo) {
+        int aLength = aTo - aFrom;
+        int bLength = bTo - bFrom;
+        int n = Math.min(aLength, bLength);
+        for (int i = 0; i < n; i++) {
+            int c = encoded[aFrom + i] - encoded[bFrom + i];
+            if (c != 0) {
+                return c;
+            }
+        }
+        return aLength - bLength;
+    }
+
+    private void append(char c) {
+        out = ensure(out, length, 1);
+        out[length++] = (byte) c;
+    }
+
+    private void appendAscii(String s) {
+        out = ensure(out, length, s.length());
+        for (int i = 0; i < s.length(); i++) {
+            out[length++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void appendEncoded(String s) {
+        out = ensure(out, length, s.length() * 9);
+        length = percentEncode(s, out, length);
+    }
+
+    /** Append a range of encoded, encoding it again - only the '%' of each escape changes. */
+    private void appendReencoded(int from, int to) {
+        out = ensure(out, length, (to - from) * 3);
+        for (int i = from; i < to; i++) {
+            byte b = encoded[i];
+            if (b == '%') {
+                out[length++] = '%';
+                out[length++] = '2';
+                out[length++] = '5';
+            } else {
+                out[length++] = b;
+            }
+        }
+    }
+
+    private static byte[] ensure(byte[] buffer, int used, int needed) {
+        if (used + needed <= buffer.length) {
+            return buffer;
+        }
+        byte[] bigger = new byte[Math.max(buffer.length * 2, used + needed)];
+        System.arraycopy(buffer, 0, bigger, 0, used);
+        return bigger;
+    }
+
+    /**
+     * Percent encode s as UTF-8 into into at position, as OAuth.percentEncode
+     * does. The caller makes room for 9 bytes per char.
+     *
+     * @return the new position.
+     */
+    static int percentEncode(String s, byte[] into, int position) {
+        int p = position;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '.'
+                    || c == '_' || c == '~') {
+                into[p++] = (byte) c;
+            } else if (c < 0x80) {
+                p = escape(c, into, p);
+            } else if (c < 0x800) {
+                p = escape(0xC0 | (c >> 6), into, p);
+                p = escape(0x80 | (c & 0x3F), into, p);
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                p = escape(0xF0 | (cp >> 18), into, p);
+                p = escape(0x80 | ((cp >> 12) & 0x3F), into, p);
+                p = escape(0x80 | ((cp >> 6) & 0x3F), into, p);
+                p = escape(0x80 | (cp & 0x3F), into, p);
+            } else if (Character.isSurrogate(c)) {
+                // unpaired, which String.getBytes replaces with '?'
+                p = escape('?', into, p);
+            } else {
+                p = escape(0xE0 | (c >> 12), into, p);
+                p = escape(0x80 | ((c >> 6) & 0x3F), into, p);
+                p = escape(0x80 | (c & 0x3F), into, p);
+            }
+        }
+        return p;
+    }
+
+    private static int escape(int b, byte[] into, int p) {
+        into[p++] = '%';
+        into[p++] = HEX[(b >> 4) & 0xF];
+        into[p++] = HEX[b & 0xF];
+        return p;
+    }
+
+}
@@ -18,13 +18,10 @@ package net.oauth.signature;
 
 import java.io.UnsupportedEncodingException;
 import java.security.GeneralSecurityException;
-import java.util.Arrays;
-
-import javax.crypto.Mac;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.SecretKeySpec;
+import java.security.MessageDigest;
 
 import net.oauth.OAuth;
+import net.oauth.OAuthAccessor;
 import net.oauth.OAuthException;
 
 /**
@@ -51,7 +48,7 @@ class HMAC_SHA256 extends OAuthSignatureMethod {
         try {
             byte[] expected = computeSignature(baseString);
             byte[] actual = decodeBase64(signature);
-            return Arrays.equals(expected, actual);
+            return MessageDigest.isEqual(expected, actual);
         } catch (GeneralSecurityException e) {
             throw new OAuthException(e);
         } catch (UnsupportedEncodingException e) {
@@ -59,44 +56,84 @@ class HMAC_SHA256 extends OAuthSignatureMethod {
         }
     }
 
+    @Override
+    protected boolean isValid(String signature, byte[] baseString, int length)
+    throws OAuthException {
+        try {
+            byte[] expected = computeSignature(baseString, length);
+            byte[] actual = decodeBase64(signature);
+            return MessageDigest.isEqual(expected, actual);
+        } catch (GeneralSecurityException e) {
+            throw new OAuthException(e);
+        }
+    }
+
+    @Override
+    protected boolean isValidEitherScheme(String signature, byte[] baseString, int length, int http, boolean secure)
+    throws OAuthException {
+        try {
+            return getMacs().isValidEitherScheme(decodeBase64(signature), baseString, length, http, secure);
+        } catch (GeneralSecurityException e) {
+            throw new OAuthException(e);
+        }
+    }
+
     private byte[] computeSignature(String baseString)
             throws GeneralSecurityException, UnsupportedEncodingException {
-        SecretKey key = null;
-        synchronized (this) {
-            if (this.key == null) {
-                String keyString = OAuth.percentEncode(getConsumerSecret())
-                        + '&' + OAuth.percentEncode(getTokenSecret());
-                byte[] keyBytes = keyString.getBytes(ENCODING);
-                this.key = new SecretKeySpec(keyBytes, MAC_NAME);
-            }
-            key = this.key;
-        }
-        Mac mac = Mac.getInstance(MAC_NAME);
-        mac.init(key);
         byte[] text = baseString.getBytes(ENCODING);
-        return mac.doFinal(text);
+        return computeSignature(text, text.length);
+    }
+
+    private byte[] computeSignature(byte[] text, int length)
+            throws GeneralSecurityException {
+        return getMacs().doFinal(text, length);
+    }
+
+    /** The consumer's prepared Macs, or Macs for our own key when there's a token secret. */
+    private MacPool getMacs() {
+        String tokenSecret = getTokenSecret();
+        if (preparedMacs != null && (tokenSecret == null || tokenSecret.isEmpty())) {
+            return preparedMacs;
+        }
+        MacPool macs = this.macs;
+        if (macs == null) {
+            macs = new MacPool(MAC_NAME, hmacKey(MAC_NAME, getConsumerSecret(), tokenSecret));
+            this.macs = macs;
+        }
+        return macs;
     }
 
     /** ISO-8859-1 or US-ASCII would work, too. */
     private static final String ENCODING = OAuth.ENCODING;
 
-    private static final String MAC_NAME = "HmacSHA256";
+    static final String MAC_NAME = "HmacSHA256";
 
-    private SecretKey key = null;
+    private volatile MacPool macs = null;
+
+    /** The consumer's pooled Macs, if it has them, for when there's no token secret. */
+    private MacPool preparedMacs = null;
 
     @Override
-    public void setConsumerSecret(String consumerSecret) {
-        synchronized (this) {
-            key = null;
+    protected void initialize(String name, OAuthAccessor accessor)
+            throws OAuthException {
+        super.initialize(name, accessor);
+        if (!name.endsWith(_ACCESSOR)) {
+            Object prepared = accessor.consumer.getProperty(HMAC_MACS + MAC_NAME);
+            if (prepared instanceof MacPool) {
+                preparedMacs = (MacPool) prepared;
+            }
         }
+    }
+
+    @Override
+    public void setConsumerSecret(String consumerSecret) {
+        macs = null;
         super.setConsumerSecret(consumerSecret);
     }
 
     @Override
     public void setTokenSecret(String tokenSecret) {
-        synchronized (this) {
-            key = null;
-        }
+        macs = null;
         super.setTokenSecret(tokenSecret);
     }
 
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 Etudes, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.oauth.signature;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+/**
+ * A pool of Mac instances, all initialized with the same key. Looking up the
+ * provider and initializing a Mac costs more than computing a short HMAC, so
+ * a consumer's signers share these rather than making their own.
+ * <p>
+ * A Mac is reset by doFinal, so it can be reused with the same key. The pool
+ * grows to the number of threads that have used it at once.
+ */
+class MacPool {
+
+    MacPool(String macName, SecretKey key) {
+        this.macName = macName;
+        this.key = key;
+    }
+
+    private final String macName;
+
+    private final SecretKey key;
+
+    private final Queue<Mac> idle = new ConcurrentLinkedQueue<Mac>();
+
+    /** Compute the MAC of the text with the pool's key. */
+    byte[] doFinal(byte[] text, int length) throws GeneralSecurityException {
+        Mac mac = acquire();
+        try {
+            mac.update(text, 0, length);
+            return mac.doFinal();
+        } finally {
+            release(mac);
+        }
+    }
+
+    /**
+     * Check the signature against the MAC of the text, and if that doesn't
+     * match, of the text with its http scheme made https or its https scheme
+     * made http - without copying the text.
+     * <p>
+     * The Mac is not cloned after the part the two share: that part is only
+     * the method and "http", and a clone costs more than hashing it again.
+     *
+     * @param http
+     *            where the "http" of the scheme starts in the text
+     * @param secure
+     *            true if the scheme is https, false if http
+     */
+    boolean isValidEitherScheme(byte[] signature, byte[] text, int length, int http, boolean secure)
+            throws GeneralSecurityException {
+        int common = http + "http".length();
+        Mac mac = acquire();
+        try {
+            mac.update(text, 0, length);
+            if (MessageDigest.isEqual(mac.doFinal(), signature)) {
+                return true;
+            }
+
+            // doFinal reset the mac
+            mac.update(text, 0, common);
+            if (secure) {
+                mac.update(text, common + 1, length - common - 1);
+            } else {
+                mac.update((byte) 's');
+                mac.update(text, common, length - common);
+            }
+            return MessageDigest.isEqual(mac.doFinal(), signature);
+        } finally {
+            release(mac);
+        }
+    }
+
+    /** Take an initialized Mac from the pool, making one if none is idle. */
+    Mac acquire() throws GeneralSecurityException {
+        Mac mac = idle.poll();
+        if (mac == null) {
+            mac = Mac.getInstance(macName);
+            mac.init(key);
+        }
+        return mac;
+    }
+
+    /** Return a Mac to the pool, resetting any partial update. */
+    void release(Mac mac) {
+        mac.reset();
+        idle.offer(mac);
+    }
+
+}
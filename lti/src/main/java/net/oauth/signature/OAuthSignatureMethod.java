@@ -17,8 +17,10 @@
 package net.oauth.signature;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -26,6 +28,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
 import net.oauth.OAuth;
 import net.oauth.OAuthAccessor;
 import net.oauth.OAuthConsumer;
@@ -49,43 +54,48 @@ public abstract class OAuthSignatureMethod {
                 getSignature(message)));
     }
 
-    private final String POST_HTTP = "POST&http%3A%2F%2";
-    private final String POST_SECURE = "POST&https%3A%2F%2";
-    private final String GET_HTTP = "GET&http%3A%2F%2";
-    private final String GET_SECURE = "GET&https%3A%2F%2";
     /**
-     * Check whether the message has a valid signature.
+     * Check whether the message has a valid signature, made for either the
+     * http or https form of its URL.
      * @throws URISyntaxException 
      *
      * @throws OAuthProblemException
      *             the signature is invalid
      */
     public void validate(OAuthMessage message)
+    throws IOException, OAuthException, URISyntaxException {
+        validate(message, true);
+    }
+
+    /**
+     * Check whether the message has a valid signature.
+     *
+     * @param schemeTolerant
+     *            if true, also accept a signature made for the http form of
+     *            an https URL, or the other way. Load balancers may change
+     *            the scheme; if the original is known, put it in the message
+     *            URL and don't be tolerant.
+     * @throws OAuthProblemException
+     *             the signature is invalid
+     */
+    public void validate(OAuthMessage message, boolean schemeTolerant)
     throws IOException, OAuthException, URISyntaxException {
         message.requireParameters("oauth_signature");
         String signature = message.getSignature();
-        String baseString = getBaseString(message);
-        String otherBaseString = null;
-
-	// Allow for some confusion coming through load balancers
-	if ( baseString.startsWith(POST_HTTP) ) { 
-		otherBaseString = baseString.replaceFirst("^"+POST_HTTP,POST_SECURE);
-	} else if ( baseString.startsWith(POST_SECURE) ) { 
-		otherBaseString = baseString.replaceFirst("^"+POST_SECURE, POST_HTTP);
-	} else if ( baseString.startsWith(GET_HTTP) ) { 
-		otherBaseString = baseString.replaceFirst("^"+GET_HTTP,GET_SECURE);
-	} else if ( baseString.startsWith(GET_SECURE) ) { 
-		otherBaseString = baseString.replaceFirst("^"+GET_SECURE, GET_HTTP);
-	}
-
-	boolean valid = isValid(signature, baseString);
-	if ( ! valid && otherBaseString != null ) valid = isValid(signature, otherBaseString);
+        BaseStringBuilder base = BaseStringBuilder.get().build(message);
+
+        boolean valid;
+        if (schemeTolerant && base.httpAt() >= 0) {
+            valid = isValidEitherScheme(signature, base.bytes(), base.length(), base.httpAt(), base.isSecure());
+        } else {
+            valid = isValid(signature, base.bytes(), base.length());
+        }
 
         if (!valid) {
             OAuthProblemException problem = new OAuthProblemException(
                     "signature_invalid");
             problem.setParameter("oauth_signature", signature);
-            problem.setParameter("oauth_signature_base_string", baseString);
+            problem.setParameter("oauth_signature_base_string", base.toString());
             problem.setParameter("oauth_signature_method", message
                     .getSignatureMethod());
             throw problem;
@@ -133,6 +143,48 @@ public abstract class OAuthSignatureMethod {
     protected abstract boolean isValid(String signature, String baseString)
             throws OAuthException;
 
+    /**
+     * Decide whether the signature is valid, given the base string as ASCII
+     * bytes. Signature methods that work on bytes override this to skip
+     * making the String.
+     */
+    protected boolean isValid(String signature, byte[] baseString, int length)
+            throws OAuthException {
+        return isValid(signature, new String(baseString, 0, length, StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Decide whether the signature is valid for the base string, or for the
+     * base string with its URL scheme switched between http and https.
+     *
+     * @param http
+     *            where the "http" of the scheme starts in the base string
+     * @param secure
+     *            true if the scheme is https, false if http
+     */
+    protected boolean isValidEitherScheme(String signature, byte[] baseString, int length, int http, boolean secure)
+            throws OAuthException {
+        if (isValid(signature, baseString, length)) {
+            return true;
+        }
+        byte[] other = otherScheme(baseString, length, http, secure);
+        return isValid(signature, other, other.length);
+    }
+
+    /** The base string with an https scheme made http, or an http scheme made https. */
+    static byte[] otherScheme(byte[] baseString, int length, int http, boolean secure) {
+        int common = http + "http".length();
+        byte[] other = new byte[secure ? length - 1 : length + 1];
+        System.arraycopy(baseString, 0, other, 0, common);
+        if (secure) {
+            System.arraycopy(baseString, common + 1, other, common, length - common - 1);
+        } else {
+            other[common] = 's';
+            System.arraycopy(baseString, common, other, common + 1, length - common);
+        }
+        return other;
+    }
+
     private String consumerSecret;
 
     private String tokenSecret;
@@ -155,21 +207,7 @@ public abstract class OAuthSignatureMethod {
 
     public static String getBaseString(OAuthMessage message)
             throws IOException, URISyntaxException {
-        List<Map.Entry<String, String>> parameters;
-        String url = message.URL;
-        int q = url.indexOf('?');
-        if (q < 0) {
-            parameters = message.getParameters();
-        } else {
-            // Combine the URL query string with the other parameters:
-            parameters = new ArrayList<Map.Entry<String, String>>();
-            parameters.addAll(OAuth.decodeForm(message.URL.substring(q + 1)));
-            parameters.addAll(message.getParameters());
-            url = url.substring(0, q);
-        }
-        return OAuth.percentEncode(message.method.toUpperCase()) + '&'
-            + OAuth.percentEncode(normalizeUrl(url)) + '&'
-            + OAuth.percentEncode(normalizeParameters(parameters));
+        return BaseStringBuilder.get().build(message).toString();
     }
 
     protected static String normalizeUrl(String url) throws URISyntaxException {
@@ -232,45 +270,86 @@ public abstract class OAuthSignatureMethod {
     /** The factory for signature methods. */
     public static OAuthSignatureMethod newMethod(String name,
             OAuthAccessor accessor) throws OAuthException {
-        try {
-            Class<?> methodClass = NAME_TO_CLASS.get(name);
-            if (methodClass != null) {
-                OAuthSignatureMethod method = (OAuthSignatureMethod) methodClass
-                .newInstance();
-                method.initialize(name, accessor);
-                return method;
-            }
-            OAuthProblemException problem = new OAuthProblemException(OAuth.Problems.SIGNATURE_METHOD_REJECTED);
-            String acceptable = OAuth.percentEncode(NAME_TO_CLASS.keySet());
-            if (acceptable.length() > 0) {
-                problem.setParameter("oauth_acceptable_signature_methods",
-                        acceptable.toString());
-            }
-            throw problem;
-        } catch (InstantiationException e) {
-            throw new OAuthException(e);
-        } catch (IllegalAccessException e) {
-            throw new OAuthException(e);
+        Factory factory = NAME_TO_FACTORY.get(name);
+        if (factory != null) {
+            OAuthSignatureMethod method = factory.newMethod();
+            method.initialize(name, accessor);
+            return method;
         }
+        OAuthProblemException problem = new OAuthProblemException(OAuth.Problems.SIGNATURE_METHOD_REJECTED);
+        String acceptable = OAuth.percentEncode(NAME_TO_FACTORY.keySet());
+        if (acceptable.length() > 0) {
+            problem.setParameter("oauth_acceptable_signature_methods",
+                    acceptable.toString());
+        }
+        throw problem;
+    }
+
+    /** Makes new instances of a signature method. */
+    public interface Factory {
+        OAuthSignatureMethod newMethod() throws OAuthException;
     }
 
     /**
      * Subsequently, newMethod(name) will attempt to instantiate the given
      * class, with no constructor parameters.
      */
-    public static void registerMethodClass(String name, Class<?> clazz) {
-        NAME_TO_CLASS.put(name, clazz);
+    public static void registerMethodClass(String name, final Class<?> clazz) {
+        registerMethodFactory(name, () -> {
+            try {
+                return (OAuthSignatureMethod) clazz.newInstance();
+            } catch (InstantiationException e) {
+                throw new OAuthException(e);
+            } catch (IllegalAccessException e) {
+                throw new OAuthException(e);
+            }
+        });
     }
 
-    @SuppressWarnings("rawtypes")
-	private static final Map<String, Class> NAME_TO_CLASS = new ConcurrentHashMap<String, Class>();
+    /**
+     * Subsequently, newMethod(name) will use the given factory - no
+     * reflection is needed to make a new instance.
+     */
+    public static void registerMethodFactory(String name, Factory factory) {
+        NAME_TO_FACTORY.put(name, factory);
+    }
+
+    private static final Map<String, Factory> NAME_TO_FACTORY = new ConcurrentHashMap<String, Factory>();
     static {
-        registerMethodClass("HMAC-SHA1", HMAC_SHA1.class);
-        registerMethodClass("HMAC-SHA256", HMAC_SHA256.class);
-        registerMethodClass("PLAINTEXT", PLAINTEXT.class);
-        registerMethodClass("RSA-SHA1", RSA_SHA1.class);
-        registerMethodClass("HMAC-SHA1" + _ACCESSOR, HMAC_SHA1.class);
-        registerMethodClass("PLAINTEXT" + _ACCESSOR, PLAINTEXT.class);
+        registerMethodFactory("HMAC-SHA1", HMAC_SHA1::new);
+        registerMethodFactory("HMAC-SHA256", HMAC_SHA256::new);
+        registerMethodFactory("PLAINTEXT", PLAINTEXT::new);
+        registerMethodFactory("RSA-SHA1", RSA_SHA1::new);
+        registerMethodFactory("HMAC-SHA1" + _ACCESSOR, HMAC_SHA1::new);
+        registerMethodFactory("PLAINTEXT" + _ACCESSOR, PLAINTEXT::new);
+    }
+
+    /**
+     * The prefix of the names of the consumer properties holding a pool of
+     * initialized Macs, by MAC algorithm name. The Macs are keyed with the
+     * consumer secret and no token secret.
+     */
+    public static final String HMAC_MACS = "oauth_hmac_macs.";
+
+    /**
+     * Prepare the consumer's HMAC keys and Mac pools, so the signers for its
+     * messages need not derive a key or initialize a Mac for each message.
+     * Call again if the secret changes.
+     */
+    public static void prepareConsumer(OAuthConsumer consumer) {
+        for (String macName : new String[] { HMAC_SHA1.MAC_NAME, HMAC_SHA256.MAC_NAME }) {
+            consumer.setProperty(HMAC_MACS + macName, new MacPool(macName, hmacKey(macName, consumer.consumerSecret, null)));
+        }
+    }
+
+    /** Derive the HMAC key for these secrets. */
+    static SecretKey hmacKey(String macName, String consumerSecret, String tokenSecret) {
+        try {
+            String keyString = OAuth.percentEncode(consumerSecret) + '&' + OAuth.percentEncode(tokenSecret);
+            return new SecretKeySpec(keyString.getBytes(OAuth.ENCODING), macName);
+        } catch (UnsupportedEncodingException wow) {
+            throw new RuntimeException(wow.getMessage(), wow);
+        }
     }
 
     /** An efficiently sortable wrapper around a parameter. */
@@ -22,15 +22,17 @@ import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
+import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.Signature;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.security.spec.EncodedKeySpec;
 import java.security.spec.KeySpec;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.oauth.OAuth;
 import net.oauth.OAuthAccessor;
@@ -89,9 +91,22 @@ public class RSA_SHA1 extends OAuthSignatureMethod {
     final static public String PUBLIC_KEY = "RSA-SHA1.PublicKey";
     final static public String X509_CERTIFICATE = "RSA-SHA1.X509Certificate";
 
-    private PrivateKey privateKey = null;
-    private PublicKey publicKey = null;
-    
+    private static final String ALGORITHM = "SHA1withRSA";
+
+    private SignaturePool signers = null;
+    private SignaturePool verifiers = null;
+
+    /**
+     * Decoded keys, with their pooled Signatures, by consumer and key
+     * fingerprint (or by the key itself, if given decoded). A new signer is
+     * made for every message, and parsing PEM or DER for each would cost
+     * more than the signature.
+     */
+    private static final Map<Object, SignaturePool> KEYS = new ConcurrentHashMap<Object, SignaturePool>();
+
+    /** The most keys to cache; past this the cache starts over, in case keys are being rotated often. */
+    private static final int MAX_CACHED_KEYS = 1000;
+
     @Override
     protected void initialize(String name, OAuthAccessor accessor)
     throws OAuthException {
@@ -100,18 +115,29 @@ public class RSA_SHA1 extends OAuthSignatureMethod {
         // Due to the support of PEM input stream, the keys must be cached. 
         // The stream may not be markable so it can't be read again.
         try {
+            String consumerKey = accessor.consumer.consumerKey;
             Object privateKeyObject = accessor.consumer.getProperty(PRIVATE_KEY);
             if (privateKeyObject != null) {
-                privateKey = loadPrivateKey(privateKeyObject);
+                Object cacheKey = cacheKey(consumerKey, PRIVATE_KEY, privateKeyObject);
+                signers = KEYS.get(cacheKey);
+                if (signers == null) {
+                    signers = SignaturePool.forSigning(ALGORITHM, loadPrivateKey(privateKeyObject));
+                    remember(cacheKey, signers);
+                }
             }
 
             Object publicKeyObject = accessor.consumer.getProperty(PUBLIC_KEY);
+            boolean isCert = false;
+            if (publicKeyObject == null) {  // public key was null. perhaps they gave us a X509 cert.
+                publicKeyObject = accessor.consumer.getProperty(X509_CERTIFICATE);
+                isCert = true;
+            }
             if (publicKeyObject != null) {
-                publicKey = loadPublicKey(publicKeyObject, false);
-            } else {  // public key was null. perhaps they gave us a X509 cert.
-                Object certObject = accessor.consumer.getProperty(X509_CERTIFICATE);
-                if (certObject != null) {
-                    publicKey = loadPublicKey(certObject, true);
+                Object cacheKey = cacheKey(consumerKey, isCert ? X509_CERTIFICATE : PUBLIC_KEY, publicKeyObject);
+                verifiers = KEYS.get(cacheKey);
+                if (verifiers == null) {
+                    verifiers = SignaturePool.forVerifying(ALGORITHM, loadPublicKey(publicKeyObject, isCert));
+                    remember(cacheKey, verifiers);
                 }
             }
         } catch (GeneralSecurityException e) {
@@ -121,6 +147,32 @@ public class RSA_SHA1 extends OAuthSignatureMethod {
         }
     }
 
+    /**
+     * The cache key for this key material: the material itself if it is
+     * already decoded, otherwise the consumer, the kind of material and
+     * its SHA-256 fingerprint.
+     */
+    private static Object cacheKey(String consumerKey, String kind, Object material)
+            throws GeneralSecurityException, UnsupportedEncodingException {
+        byte[] bytes;
+        if (material instanceof String) {
+            bytes = ((String) material).getBytes("UTF-8");
+        } else if (material instanceof byte[]) {
+            bytes = (byte[]) material;
+        } else {
+            return material;
+        }
+        byte[] fingerprint = MessageDigest.getInstance("SHA-256").digest(bytes);
+        return consumerKey + '\n' + kind + '\n' + base64Encode(fingerprint);
+    }
+
+    private static void remember(Object cacheKey, SignaturePool pool) {
+        if (KEYS.size() >= MAX_CACHED_KEYS) {
+            KEYS.clear();
+        }
+        KEYS.put(cacheKey, pool);
+    }
+
     private PublicKey getPublicKeyFromDerCert(byte[] certObject)
             throws GeneralSecurityException {
         CertificateFactory fac = CertificateFactory.getInstance("X509");
@@ -193,7 +245,8 @@ public class RSA_SHA1 extends OAuthSignatureMethod {
     @Override
     protected String getSignature(String baseString) throws OAuthException {
         try {
-            byte[] signature = sign(baseString.getBytes(OAuth.ENCODING));
+            byte[] message = baseString.getBytes(OAuth.ENCODING);
+            byte[] signature = sign(message, message.length);
             return base64Encode(signature);
         } catch (UnsupportedEncodingException e) {
             throw new OAuthException(e);
@@ -206,8 +259,8 @@ public class RSA_SHA1 extends OAuthSignatureMethod {
     protected boolean isValid(String signature, String baseString)
             throws OAuthException {
         try {
-            return verify(decodeBase64(signature),
-                          baseString.getBytes(OAuth.ENCODING));
+            byte[] message = baseString.getBytes(OAuth.ENCODING);
+            return verify(decodeBase64(signature), message, message.length);
         } catch (UnsupportedEncodingException e) {
             throw new OAuthException(e);
         } catch (GeneralSecurityException e) {
@@ -215,29 +268,33 @@ public class RSA_SHA1 extends OAuthSignatureMethod {
         }
     }
 
-    private byte[] sign(byte[] message) throws GeneralSecurityException {
-        if (privateKey == null) {
+    @Override
+    protected boolean isValid(String signature, byte[] baseString, int length)
+            throws OAuthException {
+        try {
+            return verify(decodeBase64(signature), baseString, length);
+        } catch (GeneralSecurityException e) {
+            throw new OAuthException(e);
+        }
+    }
+
+    private byte[] sign(byte[] message, int length) throws GeneralSecurityException {
+        if (signers == null) {
             throw new IllegalStateException("need to set private key with " +
                                             "OAuthConsumer.setProperty when " +
                                             "generating RSA-SHA1 signatures.");
         }
-        Signature signer = Signature.getInstance("SHA1withRSA");
-        signer.initSign(privateKey);
-        signer.update(message);
-        return signer.sign();
+        return signers.sign(message, length);
     }
 
-    private boolean verify(byte[] signature, byte[] message)
+    private boolean verify(byte[] signature, byte[] message, int length)
             throws GeneralSecurityException {
-        if (publicKey == null) {
+        if (verifiers == null) {
             throw new IllegalStateException("need to set public key with " +
                                             " OAuthConsumer.setProperty when " +
                                             "verifying RSA-SHA1 signatures.");
         }
-        Signature verifier = Signature.getInstance("SHA1withRSA");
-        verifier.initVerify(publicKey);
-        verifier.update(message);
-        return verifier.verify(signature);
+        return verifiers.verify(signature, message, length);
     }
     
     /**
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 Etudes, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.oauth.signature;
+
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A pool of Signature instances, all initialized to sign with the same
+ * private key or to verify with the same public key. A Signature goes back
+ * to its initialized state after sign or verify, so it can be reused.
+ */
+class SignaturePool {
+
+    static SignaturePool forSigning(String algorithm, PrivateKey key) {
+        return new SignaturePool(algorithm, key, null);
+    }
+
+    static SignaturePool forVerifying(String algorithm, PublicKey key) {
+        return new SignaturePool(algorithm, null, key);
+    }
+
+    private SignaturePool(String algorithm, PrivateKey privateKey, PublicKey publicKey) {
+        this.algorithm = algorithm;
+        this.privateKey = privateKey;
+        this.publicKey = publicKey;
+    }
+
+    private final String algorithm;
+
+    private final PrivateKey privateKey;
+
+    private final PublicKey publicKey;
+
+    private final Queue<Signature> idle = new ConcurrentLinkedQueue<Signature>();
+
+    /** Sign the message with the pool's private key. */
+    byte[] sign(byte[] message, int length) throws GeneralSecurityException {
+        Signature signer = acquire();
+        try {
+            signer.update(message, 0, length);
+            return signer.sign();
+        } catch (GeneralSecurityException e) {
+            // don't return a Signature in an unknown state
+            signer = null;
+            throw e;
+        } finally {
+            release(signer);
+        }
+    }
+
+    /** Verify the signature of the message with the pool's public key. */
+    boolean verify(byte[] signature, byte[] message, int length) throws GeneralSecurityException {
+        Signature verifier = acquire();
+        try {
+            verifier.update(message, 0, length);
+            return verifier.verify(signature);
+        } catch (GeneralSecurityException e) {
+            verifier = null;
+            throw e;
+        } finally {
+            release(verifier);
+        }
+    }
+
+    private Signature acquire() throws GeneralSecurityException {
+        Signature signature = idle.poll();
+        if (signature == null) {
+            signature = Signature.getInstance(algorithm);
+            if (privateKey != null) {
+                signature.initSign(privateKey);
+            } else {
+                signature.initVerify(publicKey);
+            }
+        }
+        return signature;
+    }
+
+    private void release(Signature signature) {
+        if (signature != null) {
+            idle.offer(signature);
+        }
+    }
+
+}
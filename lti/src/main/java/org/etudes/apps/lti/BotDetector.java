@@ -0,0 +1,231 @@
+/**********************************************************************************
+ *
+ * Copyright (c) 2017 Etudes, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.etudes.apps.lti;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Recognizes bots from a request's user agent, by any of a set of signatures (case sensitive substrings).
+ *
+ * The signatures are compiled into one Aho-Corasick automaton, so a user agent is checked in a single scan no matter how many signatures there are.
+ * Recently seen user agents (launches from a course tend to come from the same few browsers) are remembered, and answered with a lookup.
+ */
+public class BotDetector {
+
+	/** How many recently seen user agents to remember. */
+	protected static final int CACHE_SIZE = 1000;
+
+	/** User agents longer than this are scanned each time, not remembered. */
+	protected static final int MAX_CACHED_LENGTH = 512;
+
+	/** The automaton. */
+	protected final Automaton automaton;
+
+	/** Recent user agents, and if they are from a bot. */
+	protected final Cache<String, Boolean> recent = CacheBuilder.newBuilder().maximumSize(CACHE_SIZE).build();
+
+	/** The signatures, as configured. */
+	protected final List<String> signatures;
+
+	/**
+	 * Construct
+	 *
+	 * @param signatures
+	 *            The bot signatures - a user agent containing any of these is from a bot. Null and empty signatures are ignored.
+	 */
+	public BotDetector(Collection<String> signatures) {
+		List<String> sigs = new ArrayList<>();
+		if (signatures != null) {
+			for (String s : signatures) {
+				if ((s != null) && (!s.isEmpty())) {
+					sigs.add(s);
+				}
+			}
+		}
+		this.signatures = Collections.unmodifiableList(sigs);
+		this.automaton = new Automaton(sigs);
+	}
+
+	/**
+	 * @return The signatures in use.
+	 */
+	public List<String> getSignatures() {
+		return signatures;
+	}
+
+	/**
+	 * Check a user agent.
+	 *
+	 * @param userAgent
+	 *            The request's user agent.
+	 * @return true if the user agent contains any of the signatures, false if not, or if it is missing.
+	 */
+	public boolean isBot(String userAgent) {
+		if (userAgent == null) {
+			return false;
+		}
+
+		if (userAgent.length() > MAX_CACHED_LENGTH) {
+			return automaton.matches(userAgent);
+		}
+
+		Boolean rv = recent.getIfPresent(userAgent);
+		if (rv == null) {
+			rv = automaton.matches(userAgent);
+			recent.put(userAgent, rv);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * An Aho-Corasick automaton for the signatures, with the failure links folded into a full transition table (a DFA), so each character of the text
+	 * costs one table lookup.
+	 *
+	 * The characters used in the signatures are numbered 1..n; all other characters are 0, which from any state leads back to the start.
+	 */
+	protected static class Automaton {
+
+		/** The number (class) of each ASCII character. */
+		protected final int[] asciiClasses = new int[128];
+
+		/** Non-ASCII characters used in the signatures, sorted, and their numbers (classes). */
+		protected final char[] otherChars;
+		protected final int[] otherClasses;
+
+		/** Number of character classes, the width of a row in the table. */
+		protected final int width;
+
+		/** Transitions: the next state for state s on character class c is at s * width + c. */
+		protected final int[] next;
+
+		/** For each state, if reaching it means some signature has been seen. */
+		protected final boolean[] accepting;
+
+		protected Automaton(List<String> signatures) {
+			// number the characters that appear in the signatures
+			TreeSet<Character> chars = new TreeSet<>();
+			int trieSize = 1;
+			for (String s : signatures) {
+				for (int i = 0; i < s.length(); i++) {
+					chars.add(s.charAt(i));
+				}
+				trieSize += s.length();
+			}
+			List<Character> others = new ArrayList<>();
+			int cls = 1;
+			for (Character c : chars) {
+				if (c < 128) {
+					asciiClasses[c] = cls++;
+				} else {
+					others.add(c);
+				}
+			}
+			otherChars = new char[others.size()];
+			otherClasses = new int[others.size()];
+			for (int i = 0; i < others.size(); i++) {
+				otherChars[i] = others.get(i);
+				otherClasses[i] = cls++;
+			}
+			width = cls;
+
+			// the trie of the signatures, -1 for no transition
+			int[] trie = new int[trieSize * width];
+			Arrays.fill(trie, -1);
+			boolean[] ends = new boolean[trieSize];
+			int states = 1;
+			for (String s : signatures) {
+				int state = 0;
+				for (int i = 0; i < s.length(); i++) {
+					int at = state * width + classOf(s.charAt(i));
+					if (trie[at] == -1) {
+						trie[at] = states++;
+					}
+					state = trie[at];
+				}
+				ends[state] = true;
+			}
+
+			// breadth first, fill in the missing transitions from the failure link, which is always a shallower state, already complete
+			next = new int[states * width];
+			accepting = Arrays.copyOf(ends, states);
+			int[] fail = new int[states];
+			ArrayDeque<Integer> queue = new ArrayDeque<>();
+			for (int c = 0; c < width; c++) {
+				int child = trie[c];
+				if (child == -1) {
+					next[c] = 0;
+				} else {
+					next[c] = child;
+					fail[child] = 0;
+					queue.add(child);
+				}
+			}
+			while (!queue.isEmpty()) {
+				int state = queue.poll();
+				accepting[state] |= accepting[fail[state]];
+				for (int c = 0; c < width; c++) {
+					int child = trie[state * width + c];
+					if (child == -1) {
+						next[state * width + c] = next[fail[state] * width + c];
+					} else {
+						next[state * width + c] = child;
+						fail[child] = next[fail[state] * width + c];
+						queue.add(child);
+					}
+				}
+			}
+		}
+
+		/**
+		 * @return true if the text contains any of the signatures.
+		 */
+		protected boolean matches(String text) {
+			if (width == 1) {
+				return false;
+			}
+
+			int state = 0;
+			for (int i = 0; i < text.length(); i++) {
+				state = next[state * width + classOf(text.charAt(i))];
+				if (accepting[state]) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		protected int classOf(char c) {
+			if (c < 128) {
+				return asciiClasses[c];
+			}
+			int i = Arrays.binarySearch(otherChars, c);
+			return (i < 0) ? 0 : otherClasses[i];
+		}
+	}
+}
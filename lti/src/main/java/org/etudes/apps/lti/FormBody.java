@@ -0,0 +1,244 @@
+/**********************************************************************************
+ *
+ * Copyright (c) 2017 Etudes, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+package org.etudes.apps.lti;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.oauth.OAuth;
+
+/**
+ * FormBody is an application/x-www-form-urlencoded request body, decoded in one pass as it streams in. The same parameters serve OAuth signature checking
+ * and the launch's form fields, so the body is parsed only once.
+ */
+public class FormBody {
+
+	/**
+	 * The decoder's buffers, reused by each thread for the bodies it reads.
+	 */
+	protected static class Decoder {
+		protected byte[] input = new byte[INPUT_SIZE];
+		protected byte[] token = new byte[TOKEN_SIZE];
+	}
+
+	/** How much of the body to read at a time. */
+	protected final static int INPUT_SIZE = 8 * 1024;
+
+	/** Tokens that grow past this have their buffer dropped, so one huge value doesn't pin memory. */
+	protected final static int MAX_RETAINED_TOKEN = 64 * 1024;
+
+	protected final static int TOKEN_SIZE = 1024;
+
+	protected final static ThreadLocal<Decoder> decoders = ThreadLocal.withInitial(Decoder::new);
+
+	/**
+	 * Decode a form body from a string.
+	 * 
+	 * @param body
+	 *            The body, form encoded (may be null).
+	 * @return The FormBody.
+	 */
+	public static FormBody parse(String body) {
+		if (body == null) {
+			return new FormBody();
+		}
+
+		try {
+			return read(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), null);
+		} catch (IOException e) {
+			// not from a byte array
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Decode a form body as it is read from the stream. Names and values are percent and '+' decoded; fields without an '=' are skipped. A malformed
+	 * percent escape is taken literally.
+	 * 
+	 * @param in
+	 *            The body stream.
+	 * @param encoding
+	 *            The request's character encoding, or null for UTF-8.
+	 * @return The FormBody.
+	 * @throws IOException
+	 *             if the stream can't be read.
+	 */
+	public static FormBody read(InputStream in, String encoding) throws IOException {
+		Charset charset = StandardCharsets.UTF_8;
+		if (encoding != null) {
+			try {
+				charset = Charset.forName(encoding);
+			} catch (IllegalArgumentException e) {
+			}
+		}
+
+		FormBody rv = new FormBody();
+		if (in == null) {
+			return rv;
+		}
+
+		Decoder decoder = decoders.get();
+		byte[] input = decoder.input;
+		byte[] token = decoder.token;
+		int length = 0;
+		String name = null;
+
+		// 0 - not in an escape, 1 - after the %, 2 - after the first hex digit
+		int escape = 0;
+		int high = 0;
+		byte highDigit = 0;
+
+		int read;
+		while ((read = in.read(input)) != -1) {
+			for (int i = 0; i < read; i++) {
+				byte b = input[i];
+
+				if (escape == 1) {
+					high = hex(b);
+					highDigit = b;
+					if (high >= 0) {
+						escape = 2;
+						continue;
+					}
+					// not an escape after all
+					token = ensure(token, length, 1);
+					token[length++] = '%';
+					escape = 0;
+				} else if (escape == 2) {
+					int low = hex(b);
+					if (low >= 0) {
+						token = ensure(token, length, 1);
+						token[length++] = (byte) ((high << 4) | low);
+						escape = 0;
+						continue;
+					}
+					token = ensure(token, length, 2);
+					token[length++] = '%';
+					token[length++] = highDigit;
+					escape = 0;
+				}
+
+				if (b == '&') {
+					if (name != null) {
+						rv.add(name, new String(token, 0, length, charset));
+					}
+					name = null;
+					length = 0;
+				} else if (b == '=' && name == null) {
+					name = new String(token, 0, length, charset);
+					length = 0;
+				} else if (b == '%') {
+					escape = 1;
+				} else {
+					token = ensure(token, length, 1);
+					token[length++] = (b == '+') ? (byte) ' ' : b;
+				}
+			}
+		}
+
+		// an escape cut off by the end of the body is taken literally
+		if (escape > 0) {
+			token = ensure(token, length, 2);
+			token[length++] = '%';
+			if (escape == 2) {
+				token[length++] = highDigit;
+			}
+		}
+		if (name != null) {
+			rv.add(name, new String(token, 0, length, charset));
+		}
+
+		decoder.token = (token.length > MAX_RETAINED_TOKEN) ? new byte[TOKEN_SIZE] : token;
+
+		return rv;
+	}
+
+	protected static byte[] ensure(byte[] buffer, int used, int needed) {
+		if (used + needed <= buffer.length) {
+			return buffer;
+		}
+		byte[] bigger = new byte[Math.max(buffer.length * 2, used + needed)];
+		System.arraycopy(buffer, 0, bigger, 0, used);
+		return bigger;
+	}
+
+	protected static int hex(byte b) {
+		if (b >= '0' && b <= '9') {
+			return b - '0';
+		}
+		if (b >= 'a' && b <= 'f') {
+			return b - 'a' + 10;
+		}
+		if (b >= 'A' && b <= 'F') {
+			return b - 'A' + 10;
+		}
+		return -1;
+	}
+
+	/** The first value for each name. */
+	protected final Map<String, String> fields = new HashMap<>();
+
+	/** All the parameters, in body order. */
+	protected final List<Map.Entry<String, String>> parameters = new ArrayList<>();
+
+	/**
+	 * Get the value of a field.
+	 * 
+	 * @param name
+	 *            The field name.
+	 * @return The (first) value of the field, or null if it is not in the body.
+	 */
+	public String get(String name) {
+		return fields.get(name);
+	}
+
+	/**
+	 * @return All the name value pairs, in the order they are in the body.
+	 */
+	public List<Map.Entry<String, String>> getParameters() {
+		return Collections.unmodifiableList(parameters);
+	}
+
+	/**
+	 * @return The body, form encoded again (for logging).
+	 */
+	@Override
+	public String toString() {
+		StringBuilder rv = new StringBuilder();
+		for (Map.Entry<String, String> p : parameters) {
+			if (rv.length() > 0) {
+				rv.append('&');
+			}
+			rv.append(OAuth.percentEncode(p.getKey())).append('=').append(OAuth.percentEncode(p.getValue()));
+		}
+		return rv.toString();
+	}
+
+	protected void add(String name, String value) {
+		parameters.add(new OAuth.Parameter(name, value));
+		fields.putIfAbsent(name, value);
+	}
+}
@@ -0,0 +1,49 @@
+/**********************************************************************************
+ *
+ * Copyright (c) 2017 Etudes, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+package org.etudes.apps.lti;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import lombok.Data;
+
+/**
+ * LTI launch settings, from the "lti" section of the application configuration.
+ */
+@Data
+public class LTIConfiguration {
+
+	/**
+	 * Take the launch URL's scheme from the X-Forwarded-Proto header set by our load balancer, and check the signature for that scheme only. If false, a
+	 * signature made for either the http or https URL is accepted. Only set if the load balancer always sets (or strips) the header.
+	 */
+	protected boolean trustForwardedProto = false;
+
+	/**
+	 * The shared secret for launches to subscriptions with no LTI consumer set up of their own - null to refuse those launches.
+	 */
+	protected String defaultSecret = null;
+
+	/**
+	 * Launches from a user agent containing any of these (case sensitive) are taken to be from a bot, and refused. see:
+	 * https://www.keycdn.com/blog/web-crawlers/
+	 */
+	protected List<String> botSignatures = new ArrayList<>(Arrays.asList("Googlebot", "Mediapartners-Google", "AdsBot-Google", "Bingbot", "Yahoo! Slurp",
+			"DuckDuckBot", "Baiduspider", "YandexBot", "Sogou", "Exabot", "ia_archiver"));
+}
@@ -0,0 +1,59 @@
+/**********************************************************************************
+ *
+ * Copyright (c) 2017 Etudes, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+package org.etudes.apps.lti;
+
+import java.util.Optional;
+
+import org.etudes.apps.db.DB.Holder;
+import org.etudes.apps.lti.model.LTIConsumer;
+import org.jvnet.hk2.annotations.Contract;
+
+import net.oauth.OAuthAccessor;
+
+@Contract
+public interface LTIConsumerService {
+
+	/**
+	 * Get the OAuth accessor for validating launches from this subscription's consumer, with the signing keys prepared. A subscription with no consumer set
+	 * up uses the configured default secret, if there is one.
+	 * 
+	 * @param subscriptionId
+	 *            The subscription id.
+	 * @param accessor
+	 *            Set to the accessor, or left empty if the subscription has no consumer (and there is no default secret).
+	 * @return true if found or known to be missing, false if the consumer could not be read (the db is not available).
+	 */
+	boolean getAccessor(Long subscriptionId, Holder<OAuthAccessor> accessor);
+
+	/**
+	 * Get the consumer for this subscription.
+	 * 
+	 * @param subscriptionId
+	 *            The subscription id.
+	 * @return The consumer, or not if the subscription has none, or it could not be read.
+	 */
+	Optional<LTIConsumer> getConsumer(Long subscriptionId);
+
+	/**
+	 * Save changes to this consumer. Launches on this server use the change at once; other servers pick it up within a minute.
+	 * 
+	 * @param consumer
+	 *            The consumer to save.
+	 */
+	void saveConsumer(LTIConsumer consumer);
+}
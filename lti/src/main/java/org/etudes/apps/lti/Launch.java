@@ -18,9 +18,8 @@
 
 package org.etudes.apps.lti;
 
-import java.net.URLDecoder;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -29,16 +28,57 @@ import javax.servlet.http.HttpServletRequest;
 
 import net.oauth.OAuth;
 import net.oauth.OAuthAccessor;
+import net.oauth.NonceStore;
 import net.oauth.OAuthConsumer;
 import net.oauth.OAuthMessage;
 import net.oauth.OAuthProblemException;
 import net.oauth.OAuthValidator;
 import net.oauth.SimpleOAuthValidator;
-import net.oauth.server.OAuthServlet;
 
 public class Launch {
 	// final static private Logger logger = LoggerFactory.getLogger(Launch.class);
 
+	/** The header our load balancer uses to tell us the scheme of the original request. */
+	protected static final String FORWARDED_PROTO = "X-Forwarded-Proto";
+
+	/** The validator - checks version, timestamp, signature and (if we have a nonce store) nonce. */
+	protected final OAuthValidator oav;
+
+	/** If true, the launch URL scheme is taken from the X-Forwarded-Proto header. */
+	protected final boolean trustForwardedProto;
+
+	/**
+	 * Construct, not checking for replayed nonces.
+	 */
+	public Launch() {
+		this(null);
+	}
+
+	/**
+	 * Construct, refusing launches that replay a nonce already recorded in the store.
+	 * 
+	 * @param nonces
+	 *            The nonce store.
+	 */
+	public Launch(NonceStore nonces) {
+		this(nonces, false);
+	}
+
+	/**
+	 * Construct, refusing launches that replay a nonce already recorded in the store.
+	 * 
+	 * @param nonces
+	 *            The nonce store.
+	 * @param trustForwardedProto
+	 *            if true, take the launch URL scheme from the X-Forwarded-Proto header and check the signature for that scheme only, otherwise accept
+	 *            a signature for either http or https.
+	 */
+	public Launch(NonceStore nonces, boolean trustForwardedProto) {
+		this.trustForwardedProto = trustForwardedProto;
+		this.oav = new SimpleOAuthValidator(SimpleOAuthValidator.DEFAULT_TIMESTAMP_WINDOW, Double.parseDouble(OAuth.VERSION_1_0), nonces,
+				!trustForwardedProto);
+	}
+
 	/**
 	 * Validate the signature. Return empty if GOOD, otherwise an error message about why it was bad.
 	 * 
@@ -49,53 +89,109 @@ public class Launch {
 	 * @return empty if GOOD, otherwise an error message about why it was bad.
 	 */
 	public Optional<String> validSignature(HttpServletRequest req, String key, String secret, String postBody) {
+		OAuthConsumer cons = new OAuthConsumer("about:blank#OAuth+CallBack+NotUsed", key, secret, null);
 
-		String URL = req.getRequestURL().toString();
+		return validSignature(req, new OAuthAccessor(cons), postBody);
+	}
 
-		OAuthMessage oam = OAuthServlet.getMessage(req, URL);
+	/**
+	 * Validate the signature against an accessor whose consumer may already have its signing keys prepared. Return empty if GOOD, otherwise an error
+	 * message about why it was bad.
+	 * 
+	 * @param req
+	 * @param accessor
+	 * @param postBody
+	 * @return empty if GOOD, otherwise an error message about why it was bad.
+	 */
+	public Optional<String> validSignature(HttpServletRequest req, OAuthAccessor accessor, String postBody) {
+		return validSignature(req, accessor, FormBody.parse(postBody));
+	}
 
-		// put all the body 'form fields' into the parameters
-		oam.addParameters(loadBody(postBody));
+	/**
+	 * Validate the signature of a launch whose body has already been decoded. Return empty if GOOD, otherwise an error message about why it was bad.
+	 * 
+	 * @param req
+	 * @param accessor
+	 * @param body
+	 * @return empty if GOOD, otherwise an error message about why it was bad.
+	 */
+	public Optional<String> validSignature(HttpServletRequest req, OAuthAccessor accessor, FormBody body) {
+		return validate(req, accessor, body).map(problem -> problem.getMessage() + " " + problem.getParameters());
+	}
 
-		OAuthValidator oav = new SimpleOAuthValidator();
-		OAuthConsumer cons = new OAuthConsumer("about:blank#OAuth+CallBack+NotUsed", key, secret, null);
+	/**
+	 * Validate a launch whose body has already been decoded. Return empty if GOOD, otherwise the problem - a temporarily_unavailable problem means the launch
+	 * could not be checked just now, and may be sent again.
+	 * 
+	 * @param req
+	 * @param accessor
+	 * @param body
+	 * @return empty if GOOD, otherwise the problem.
+	 */
+	public Optional<OAuthProblemException> validate(HttpServletRequest req, OAuthAccessor accessor, FormBody body) {
 
-		OAuthAccessor acc = new OAuthAccessor(cons);
+		String URL = requestUrl(req);
+
+		OAuthMessage oam = new OAuthMessage(req.getMethod(), URL, messageParameters(req, body));
 
 		try {
-			oav.validateMessage(oam, acc);
+			oav.validateMessage(oam, accessor);
 			return Optional.empty();
+		} catch (OAuthProblemException e) {
+			return Optional.of(e);
 		} catch (Exception e) {
-			// logger.info("validSignature: " + e.getMessage() + " " + ((OAuthProblemException) e).getParameters());
-			return Optional.of(e.getMessage() + " " + ((OAuthProblemException) e).getParameters());
+			OAuthProblemException problem = new OAuthProblemException(OAuth.Problems.PARAMETER_REJECTED);
+			problem.setParameter(OAuth.Problems.OAUTH_PROBLEM_ADVICE, e.toString());
+			return Optional.of(problem);
 		}
 	}
 
-	protected List<Map.Entry<String, String>> loadBody(String postBody) {
-		final List<Map.Entry<String, String>> parameters = new ArrayList<>();
-		if (postBody == null)
-			return parameters;
+	/**
+	 * Collect the OAuth message parameters: any from an OAuth Authorization header, then the query string, then the body 'form fields'.
+	 * 
+	 * @param req
+	 *            The request.
+	 * @param body
+	 *            The decoded body.
+	 * @return The parameters.
+	 */
+	protected List<Map.Entry<String, String>> messageParameters(HttpServletRequest req, FormBody body) {
+		List<Map.Entry<String, String>> parameters = new ArrayList<>(body.getParameters().size() + 8);
 
-		String[] fields = postBody.split("&");
-		Arrays.stream(fields).forEach(f -> {
+		for (Enumeration<String> headers = req.getHeaders("Authorization"); headers != null && headers.hasMoreElements();) {
+			for (OAuth.Parameter parameter : OAuthMessage.decodeAuthorization(headers.nextElement())) {
+				if (!"realm".equalsIgnoreCase(parameter.getKey())) {
+					parameters.add(parameter);
+				}
+			}
+		}
 
-			// only split on the first = found - some values may have an = character inside
-			String[] nameValue = f.split("=", 2);
+		String query = req.getQueryString();
+		if (query != null) {
+			parameters.addAll(OAuth.decodeForm(query));
+		}
 
-			// only if we have a full name=value
-			if (nameValue.length > 1) {
+		parameters.addAll(body.getParameters());
 
-				// decode the value
-				String value = nameValue[1];
-				try {
-					value = URLDecoder.decode(value, OAuth.ENCODING);
-				} catch (java.io.UnsupportedEncodingException e) {
-				}
+		return parameters;
+	}
 
-				parameters.add(new OAuth.Parameter(nameValue[0], value));
+	/**
+	 * The URL of the request, as the consumer saw it.
+	 * 
+	 * @param req
+	 *            The request.
+	 * @return The URL, with the scheme from X-Forwarded-Proto if we trust it.
+	 */
+	protected String requestUrl(HttpServletRequest req) {
+		String URL = req.getRequestURL().toString();
+		if (trustForwardedProto) {
+			String proto = req.getHeader(FORWARDED_PROTO);
+			if ("http".equalsIgnoreCase(proto) || "https".equalsIgnoreCase(proto)) {
+				URL = proto.toLowerCase() + URL.substring(URL.indexOf(':'));
 			}
-		});
+		}
 
-		return parameters;
+		return URL;
 	}
 }
@@ -0,0 +1,45 @@
+/**********************************************************************************
+ *
+ * Copyright (c) 2017 Etudes, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+package org.etudes.apps.lti.data;
+
+import org.etudes.apps.db.DB.Holder;
+import org.etudes.apps.lti.model.LTIConsumer;
+import org.jvnet.hk2.annotations.Contract;
+
+@Contract
+public interface LTIConsumerData {
+
+	/**
+	 * Create or update the consumer.
+	 * 
+	 * @param consumer
+	 *            The consumer.
+	 */
+	void createOrUpdateConsumer(LTIConsumer consumer);
+
+	/**
+	 * Read the consumer for this subscription.
+	 * 
+	 * @param subscriptionId
+	 *            The subscription id.
+	 * @param consumer
+	 *            Set to the consumer, or left empty if the subscription has none.
+	 * @return true if read, false if the db could not be read (and we don't know if the subscription has a consumer).
+	 */
+	boolean readConsumer(Long subscriptionId, Holder<LTIConsumer> consumer);
+}
@@ -0,0 +1,104 @@
+/**********************************************************************************
+ *
+ * Copyright (c) 2017 Etudes, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+package org.etudes.apps.lti.impl;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Optional;
+
+import javax.inject.Inject;
+
+import org.etudes.apps.db.DB;
+import org.etudes.apps.db.DB.Holder;
+import org.etudes.apps.lti.data.LTIConsumerData;
+import org.etudes.apps.lti.model.LTIConsumer;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.tweak.ResultSetMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class LTIConsumerDataJDBIImpl implements LTIConsumerData {
+
+	/**
+	 * Map a result set to an LTIConsumer object.
+	 */
+	protected class LTIConsumerMapper implements ResultSetMapper<LTIConsumer> {
+		@Override
+		public LTIConsumer map(int index, ResultSet r, StatementContext ctx) throws SQLException {
+			LTIConsumer rv = new LTIConsumer(r.getLong("subscription"), r.getString("secret"));
+			return rv;
+		}
+	}
+
+	final static private Logger logger = LoggerFactory.getLogger(LTIConsumerDataJDBIImpl.class);
+
+	protected DB db = null;
+
+	@Inject
+	public LTIConsumerDataJDBIImpl(DB db) {
+		this.db = db;
+		logger.info("LTIConsumerDataJDBIImpl() with DB: " + this.db);
+
+		if (db.isAutoDdl()) {
+			createTables();
+		}
+	}
+
+	@Override
+	public void createOrUpdateConsumer(LTIConsumer consumer) {
+		db.transact(h -> {
+			int updated = h.createStatement("update lti_consumer set secret = :secret where subscription = :subscription") //
+					.bind("secret", consumer.getSecret()) //
+					.bind("subscription", consumer.getSubscriptionId()) //
+					.execute();
+
+			if (updated == 0) {
+				h.createStatement("insert into lti_consumer (subscription, secret) values (:subscription, :secret)") //
+						.bind("subscription", consumer.getSubscriptionId()) //
+						.bind("secret", consumer.getSecret()) //
+						.execute();
+			}
+		});
+	}
+
+	@Override
+	public boolean readConsumer(Long subscriptionId, Holder<LTIConsumer> consumer) {
+		consumer.value = Optional.empty();
+
+		return db.read(h -> {
+			LTIConsumer found = h.createQuery("select subscription, secret from lti_consumer where subscription = :subscription") //
+					.bind("subscription", subscriptionId) //
+					.map(new LTIConsumerMapper()) //
+					.first();
+
+			consumer.value = Optional.ofNullable(found);
+		});
+	}
+
+	/**
+	 * Create our table if needed.
+	 */
+	protected void createTables() {
+		db.schedule(h -> {
+			h.execute("create table if not exists lti_consumer (" //
+					+ "subscription bigint unsigned not null primary key," //
+					+ "secret varchar (255) not null" //
+					+ ")");
+		});
+	}
+}
@@ -0,0 +1,116 @@
+/**********************************************************************************
+ *
+ * Copyright (c) 2017 Etudes, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+package org.etudes.apps.lti.impl;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+
+import org.etudes.apps.db.DB.Holder;
+import org.etudes.apps.lti.LTIConfiguration;
+import org.etudes.apps.lti.LTIConsumerService;
+import org.etudes.apps.lti.data.LTIConsumerData;
+import org.etudes.apps.lti.model.LTIConsumer;
+import org.jvnet.hk2.annotations.Service;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import net.oauth.OAuthAccessor;
+import net.oauth.OAuthConsumer;
+import net.oauth.signature.OAuthSignatureMethod;
+
+@Service
+public class LTIConsumerServiceImpl implements LTIConsumerService {
+	final static private Logger logger = LoggerFactory.getLogger(LTIConsumerServiceImpl.class);
+
+	/** How long, in seconds, a prepared accessor is used before the consumer is read again - picks up changes made on other servers. */
+	protected static long CACHE_TTL_SECONDS = 60;
+
+	/** The callback URL for our consumers - not used for launches. */
+	protected static final String CALLBACK_URL = "about:blank#OAuth+CallBack+NotUsed";
+
+	/** Prepared accessors by subscription id. */
+	protected Cache<Long, OAuthAccessor> accessors = CacheBuilder.newBuilder().expireAfterWrite(CACHE_TTL_SECONDS, TimeUnit.SECONDS).build();
+
+	/** Data access */
+	protected LTIConsumerData data = null;
+
+	/** The secret for subscriptions with no consumer of their own, or null. */
+	protected String defaultSecret = null;
+
+	/**
+	 * Create the LTI consumer service
+	 * 
+	 * @param data
+	 *            The LTIConsumerData object that interfaces with the persisted consumer data.
+	 * @param config
+	 *            The LTI configuration, for the default secret.
+	 */
+	@Inject
+	public LTIConsumerServiceImpl(LTIConsumerData data, LTIConfiguration config) {
+		this.data = data;
+		this.defaultSecret = config.getDefaultSecret();
+		logger.info("LTIConsumerService:  data = " + this.data + " default secret: " + (this.defaultSecret != null));
+	}
+
+	@Override
+	public boolean getAccessor(Long subscriptionId, Holder<OAuthAccessor> accessor) {
+		OAuthAccessor cached = accessors.getIfPresent(subscriptionId);
+		if (cached != null) {
+			accessor.value = Optional.of(cached);
+			return true;
+		}
+
+		accessor.value = Optional.empty();
+
+		// if we can't read, we don't know - don't take it as missing
+		Holder<LTIConsumer> consumer = new Holder<>();
+		if (!data.readConsumer(subscriptionId, consumer))
+			return false;
+
+		String secret = consumer.value.map(LTIConsumer::getSecret).orElse(defaultSecret);
+		if (secret == null)
+			return true;
+
+		// prepare the signing material once, for all launches from this consumer
+		OAuthConsumer cons = new OAuthConsumer(CALLBACK_URL, subscriptionId.toString(), secret, null);
+		OAuthSignatureMethod.prepareConsumer(cons);
+		OAuthAccessor rv = new OAuthAccessor(cons);
+
+		accessors.put(subscriptionId, rv);
+		accessor.value = Optional.of(rv);
+		return true;
+	}
+
+	@Override
+	public Optional<LTIConsumer> getConsumer(Long subscriptionId) {
+		Holder<LTIConsumer> rv = new Holder<>();
+		data.readConsumer(subscriptionId, rv);
+		return rv.value;
+	}
+
+	@Override
+	public void saveConsumer(LTIConsumer consumer) {
+		data.createOrUpdateConsumer(consumer);
+		accessors.invalidate(consumer.getSubscriptionId());
+	}
+}
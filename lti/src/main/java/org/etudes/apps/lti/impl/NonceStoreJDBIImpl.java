@@ -0,0 +1,150 @@
+/**********************************************************************************
+ *
+ * Copyright (c) 2017 Etudes, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.etudes.apps.lti.impl;
+
+import java.sql.SQLException;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+
+import org.etudes.apps.db.DB;
+import org.etudes.apps.db.DB.Holder;
+import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.oauth.NonceStore;
+import net.oauth.OAuth;
+import net.oauth.OAuthProblemException;
+import net.oauth.SimpleOAuthValidator;
+
+/**
+ * A NonceStore in the database, so that all servers share the used nonces.
+ */
+public class NonceStoreJDBIImpl implements NonceStore {
+
+	final static private Logger logger = LoggerFactory.getLogger(NonceStoreJDBIImpl.class);
+
+	/** The longest consumer key and nonce the table holds. */
+	protected final static int MAX_LENGTH = 255;
+
+	/** How often, in milliseconds, we delete the expired nonces. */
+	protected final static long PURGE_INTERVAL = 60 * 1000L;
+
+	protected DB db = null;
+
+	/** When we last deleted the expired nonces. */
+	protected final AtomicLong lastPurge = new AtomicLong(System.currentTimeMillis());
+
+	@Inject
+	public NonceStoreJDBIImpl(DB db) {
+		this.db = db;
+
+		logger.info("NonceStoreJDBIImpl() with DB: " + this.db);
+
+		if (db.isAutoDdl()) {
+			createTables();
+		}
+	}
+
+	@Override
+	public boolean add(String consumerKey, String nonce, long timestampMsec) throws OAuthProblemException {
+
+		// too long to record, so we could never tell if it was used
+		if ((consumerKey.length() > MAX_LENGTH) || (nonce.length() > MAX_LENGTH)) {
+			OAuthProblemException problem = new OAuthProblemException(OAuth.Problems.PARAMETER_REJECTED);
+			problem.setParameter(OAuth.Problems.OAUTH_PARAMETERS_REJECTED, (nonce.length() > MAX_LENGTH) ? OAuth.OAUTH_NONCE : OAuth.OAUTH_CONSUMER_KEY);
+			throw problem;
+		}
+
+		Holder<Boolean> rv = new Holder<>();
+
+		purge();
+
+		db.transact(h -> {
+			// the unique key refuses a used nonce - any other failure goes to transact, to retry or fail
+			try {
+				h.createStatement("insert into oauth_nonce (consumer_key, nonce, timestamp) values (:consumer_key, :nonce, :timestamp)") //
+						.bind("consumer_key", consumerKey) //
+						.bind("nonce", nonce) //
+						.bind("timestamp", timestampMsec) //
+						.execute();
+				rv.value = Optional.of(Boolean.TRUE);
+			} catch (UnableToExecuteStatementException e) {
+				if (!isIntegrityViolation(e))
+					throw e;
+				rv.value = Optional.of(Boolean.FALSE);
+			}
+		});
+
+		// we don't know if the nonce was used - the db is down, or failed
+		if (!rv.value.isPresent()) {
+			logger.warn("add: could not check nonce: " + consumerKey);
+			throw new OAuthProblemException(OAuth.Problems.TEMPORARILY_UNAVAILABLE);
+		}
+
+		return rv.value.get();
+	}
+
+	/**
+	 * Create our tables if needed.
+	 */
+	protected void createTables() {
+		db.schedule(h -> {
+			h.execute("create table if not exists oauth_nonce (" //
+					+ "consumer_key varchar (255) not null," //
+					+ "nonce varchar (255) not null," //
+					+ "timestamp bigint not null," //
+					+ "primary key (consumer_key, nonce)," //
+					+ "key oauth_nonce_t (timestamp)" //
+					+ ")");
+		});
+	}
+
+	/**
+	 * Check if a statement failed for an integrity constraint (SQLState class 23), such as the unique key.
+	 * 
+	 * @param e
+	 *            The exception.
+	 * @return true if an integrity constraint failed, false for any other failure.
+	 */
+	protected boolean isIntegrityViolation(UnableToExecuteStatementException e) {
+		if (!(e.getCause() instanceof SQLException))
+			return false;
+
+		String state = ((SQLException) e.getCause()).getSQLState();
+		return (state != null) && state.startsWith("23");
+	}
+
+	/**
+	 * Delete the nonces too old to hold an acceptable timestamp, at most once per PURGE_INTERVAL.
+	 */
+	protected void purge() {
+		long now = System.currentTimeMillis();
+		long last = lastPurge.get();
+		if ((now - last > PURGE_INTERVAL) && lastPurge.compareAndSet(last, now)) {
+			db.transactAsync(h -> {
+				h.createStatement("delete from oauth_nonce where timestamp < :expired") //
+						.bind("expired", now - SimpleOAuthValidator.DEFAULT_TIMESTAMP_WINDOW) //
+						.execute();
+			});
+		}
+	}
+}
@@ -0,0 +1,37 @@
+/**********************************************************************************
+ *
+ * Copyright (c) 2017 Etudes, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+package org.etudes.apps.lti.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * LTIConsumer models the LTI consumer (i.e. Canvas) set up for a subscription - the key is the subscription id, the secret is shared with the consumer.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class LTIConsumer {
+
+	/** The subscription id - also the LTI consumer key. */
+	protected Long subscriptionId;
+
+	/** The LTI shared secret. */
+	protected String secret;
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 Etudes, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.oauth;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+/**
+ * Test ConsumerProperties.
+ */
+public class ConsumerPropertiesTest {
+
+    private static Properties properties() {
+        Properties p = new Properties();
+        p.setProperty("a.consumerKey", "keyA");
+        p.setProperty("a.consumerSecret", "secretA");
+        p.setProperty("a.consumer.color", "red");
+        p.setProperty("a.consumer.b.consumer.size", "large");
+        p.setProperty("a.consumer.b.consumerKey", "keyAB");
+        p.setProperty("ab.consumer.color", "blue");
+        p.setProperty(".consumer.color", "none");
+        p.setProperty("x.serviceProvider.baseURL", "http://example.com/oauth/");
+        p.setProperty("x.serviceProvider.requestTokenURL", "request");
+        p.setProperty("x.serviceProvider.userAuthorizationURL", "authorize");
+        p.setProperty("x.serviceProvider.accessTokenURL", "access");
+        return p;
+    }
+
+    @Test
+    public void testProperties() throws Exception {
+        ConsumerProperties consumers = new ConsumerProperties(properties());
+
+        OAuthConsumer a = consumers.getConsumer("a");
+        Assertions.assertThat(a.consumerKey).isEqualTo("keyA");
+        Assertions.assertThat(a.consumerSecret).isEqualTo("secretA");
+        Assertions.assertThat(a.getProperty("name")).isEqualTo("a");
+        Assertions.assertThat(a.getProperty("color")).isEqualTo("red");
+        Assertions.assertThat(a.getProperty("b.consumer.size")).isEqualTo("large");
+        Assertions.assertThat(consumers.getConsumer("a")).isSameAs(a);
+
+        // a name that is a prefix of another, or that contains .consumer.
+        Assertions.assertThat(consumers.getConsumer("ab").getProperty("color")).isEqualTo("blue");
+        OAuthConsumer ab = consumers.getConsumer("a.consumer.b");
+        Assertions.assertThat(ab.consumerKey).isEqualTo("keyAB");
+        Assertions.assertThat(ab.getProperty("size")).isEqualTo("large");
+        Assertions.assertThat(ab.getProperty("color")).isNull();
+        Assertions.assertThat(consumers.getConsumer("").getProperty("color")).isEqualTo("none");
+
+        OAuthConsumer x = consumers.getConsumer("x");
+        Assertions.assertThat(x.serviceProvider.accessTokenURL).isEqualTo("http://example.com/oauth/access");
+        Assertions.assertThat(consumers.getConsumer("missing").consumerKey).isNull();
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        ConsumerProperties consumers = new ConsumerProperties(properties());
+        OAuthConsumer a = consumers.getConsumer("a");
+
+        Properties changed = properties();
+        changed.setProperty("a.consumerSecret", "newSecret");
+        consumers.reload(changed);
+
+        OAuthConsumer reloaded = consumers.getConsumer("a");
+        Assertions.assertThat(reloaded).isNotSameAs(a);
+        Assertions.assertThat(reloaded.consumerSecret).isEqualTo("newSecret");
+        Assertions.assertThat(a.consumerSecret).isEqualTo("secretA");
+    }
+
+    @Test
+    public void testNewConsumerOverride() throws Exception {
+        final List<String> made = new ArrayList<>();
+        ConsumerProperties consumers = new ConsumerProperties(properties()) {
+            @Override
+            protected OAuthConsumer newConsumer(String name) throws MalformedURLException {
+                made.add(name);
+                OAuthConsumer consumer = super.newConsumer(name);
+                consumer.setProperty("made", Boolean.TRUE);
+                return consumer;
+            }
+        };
+
+        Assertions.assertThat(consumers.getConsumer("a").getProperty("made")).isEqualTo(Boolean.TRUE);
+        consumers.getConsumer("a");
+        consumers.getConsumer("ab");
+        Assertions.assertThat(made).containsExactly("a", "ab");
+    }
+
+    @Test(expected = MalformedURLException.class)
+    public void testMalformedURL() throws Exception {
+        Properties p = properties();
+        p.setProperty("bad.serviceProvider.baseURL", "nope:/x");
+        new ConsumerProperties(p).getConsumer("bad");
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 Etudes, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.oauth;
+
+import java.util.ArrayList;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+/**
+ * Test the MemoryNonceStore, and the validator's use of a nonce store.
+ */
+public class MemoryNonceStoreTest {
+
+    /** A store with a clock we set. */
+    static class ClockedStore extends MemoryNonceStore {
+        long now = 1000000000000L;
+
+        ClockedStore() {
+            super(SimpleOAuthValidator.DEFAULT_TIMESTAMP_WINDOW);
+        }
+
+        @Override
+        protected long currentTimeMsec() {
+            return now;
+        }
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        MemoryNonceStore store = new MemoryNonceStore();
+        long now = System.currentTimeMillis();
+
+        Assertions.assertThat(store.add("key", "nonce", now)).isTrue();
+        Assertions.assertThat(store.add("key", "nonce", now)).isFalse();
+
+        // in another bucket, still used
+        Assertions.assertThat(store.add("key", "nonce", now + 1)).isFalse();
+
+        // the same nonce from another consumer, or another nonce, is new
+        Assertions.assertThat(store.add("other", "nonce", now)).isTrue();
+        Assertions.assertThat(store.add("key", "nonce2", now)).isTrue();
+
+        // the key and nonce don't run together
+        Assertions.assertThat(store.add("a", "b\nc", now)).isTrue();
+        Assertions.assertThat(store.add("a\nb", "c", now)).isTrue();
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        ClockedStore store = new ClockedStore();
+
+        Assertions.assertThat(store.add("key", "old", store.now)).isTrue();
+        Assertions.assertThat(store.size()).isEqualTo(1);
+
+        // still within the window, remembered
+        store.now += SimpleOAuthValidator.DEFAULT_TIMESTAMP_WINDOW / 2;
+        Assertions.assertThat(store.add("key", "new", store.now)).isTrue();
+        Assertions.assertThat(store.size()).isEqualTo(2);
+
+        // once out of the window, forgotten
+        store.now += SimpleOAuthValidator.DEFAULT_TIMESTAMP_WINDOW / 2 + 2 * MemoryNonceStore.DEFAULT_BUCKET_WIDTH;
+        Assertions.assertThat(store.add("key", "newer", store.now)).isTrue();
+        Assertions.assertThat(store.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void testValidatorRefusesReplay() throws Exception {
+        OAuthAccessor accessor = new OAuthAccessor(new OAuthConsumer(null, "key", "secret", null));
+        OAuthValidator validator = new SimpleOAuthValidator(new MemoryNonceStore());
+        OAuthMessage message = signed(accessor);
+
+        validator.validateMessage(message, accessor);
+
+        try {
+            validator.validateMessage(message, accessor);
+            Assertions.fail("replay accepted");
+        } catch (OAuthProblemException e) {
+            Assertions.assertThat(e.getProblem()).isEqualTo(OAuth.Problems.NONCE_USED);
+            Assertions.assertThat(OAuth.Problems.TO_HTTP_CODE.get(e.getProblem())).isEqualTo(401);
+        }
+
+        // a new message is fine
+        validator.validateMessage(signed(accessor), accessor);
+    }
+
+    @Test
+    public void testValidatorReportsStoreUnavailable() throws Exception {
+        OAuthAccessor accessor = new OAuthAccessor(new OAuthConsumer(null, "key", "secret", null));
+        OAuthValidator validator = new SimpleOAuthValidator((key, nonce, timestamp) -> {
+            throw new OAuthProblemException(OAuth.Problems.TEMPORARILY_UNAVAILABLE);
+        });
+
+        try {
+            validator.validateMessage(signed(accessor), accessor);
+            Assertions.fail("accepted without checking the nonce");
+        } catch (OAuthProblemException e) {
+            Assertions.assertThat(e.getProblem()).isEqualTo(OAuth.Problems.TEMPORARILY_UNAVAILABLE);
+            Assertions.assertThat(OAuth.Problems.TO_HTTP_CODE.get(e.getProblem())).isEqualTo(503);
+        }
+    }
+
+    private static OAuthMessage signed(OAuthAccessor accessor) throws Exception {
+        OAuthMessage rv = new OAuthMessage("POST", "https://example.com/launch", new ArrayList<OAuth.Parameter>());
+        rv.addParameter("user_id", "1");
+        rv.addRequiredParameters(accessor);
+        return rv;
+    }
+
+}
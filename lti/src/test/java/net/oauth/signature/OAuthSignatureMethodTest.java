@@ -0,0 +1,165 @@
+/*
+ * Copyright 2017 Etudes, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.oauth.signature;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+
+import net.oauth.OAuth;
+import net.oauth.OAuthAccessor;
+import net.oauth.OAuthConsumer;
+import net.oauth.OAuthMessage;
+import net.oauth.OAuthProblemException;
+
+/**
+ * Known answer tests for the signature base string, and signatures made and checked with it.
+ */
+public class OAuthSignatureMethodTest {
+
+    /** The OAuth 1.0 spec, appendix A.5.1. */
+    @Test
+    public void testSpecExample() throws Exception {
+        OAuthMessage message = message("GET", "http://photos.example.net/photos?file=vacation.jpg&size=original", //
+                "oauth_consumer_key", "dpf43f3p2l4k3l03", //
+                "oauth_token", "nnch734d00sl2jdk", //
+                "oauth_signature_method", "HMAC-SHA1", //
+                "oauth_timestamp", "1191242096", //
+                "oauth_nonce", "kllo9940pd9333jh", //
+                "oauth_version", "1.0");
+
+        Assertions.assertThat(OAuthSignatureMethod.getBaseString(message)).isEqualTo("GET&http%3A%2F%2Fphotos.example.net%2Fphotos&file%3Dvacation.jpg"
+                + "%26oauth_consumer_key%3Ddpf43f3p2l4k3l03%26oauth_nonce%3Dkllo9940pd9333jh%26oauth_signature_method%3DHMAC-SHA1"
+                + "%26oauth_timestamp%3D1191242096%26oauth_token%3Dnnch734d00sl2jdk%26oauth_version%3D1.0%26size%3Doriginal");
+
+        // appendix A.5.2
+        OAuthAccessor accessor = new OAuthAccessor(new OAuthConsumer(null, "dpf43f3p2l4k3l03", "kd94hf93k423kf44", null));
+        accessor.tokenSecret = "pfkkdhi9sl3r4s00";
+        message.sign(accessor);
+        Assertions.assertThat(message.getSignature()).isEqualTo("tR3+Ty81lMeYAr/Fid0kMTYa/WM=");
+        OAuthSignatureMethod.newSigner(message, accessor).validate(message);
+    }
+
+    /** RFC 5849 section 3.4.1 - a query string and a body, a duplicate name, and values needing encoding. */
+    @Test
+    public void testRfcExample() throws Exception {
+        OAuthMessage message = message("POST", "http://example.com/request?b5=%3D%253D&a3=a&c%40=&a2=r%20b", //
+                "oauth_consumer_key", "9djdj82h48djs9d2", //
+                "oauth_token", "kkk9d7dh3k39sjv7", //
+                "oauth_signature_method", "HMAC-SHA1", //
+                "oauth_timestamp", "137131201", //
+                "oauth_nonce", "7d8f3e4a", //
+                "oauth_signature", "djosJKDKJSD8743243%2Fjdk33klY%3D", //
+                "c2", "", //
+                "a3", "2 q");
+
+        Assertions.assertThat(OAuthSignatureMethod.getBaseString(message)).isEqualTo("POST&http%3A%2F%2Fexample.com%2Frequest"
+                + "&a2%3Dr%2520b%26a3%3D2%2520q%26a3%3Da%26b5%3D%253D%25253D%26c%2540%3D%26c2%3D%26oauth_consumer_key%3D9djdj82h48djs9d2"
+                + "%26oauth_nonce%3D7d8f3e4a%26oauth_signature_method%3DHMAC-SHA1%26oauth_timestamp%3D137131201%26oauth_token%3Dkkk9d7dh3k39sjv7");
+    }
+
+    /** Non-ASCII names and values are UTF-8, percent encoded, and sort on the encoded bytes; a lone surrogate is '?'. */
+    @Test
+    public void testNonAscii() throws Exception {
+        OAuthMessage message = message("POST", "https://example.com:443/launch", //
+                "name", "café 日本 😀", //
+                "ü", "x", //
+                "lone", "a\ud800b");
+
+        Assertions.assertThat(OAuthSignatureMethod.getBaseString(message)).isEqualTo("POST&https%3A%2F%2Fexample.com%2Flaunch"
+                + "&%25C3%25BC%3Dx%26lone%3Da%253Fb%26name%3Dcaf%25C3%25A9%2520%25E6%2597%25A5%25E6%259C%25AC%2520%25F0%259F%2598%2580");
+        Assertions.assertThat(OAuthSignatureMethod.getBaseString(message)).isEqualTo(reference(message));
+    }
+
+    /** Duplicate names sort by value, on the encoded bytes; a name that is a prefix of another sorts first. */
+    @Test
+    public void testDuplicatesAndOrder() throws Exception {
+        OAuthMessage message = message("GET", "http://example.com/?a=2&ab=1", //
+                "a", "10", //
+                "a", "1", //
+                "B", "1", //
+                "a", "", //
+                "a", "1", //
+                "a ", "0");
+
+        Assertions.assertThat(OAuthSignatureMethod.getBaseString(message))
+                .isEqualTo("GET&http%3A%2F%2Fexample.com%2F&B%3D1%26a%3D%26a%3D1%26a%3D1%26a%3D10%26a%3D2%26a%2520%3D0%26ab%3D1");
+        Assertions.assertThat(OAuthSignatureMethod.getBaseString(message)).isEqualTo(reference(message));
+    }
+
+    /** Past the builder's first buffers and parameter arrays, and back. */
+    @Test
+    public void testLarge() throws Exception {
+        List<String> kv = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            kv.add("p" + (i % 37));
+            kv.add(Strings.repeat("vé ", i * 10));
+        }
+        OAuthMessage large = message("POST", "http://example.com/launch", kv.toArray(new String[0]));
+        Assertions.assertThat(OAuthSignatureMethod.getBaseString(large)).isEqualTo(reference(large));
+
+        OAuthMessage small = message("POST", "http://example.com/launch", "a", "1");
+        Assertions.assertThat(OAuthSignatureMethod.getBaseString(small)).isEqualTo("POST&http%3A%2F%2Fexample.com%2Flaunch&a%3D1");
+    }
+
+    /** A signature made for the http URL is good for https, if tolerant. */
+    @Test
+    public void testSchemeTolerance() throws Exception {
+        OAuthAccessor accessor = new OAuthAccessor(new OAuthConsumer(null, "key", "secret", null));
+        OAuthMessage signed = message("POST", "http://example.com/launch", "user_id", "1");
+        signed.addRequiredParameters(accessor);
+
+        OAuthMessage received = new OAuthMessage("POST", "https://example.com/launch", signed.getParameters());
+        OAuthSignatureMethod.newSigner(received, accessor).validate(received, true);
+
+        try {
+            OAuthSignatureMethod.newSigner(received, accessor).validate(received, false);
+            Assertions.fail("signature for the other scheme accepted");
+        } catch (OAuthProblemException e) {
+            Assertions.assertThat(e.getProblem()).isEqualTo(OAuth.Problems.SIGNATURE_INVALID);
+        }
+    }
+
+    private static OAuthMessage message(String method, String url, String... kv) {
+        List<OAuth.Parameter> parameters = new ArrayList<>();
+        for (int i = 0; i < kv.length; i += 2) {
+            parameters.add(new OAuth.Parameter(kv[i], kv[i + 1]));
+        }
+        return new OAuthMessage(method, url, parameters);
+    }
+
+    /** The base string as the library made it before the builder, from Strings. */
+    private static String reference(OAuthMessage message) throws Exception {
+        String url = message.URL;
+        List<OAuth.Parameter> parameters = new ArrayList<>();
+        int q = url.indexOf('?');
+        if (q >= 0) {
+            parameters.addAll(OAuth.decodeForm(url.substring(q + 1)));
+            url = url.substring(0, q);
+        }
+        for (java.util.Map.Entry<String, String> p : message.getParameters()) {
+            parameters.add(new OAuth.Parameter(p.getKey(), p.getValue()));
+        }
+        return OAuth.percentEncode(message.method.toUpperCase()) + '&' + OAuth.percentEncode(OAuthSignatureMethod.normalizeUrl(url)) + '&'
+                + OAuth.percentEncode(OAuthSignatureMethod.normalizeParameters(parameters));
+    }
+
+}
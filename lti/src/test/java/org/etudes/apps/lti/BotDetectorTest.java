@@ -0,0 +1,132 @@
+/**********************************************************************************
+ *
+ * Copyright (c) 2017 Etudes, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+package org.etudes.apps.lti;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+/**
+ * Test the BotDetector
+ */
+public class BotDetectorTest {
+
+	@Test
+	public void testEmpty() {
+		for (BotDetector detector : Arrays.asList(new BotDetector(null), new BotDetector(Collections.emptyList()),
+				new BotDetector(Arrays.asList(null, "")))) {
+			Assertions.assertThat(detector.getSignatures()).isEmpty();
+			Assertions.assertThat(detector.isBot(null)).isFalse();
+			Assertions.assertThat(detector.isBot("")).isFalse();
+			Assertions.assertThat(detector.isBot("Googlebot/2.1")).isFalse();
+		}
+	}
+
+	@Test
+	public void testSimple() {
+		BotDetector detector = new BotDetector(Arrays.asList("Googlebot", "bingbot"));
+		Assertions.assertThat(detector.isBot("Mozilla/5.0 (compatible; Googlebot/2.1; +http://www.google.com/bot.html)")).isTrue();
+		Assertions.assertThat(detector.isBot("Mozilla/5.0 (compatible; bingbot/2.0)")).isTrue();
+		Assertions.assertThat(detector.isBot("Mozilla/5.0 (Windows NT 10.0) Chrome/58.0")).isFalse();
+
+		// case sensitive, and answered the same from the cache
+		Assertions.assertThat(detector.isBot("googlebot")).isFalse();
+		Assertions.assertThat(detector.isBot("googlebot")).isFalse();
+		Assertions.assertThat(detector.isBot("Googlebot")).isTrue();
+		Assertions.assertThat(detector.isBot("Googlebot")).isTrue();
+		Assertions.assertThat(detector.isBot(null)).isFalse();
+	}
+
+	@Test
+	public void testOverlapping() {
+		// one signature inside another, sharing prefixes and suffixes, and one that is only found through a failure link
+		BotDetector detector = new BotDetector(Arrays.asList("bot", "robot", "abotx", "spider", "pi", "aab"));
+
+		Assertions.assertThat(detector.isBot("robo")).isFalse();
+		Assertions.assertThat(detector.isBot("rob")).isFalse();
+		Assertions.assertThat(detector.isBot("roboT")).isFalse();
+		Assertions.assertThat(detector.isBot("robot")).isTrue();
+		Assertions.assertThat(detector.isBot("abot")).isTrue();
+		Assertions.assertThat(detector.isBot("spide")).isTrue();
+		Assertions.assertThat(detector.isBot("sp1der")).isFalse();
+		Assertions.assertThat(detector.isBot("aaab")).isTrue();
+		Assertions.assertThat(detector.isBot("aa-b")).isFalse();
+		Assertions.assertThat(detector.isBot("xxabo")).isFalse();
+	}
+
+	@Test
+	public void testNonAscii() {
+		BotDetector detector = new BotDetector(Arrays.asList("Робот", "クローラ", "boté", "🤖"));
+
+		Assertions.assertThat(detector.isBot("Mozilla/5.0 Робот/1.0")).isTrue();
+		Assertions.assertThat(detector.isBot("Mozilla/5.0 Робо/1.0")).isFalse();
+		Assertions.assertThat(detector.isBot("クローラー 2.0")).isTrue();
+		Assertions.assertThat(detector.isBot("クロ-ラ")).isFalse();
+		Assertions.assertThat(detector.isBot("xboté")).isTrue();
+		Assertions.assertThat(detector.isBot("xbotè")).isFalse();
+		Assertions.assertThat(detector.isBot("xbot")).isFalse();
+		Assertions.assertThat(detector.isBot("agent 🤖")).isTrue();
+		Assertions.assertThat(detector.isBot("agent 🤗")).isFalse();
+		Assertions.assertThat(detector.isBot("agent \ud83e")).isFalse();
+	}
+
+	@Test
+	public void testLong() {
+		BotDetector detector = new BotDetector(Arrays.asList("crawler"));
+		char[] padding = new char[BotDetector.MAX_CACHED_LENGTH * 2];
+		Arrays.fill(padding, 'c');
+		String pad = new String(padding);
+
+		Assertions.assertThat(detector.isBot(pad + "crawle")).isFalse();
+		Assertions.assertThat(detector.isBot(pad + "crawler")).isTrue();
+		Assertions.assertThat(detector.isBot("crawler" + pad)).isTrue();
+	}
+
+	@Test
+	public void testAgainstContains() {
+		// small alphabet, so signatures overlap a lot
+		Random random = new Random(17);
+		String alphabet = "abcéÿ";
+		for (int round = 0; round < 50; round++) {
+			List<String> signatures = new ArrayList<>();
+			for (int i = random.nextInt(6); i > 0; i--) {
+				signatures.add(randomString(random, alphabet, 1 + random.nextInt(4)));
+			}
+			BotDetector detector = new BotDetector(signatures);
+
+			for (int i = 0; i < 200; i++) {
+				String agent = randomString(random, alphabet + "x", random.nextInt(12));
+				boolean expected = signatures.stream().anyMatch(agent::contains);
+				Assertions.assertThat(detector.isBot(agent)).as("%s in %s", signatures, agent).isEqualTo(expected);
+			}
+		}
+	}
+
+	private static String randomString(Random random, String alphabet, int length) {
+		StringBuilder rv = new StringBuilder();
+		for (int i = 0; i < length; i++) {
+			rv.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		}
+		return rv.toString();
+	}
+}
@@ -0,0 +1,96 @@
+/**********************************************************************************
+ *
+ * Copyright (c) 2017 Etudes, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.etudes.apps.lti;
+
+import java.util.Optional;
+
+import org.assertj.core.api.Assertions;
+import org.etudes.apps.db.DB;
+import org.etudes.apps.db.DB.Holder;
+import org.etudes.apps.lti.data.LTIConsumerData;
+import org.etudes.apps.lti.impl.LTIConsumerDataJDBIImpl;
+import org.etudes.apps.lti.model.LTIConsumer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+import io.dropwizard.db.DataSourceFactory;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.jdbi.DBIFactory;
+import io.dropwizard.setup.Environment;
+
+/**
+ * Test the LTIConsumerDataJDBI impl
+ */
+public class LTIConsumerDataJDBITest {
+
+	private DB db = null;
+
+	private LTIConsumerData data = null;
+
+	@Before
+	public void setUp() throws Exception {
+
+		DataSourceFactory database = new DataSourceFactory();
+		database.setDriverClass("org.h2.Driver");
+		database.setUrl("jdbc:h2:mem:LTIConsumerDataJDBITest;mode=mysql");
+		database.setUser("u");
+		database.setPassword("p");
+
+		Environment environment = new Environment("test-env", Jackson.newObjectMapper(), null, new MetricRegistry(), null);
+
+		db = new DB(new DBIFactory().build(environment, database, "db"), true);
+
+		data = new LTIConsumerDataJDBIImpl(db);
+	}
+
+	/**
+	 * Cleanup after the test.
+	 */
+	@After
+	public void tearDown() {
+		db.run(h -> h.execute("drop table if exists lti_consumer"));
+		db.stop();
+	}
+
+	@Test
+	public void test() {
+		Holder<LTIConsumer> consumer = new Holder<>();
+
+		// none yet
+		Assertions.assertThat(data.readConsumer(1L, consumer)).isTrue();
+		Assertions.assertThat(consumer.value.isPresent()).isFalse();
+
+		// create, then update
+		data.createOrUpdateConsumer(new LTIConsumer(1L, "secret"));
+		Assertions.assertThat(data.readConsumer(1L, consumer)).isTrue();
+		Assertions.assertThat(consumer.value).isEqualTo(Optional.of(new LTIConsumer(1L, "secret")));
+
+		data.createOrUpdateConsumer(new LTIConsumer(1L, "changed"));
+		Assertions.assertThat(data.readConsumer(1L, consumer)).isTrue();
+		Assertions.assertThat(consumer.value).isEqualTo(Optional.of(new LTIConsumer(1L, "changed")));
+
+		// a failed read is not a missing consumer
+		db.run(h -> h.execute("drop table lti_consumer"));
+		Assertions.assertThat(data.readConsumer(1L, consumer)).isFalse();
+		Assertions.assertThat(consumer.value.isPresent()).isFalse();
+	}
+}
@@ -0,0 +1,134 @@
+/**********************************************************************************
+ *
+ * Copyright (c) 2017 Etudes, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.etudes.apps.lti;
+
+import java.util.Optional;
+
+import org.assertj.core.api.Assertions;
+import org.etudes.apps.db.DB.Holder;
+import org.etudes.apps.lti.data.LTIConsumerData;
+import org.etudes.apps.lti.impl.LTIConsumerServiceImpl;
+import org.etudes.apps.lti.model.LTIConsumer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import net.oauth.OAuthAccessor;
+
+/**
+ * Test the LTIConsumerService impl
+ */
+public class LTIConsumerServiceTest {
+
+	// mock the data access
+	private static final LTIConsumerData data = Mockito.mock(LTIConsumerData.class);
+
+	private LTIConsumerService service = null;
+
+	/**
+	 * Before each test, setup the mock data: subscription 1 has a consumer, 2 has none, and 3 can't be read.
+	 */
+	@Before
+	public void setup() {
+		Mockito.when(data.readConsumer(Mockito.eq(1L), Mockito.any())).thenAnswer(i -> {
+			i.<Holder<LTIConsumer>> getArgument(1).value = Optional.of(new LTIConsumer(1L, "secret-1"));
+			return true;
+		});
+		Mockito.when(data.readConsumer(Mockito.eq(2L), Mockito.any())).thenAnswer(i -> {
+			i.<Holder<LTIConsumer>> getArgument(1).value = Optional.empty();
+			return true;
+		});
+		Mockito.when(data.readConsumer(Mockito.eq(3L), Mockito.any())).thenReturn(false);
+
+		service = new LTIConsumerServiceImpl(data, new LTIConfiguration());
+	}
+
+	/**
+	 * Cleanup after the test, resetting the mocked data.
+	 */
+	@After
+	public void tearDown() {
+		Mockito.reset(data);
+	}
+
+	@Test
+	public void testAccessor() {
+		Holder<OAuthAccessor> accessor = new Holder<>();
+
+		// a consumer, read once, then prepared from the cache
+		Assertions.assertThat(service.getAccessor(1L, accessor)).isTrue();
+		Assertions.assertThat(accessor.value.get().consumer.consumerKey).isEqualTo("1");
+		Assertions.assertThat(accessor.value.get().consumer.consumerSecret).isEqualTo("secret-1");
+		OAuthAccessor first = accessor.value.get();
+		Assertions.assertThat(service.getAccessor(1L, accessor)).isTrue();
+		Assertions.assertThat(accessor.value.get()).isSameAs(first);
+		Mockito.verify(data, Mockito.times(1)).readConsumer(Mockito.eq(1L), Mockito.any());
+
+		// no consumer, and no default secret
+		Assertions.assertThat(service.getAccessor(2L, accessor)).isTrue();
+		Assertions.assertThat(accessor.value.isPresent()).isFalse();
+
+		// not read - not the same as missing
+		Assertions.assertThat(service.getAccessor(3L, accessor)).isFalse();
+		Assertions.assertThat(accessor.value.isPresent()).isFalse();
+		Assertions.assertThat(service.getAccessor(3L, accessor)).isFalse();
+		Mockito.verify(data, Mockito.times(2)).readConsumer(Mockito.eq(3L), Mockito.any());
+	}
+
+	@Test
+	public void testDefaultSecret() {
+		LTIConfiguration config = new LTIConfiguration();
+		config.setDefaultSecret("default");
+		service = new LTIConsumerServiceImpl(data, config);
+		Holder<OAuthAccessor> accessor = new Holder<>();
+
+		// no consumer of its own, the default
+		Assertions.assertThat(service.getAccessor(2L, accessor)).isTrue();
+		Assertions.assertThat(accessor.value.get().consumer.consumerKey).isEqualTo("2");
+		Assertions.assertThat(accessor.value.get().consumer.consumerSecret).isEqualTo("default");
+
+		// its own consumer wins
+		Assertions.assertThat(service.getAccessor(1L, accessor)).isTrue();
+		Assertions.assertThat(accessor.value.get().consumer.consumerSecret).isEqualTo("secret-1");
+
+		// not read, the default is not used
+		Assertions.assertThat(service.getAccessor(3L, accessor)).isFalse();
+		Assertions.assertThat(accessor.value.isPresent()).isFalse();
+	}
+
+	@Test
+	public void testSaveInvalidates() {
+		Holder<OAuthAccessor> accessor = new Holder<>();
+		Assertions.assertThat(service.getAccessor(1L, accessor)).isTrue();
+		Assertions.assertThat(accessor.value.get().consumer.consumerSecret).isEqualTo("secret-1");
+
+		// change the secret - the cached accessor is dropped, and the new secret read
+		Mockito.when(data.readConsumer(Mockito.eq(1L), Mockito.any())).thenAnswer(i -> {
+			i.<Holder<LTIConsumer>> getArgument(1).value = Optional.of(new LTIConsumer(1L, "secret-1b"));
+			return true;
+		});
+		service.saveConsumer(new LTIConsumer(1L, "secret-1b"));
+		Mockito.verify(data).createOrUpdateConsumer(new LTIConsumer(1L, "secret-1b"));
+
+		Assertions.assertThat(service.getAccessor(1L, accessor)).isTrue();
+		Assertions.assertThat(accessor.value.get().consumer.consumerSecret).isEqualTo("secret-1b");
+		Mockito.verify(data, Mockito.times(2)).readConsumer(Mockito.eq(1L), Mockito.any());
+	}
+}
@@ -0,0 +1,124 @@
+/**********************************************************************************
+ *
+ * Copyright (c) 2017 Etudes, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.etudes.apps.lti;
+
+import org.assertj.core.api.Assertions;
+import org.etudes.apps.db.DB;
+import org.etudes.apps.lti.impl.NonceStoreJDBIImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Strings;
+
+import io.dropwizard.db.DataSourceFactory;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.jdbi.DBIFactory;
+import io.dropwizard.setup.Environment;
+import net.oauth.NonceStore;
+import net.oauth.OAuth;
+import net.oauth.OAuthProblemException;
+
+/**
+ * Test the NonceStoreJDBI impl
+ */
+public class NonceStoreJDBITest {
+
+	private DB db = null;
+
+	private NonceStore nonces = null;
+
+	@Before
+	public void setUp() throws Exception {
+
+		DataSourceFactory database = new DataSourceFactory();
+		database.setDriverClass("org.h2.Driver");
+		database.setUrl("jdbc:h2:mem:NonceStoreJDBITest;mode=mysql");
+		database.setUser("u");
+		database.setPassword("p");
+
+		Environment environment = new Environment("test-env", Jackson.newObjectMapper(), null, new MetricRegistry(), null);
+
+		db = new DB(new DBIFactory().build(environment, database, "db"), true);
+
+		nonces = new NonceStoreJDBIImpl(db);
+	}
+
+	/**
+	 * Cleanup after the test.
+	 */
+	@After
+	public void tearDown() {
+		db.run(h -> h.execute("drop table if exists oauth_nonce"));
+		db.stop();
+	}
+
+	/**
+	 * Test that a used nonce is refused, from any server sharing the db
+	 */
+	@Test
+	public void testReplay() throws Exception {
+		long now = System.currentTimeMillis();
+
+		Assertions.assertThat(nonces.add("key", "nonce", now)).isTrue();
+		Assertions.assertThat(nonces.add("key", "nonce", now)).isFalse();
+
+		// another server
+		NonceStore other = new NonceStoreJDBIImpl(db);
+		Assertions.assertThat(other.add("key", "nonce", now)).isFalse();
+
+		// the same nonce from another consumer, or another nonce, is new
+		Assertions.assertThat(nonces.add("other", "nonce", now)).isTrue();
+		Assertions.assertThat(other.add("key", "nonce2", now)).isTrue();
+		Assertions.assertThat(nonces.add("key", "nonce2", now)).isFalse();
+	}
+
+	/**
+	 * Test that a nonce too long to record is rejected, not taken as used
+	 */
+	@Test
+	public void testTooLong() throws Exception {
+		try {
+			nonces.add("key", Strings.repeat("n", 256), System.currentTimeMillis());
+			Assertions.fail("long nonce accepted");
+		} catch (OAuthProblemException e) {
+			Assertions.assertThat(e.getProblem()).isEqualTo(OAuth.Problems.PARAMETER_REJECTED);
+			Assertions.assertThat(e.getParameters().get(OAuth.Problems.OAUTH_PARAMETERS_REJECTED)).isEqualTo(OAuth.OAUTH_NONCE);
+		}
+
+		Assertions.assertThat(nonces.add("key", Strings.repeat("n", 255), System.currentTimeMillis())).isTrue();
+	}
+
+	/**
+	 * Test that when the db fails, the nonce is neither taken as used nor as new
+	 */
+	@Test
+	public void testDbFailure() throws Exception {
+		db.run(h -> h.execute("drop table oauth_nonce"));
+
+		try {
+			nonces.add("key", "nonce", System.currentTimeMillis());
+			Assertions.fail("nonce checked without the db");
+		} catch (OAuthProblemException e) {
+			Assertions.assertThat(e.getProblem()).isEqualTo(OAuth.Problems.TEMPORARILY_UNAVAILABLE);
+			Assertions.assertThat(OAuth.Problems.TO_HTTP_CODE.get(e.getProblem())).isEqualTo(503);
+		}
+	}
+}
@@ -168,7 +168,7 @@ public class AssessmentDataJDBIImpl implements AssessmentData {
 	public Optional<Assessment> readAssessment(long id) {
 		Holder<Assessment> rv = new Holder<>();
 
-		this.db.transact(h -> {
+		this.db.read(h -> {
 			Assessment a = h
 					.createQuery("select id, subscription, context, title, presentation_text, atype, published, valid, due, hideUntilOpen, open, until, " //
 							+ "created_by, created_on, modified_by, modified_on from assessment where id = :id") //
@@ -185,7 +185,7 @@ public class AssessmentDataJDBIImpl implements AssessmentData {
 	public List<Assessment> readAssessments(long subscriptionId) {
 		Holder<List<Assessment>> rv = new Holder<>();
 
-		this.db.transact(h -> {
+		this.db.read(h -> {
 			List<Assessment> asmts = h
 					.createQuery("select id, subscription, context, title, presentation_text, atype, published, valid, due, hideUntilOpen, open, until, " //
 							+ "created_by, created_on, modified_by, modified_on from assessment where subscription = :subscription") //
@@ -203,7 +203,7 @@ public class AssessmentDataJDBIImpl implements AssessmentData {
 	public List<Assessment> readAssessments(long subscriptionId, String context) {
 		Holder<List<Assessment>> rv = new Holder<>();
 
-		this.db.transact(h -> {
+		this.db.read(h -> {
 			List<Assessment> asmts = h
 					.createQuery("select id, subscription, context, title, presentation_text, atype, published, valid, due, hideUntilOpen, open, until, " //
 							+ "created_by, created_on, modified_by, modified_on from assessment where subscription = :subscription and context = :context") //
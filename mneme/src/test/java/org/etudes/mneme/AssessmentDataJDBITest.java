@@ -63,6 +63,8 @@ public class AssessmentDataJDBITest {
 	final protected long user2 = 222l;
 	final protected long user3 = 2222l;
 
+	private DB db = null;
+
 	@Before
 	public void setUp() throws Exception {
 
@@ -74,7 +76,7 @@ public class AssessmentDataJDBITest {
 
 		Environment environment = new Environment("test-env", Jackson.newObjectMapper(), null, new MetricRegistry(), null);
 
-		DB db = new DB(new DBIFactory().build(environment, database, "db"), true);
+		db = new DB(new DBIFactory().build(environment, database, "db"), true);
 
 		data = new AssessmentDataJDBIImpl(db);
 	}
@@ -84,6 +86,7 @@ public class AssessmentDataJDBITest {
 	 */
 	@After
 	public void tearDown() {
+		db.stop();
 	}
 
 	@Test
@@ -47,6 +47,8 @@ public class AssessmentServiceTest {
 
 	private static AssessmentService service = null;
 
+	private DB db = null;
+
 	/**
 	 * Before each test, setup ...
 	 */
@@ -60,7 +62,7 @@ public class AssessmentServiceTest {
 		database.setUser("u");
 		database.setPassword("p");
 		Environment environment = new Environment("test-env", Jackson.newObjectMapper(), null, new MetricRegistry(), null);
-		DB db = new DB(new DBIFactory().build(environment, database, "db"), true);
+		db = new DB(new DBIFactory().build(environment, database, "db"), true);
 		AssessmentData data = new AssessmentDataJDBIImpl(db);
 
 		// create the service
@@ -72,6 +74,7 @@ public class AssessmentServiceTest {
 	 */
 	@After
 	public void tearDown() {
+		db.stop();
 	}
 
 	@Test
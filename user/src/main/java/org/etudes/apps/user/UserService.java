@@ -21,6 +21,7 @@ package org.etudes.apps.user;
 import java.util.List;
 import java.util.Optional;
 import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 import org.etudes.apps.db.DB.Holder;
 import org.etudes.apps.user.model.Login;
@@ -89,6 +90,30 @@ public interface UserService {
 	 */
 	List<User> getUsersForSubscription(Long subscriptionId);
 
+	/**
+	 * Get a page of users from this subscription, in id order.
+	 * 
+	 * @param subscriptionId
+	 *            The subscription id.
+	 * @param afterId
+	 *            Start after the user with this id - the last id of the previous page, or 0 for the first page.
+	 * @param limit
+	 *            The most users to get.
+	 * @return The page of users, possibly empty - fewer than limit means this is the last page - or not if the db read failed.
+	 */
+	Optional<List<User>> getUsersForSubscription(Long subscriptionId, Long afterId, int limit);
+
+	/**
+	 * Stream all users from this subscription, in id order, read a page at a time as the stream is consumed - for subscriptions too large to hold in memory.
+	 * No db connection is held between pages, and nothing is read until the stream is consumed. If a page can't be read, consuming the stream throws
+	 * IllegalStateException, rather than ending early.
+	 * 
+	 * @param subscriptionId
+	 *            The subscription id.
+	 * @return The stream of users from this subscription, possibly empty.
+	 */
+	Stream<User> streamUsersForSubscription(Long subscriptionId);
+
 	/**
 	 * Refresh the user's tokens. If they have changed, return the new tokens. Otherwise, get new tokens running the job, then update the db. Synchronized
 	 * through the db so the job is only run once at a time.
@@ -142,7 +167,8 @@ public interface UserService {
 	void saveTokens(Tokens tokens);
 
 	/**
-	 * Save changes in this user. Update any fields that change as a result of the save.
+	 * Save changes in this user. Update any fields that change as a result of the save. For a user read from the service, only the fields changed since then
+	 * are written; for any other user, all the fields are.
 	 * 
 	 * @param user
 	 *            The user to save.
@@ -128,19 +128,34 @@ public interface UserData {
 	List<User> readUsersForSubscription(Long subscriptionId);
 
 	/**
-	 * Refresh the user's tokens. If they have changed, return the new tokens. Otherwise, get new tokens running the job, then update the db. Synchronized
-	 * through the db so the job is only run once at a time.
+	 * Get a page of users from this subscription, in id order.
+	 * 
+	 * @param subscriptionId
+	 *            The subscription id.
+	 * @param afterId
+	 *            Start after the user with this id - the last id of the previous page, or 0 for the first page.
+	 * @param limit
+	 *            The most users to get.
+	 * @return The page of users, possibly empty - fewer than limit means this is the last page - or not if the db read failed.
+	 */
+	Optional<List<User>> readUsersForSubscription(Long subscriptionId, Long afterId, int limit);
+
+	/**
+	 * Refresh the user's tokens. If they have changed, return the new tokens. Otherwise, get new tokens running the job, then update the db. Concurrent
+	 * refreshes for a user share one run of the job; no db lock is held while the job runs, and if another server stores a new token first, that token is
+	 * returned.
 	 * 
 	 * @param tokens
 	 *            The user's tokens. Must exist with an id.
 	 * @param job
 	 *            The job to run that updates the tokens.
-	 * @return The updated tokens, or not if the job runs and fails.
+	 * @return The updated tokens, or not if the job runs and fails, or if another caller's refresh of these tokens takes too long to wait for.
 	 */
 	Optional<Tokens> refreshOrUpdateTokens(Tokens tokens, Consumer<Holder<String>> job);
 
 	/**
-	 * Update the user.
+	 * Update the user - only the fields changed since it was read (or last saved), if any. A user not read from here (made by a constructor, or from JSON)
+	 * has all its fields written.
 	 * 
 	 * @param user
 	 */
@@ -18,11 +18,18 @@
 
 package org.etudes.apps.user.impl;
 
+import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
 
 import javax.inject.Inject;
@@ -33,6 +40,7 @@ import org.etudes.apps.user.data.UserData;
 import org.etudes.apps.user.model.Login;
 import org.etudes.apps.user.model.Tokens;
 import org.etudes.apps.user.model.User;
+import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.StatementContext;
 import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
 import org.skife.jdbi.v2.tweak.ResultSetMapper;
@@ -40,6 +48,11 @@ import org.skife.jdbi.v2.util.LongColumnMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 public class UserDataJDBIImpl implements UserData {
 
 	/**
@@ -72,6 +85,7 @@ public class UserDataJDBIImpl implements UserData {
 		public User map(int index, ResultSet r, StatementContext ctx) throws SQLException {
 			User rv = new User(r.getLong("id"), r.getString("lms_id"), r.getLong("subscription"));
 
+			// not all fields are read, so changes are not tracked - a save writes all fields
 			return rv;
 		}
 	}
@@ -84,6 +98,7 @@ public class UserDataJDBIImpl implements UserData {
 		public User map(int index, ResultSet r, StatementContext ctx) throws SQLException {
 			User rv = new User(r.getLong("id"), r.getString("email"), r.getString("name_family"), r.getString("name_given"), r.getString("lms_id"), false,
 					r.getString("sis_id"), r.getLong("subscription"), false);
+			rv.clearChanged();
 
 			return rv;
 		}
@@ -97,17 +112,86 @@ public class UserDataJDBIImpl implements UserData {
 		public User map(int index, ResultSet r, StatementContext ctx) throws SQLException {
 			User rv = new User(r.getLong("id"), r.getString("email"), r.getString("name_family"), r.getString("name_given"), r.getString("lms_id"),
 					r.getLong("loginId") != 0L, r.getString("sis_id"), r.getLong("subscription"), r.getLong("tokensId") != 0L);
+			rv.clearChanged();
 			return rv;
 		}
 	}
 
+	/**
+	 * Tokens refreshed, and the token they were refreshed from.
+	 */
+	protected static class RefreshedTokens {
+		final String from;
+		final Tokens to;
+
+		RefreshedTokens(String from, Tokens to) {
+			this.from = from;
+			this.to = to;
+		}
+	}
+
 	final static private Logger logger = LoggerFactory.getLogger(UserDataJDBIImpl.class);
 
+	/** Select the user fields - add the where clause. */
+	protected final static String SELECT_USER = "select id, email, name_family, name_given, lms_id, sis_id, subscription from user ";
+
+	/** Select the user fields, with loginId and tokensId set if the user has a login or tokens - add the where clause. */
+	protected final static String SELECT_USER_FULL = "select U.id, U.email, U.name_family, U.name_given, U.lms_id, U.sis_id, U.subscription, " //
+			+ "L.id as loginId, T.id as tokensId from user U " //
+			+ "left outer join login L on U.id = L.user left outer join tokens T on U.id = T.user ";
+
+	/** Insert a user, or if one is already there for the subscription and lms id, don't - either way, leave the user's id as the generated key. MySQL only. */
+	protected final static String UPSERT_USER = "insert into user (lms_id, subscription) values (:lms_id, :subscription)" //
+			+ " on duplicate key update id = last_insert_id(id)";
+
+	/** The column for each User.Field, in order. */
+	protected final static String[] USER_COLUMNS = { "email", "name_family", "name_given", "lms_id", "sis_id" };
+
+	/** Update statements for each set of changed fields - indexed by a bit per field, by the field's ordinal. */
+	protected final static String[] UPDATE_USER = new String[1 << USER_COLUMNS.length];
+	static {
+		for (int columns = 1; columns < UPDATE_USER.length; columns++) {
+			StringBuilder set = new StringBuilder();
+			for (int i = 0; i < USER_COLUMNS.length; i++) {
+				if ((columns & (1 << i)) != 0) {
+					set.append((set.length() == 0) ? "" : ", ").append(USER_COLUMNS[i]).append(" = :").append(USER_COLUMNS[i]);
+				}
+			}
+			UPDATE_USER[columns] = "update user set " + set + " where id = :id";
+		}
+	}
+
 	protected DB db = null;
 
-	@Inject
+	/** Count of user updates written, and skipped because nothing changed. */
+	protected final Counter updatesWritten;
+	protected final Counter updatesSkipped;
+
+	/** How long, in seconds, tokens refreshed here are handed out to callers still holding the old token. */
+	protected static long REFRESHED_TOKENS_TTL_SECONDS = 30;
+
+	/** How long, in seconds, to wait for another caller's refresh of the same tokens. */
+	protected final static long REFRESH_WAIT_SECONDS = 30;
+	protected long refreshWaitSeconds = REFRESH_WAIT_SECONDS;
+
+	/** Tokens recently refreshed, by tokens id. */
+	protected Cache<Long, RefreshedTokens> refreshedTokens = CacheBuilder.newBuilder().expireAfterWrite(REFRESHED_TOKENS_TTL_SECONDS, TimeUnit.SECONDS).build();
+
+	/** Token refreshes in progress, by tokens id. */
+	protected final ConcurrentHashMap<Long, CompletableFuture<Optional<Tokens>>> tokensRefreshing = new ConcurrentHashMap<>();
+
+	/** If the db is MySQL, and supports UPSERT_USER - found on first use. */
+	protected volatile Boolean mysql = null;
+
 	public UserDataJDBIImpl(DB db) {
+		this(db, new MetricRegistry());
+	}
+
+	@Inject
+	public UserDataJDBIImpl(DB db, MetricRegistry metrics) {
 		this.db = db;
+		this.updatesWritten = metrics.counter(MetricRegistry.name(UserData.class, "updates", "written"));
+		this.updatesSkipped = metrics.counter(MetricRegistry.name(UserData.class, "updates", "skipped"));
 		logger.info("UserDataJDBIImpl() with DB: " + this.db);
 
 		if (db.isAutoDdl()) {
@@ -204,37 +288,34 @@ public class UserDataJDBIImpl implements UserData {
 
 	@Override
 	public Optional<User> readCreateUser(Long subscriptionId, String lmsId) {
-		Holder<User> rv = new Holder<>();
 
-		// to read the created record
-		String sqlRead = "select id, lms_id, subscription from user where subscription = :subscription and lms_id "
-				+ ((lmsId == null) ? "is null" : "= :lms_id");
+		// users without an lms id are not unique in the db - (subscription, null) never matches another
+		if (lmsId == null)
+			return readCreateUserNoLmsId(subscriptionId);
 
-		db.transact(h -> {
-			User user = h.createQuery(sqlRead) //
-					.bind("subscription", subscriptionId) //
+		Holder<User> rv = new Holder<>();
+
+		// almost always the user is there - read, without a transaction or a write
+		boolean read = db.read(h -> {
+			User user = h.createQuery(SELECT_USER + "where subscription = :subscription and lms_id = :lms_id") //
 					.bind("lms_id", lmsId) //
-					.map(new UserMapperMin()) //
+					.bind("subscription", subscriptionId) //
+					.map(new UserMapperAll()) //
 					.first();
 
-			// insert if not found
-			if (user == null) {
-				// attempt to insert the user - let it fail
-				try {
-					h.createStatement("insert into user (lms_id, subscription) values (:lms_id, :subscription)") //
-							.bind("lms_id", lmsId) //
-							.bind("subscription", subscriptionId) //
-							.executeAndReturnGeneratedKeys(LongColumnMapper.PRIMITIVE) //
-							.first();
-				} catch (UnableToExecuteStatementException e) {
-				}
+			rv.value = Optional.ofNullable(user);
+		});
+		if (!read || rv.value.isPresent())
+			return rv.value;
 
-				user = h.createQuery(sqlRead) //
-						.bind("subscription", subscriptionId) //
-						.bind("lms_id", lmsId) //
-						.map(new UserMapperMin()) //
-						.first();
-			}
+		// a new user - insert, unless another request got there first
+		db.transact(h -> {
+			Long created = upsertUser(h, subscriptionId, lmsId);
+
+			User user = h.createQuery(SELECT_USER + "where id = :id") //
+					.bind("id", created) //
+					.map(new UserMapperAll()) //
+					.first();
 
 			rv.value = Optional.ofNullable(user);
 		});
@@ -246,7 +327,7 @@ public class UserDataJDBIImpl implements UserData {
 	public Optional<Login> readLogin(Long id) {
 		Holder<Login> rv = new Holder<>();
 
-		db.transact(h -> {
+		db.read(h -> {
 			Login login = h.createQuery("select id, email, password, user from login where user = :id") //
 					.bind("id", id) //
 					.map(new LoginMapper()) //
@@ -262,7 +343,7 @@ public class UserDataJDBIImpl implements UserData {
 	public List<Login> readLoginsByEmail(String email) {
 		Holder<List<Login>> rv = new Holder<>();
 
-		db.transact(h -> {
+		db.read(h -> {
 			List<Login> logins = h.createQuery("select id, email, password, user from login where email = :email") //
 					.bind("email", email) //
 					.map(new LoginMapper()) //
@@ -278,7 +359,7 @@ public class UserDataJDBIImpl implements UserData {
 	public Optional<Tokens> readTokens(Long id) {
 		Holder<Tokens> rv = new Holder<>();
 
-		db.transact(h -> {
+		db.read(h -> {
 			Tokens tokens = h.createQuery("select id, lms_refresh, lms_token, user from tokens where user = :id") //
 					.bind("id", id) //
 					.map(new TokensMapper()) //
@@ -294,7 +375,7 @@ public class UserDataJDBIImpl implements UserData {
 	public Optional<User> readUser(Long id) {
 		Holder<User> rv = new Holder<>();
 
-		db.transact(h -> {
+		db.read(h -> {
 			User user = h.createQuery("select id, email, name_family, name_given, lms_id, sis_id, subscription from user where id = :id") //
 					.bind("id", id) //
 					.map(new UserMapperAll()) //
@@ -310,11 +391,9 @@ public class UserDataJDBIImpl implements UserData {
 	public List<User> readUsersForSubscription(Long subscriptionId) {
 		Holder<List<User>> rv = new Holder<>();
 
-		db.transact(h -> {
+		db.read(h -> {
 			List<User> users = h.createQuery(
-					"select U.id, U.email, U.name_family, U.name_given, U.lms_id, U.sis_id, U.subscription, L.id as loginId, T.id as tokensId from user U " //
-							+ "left outer join login L on U.id = L.user left outer join tokens T on U.id = T.user " //
-							+ "where subscription = :subscription") //
+					SELECT_USER_FULL + "where subscription = :subscription") //
 					.bind("subscription", subscriptionId) //
 					.map(new UserMapperFull()) //
 					.list();
@@ -326,57 +405,75 @@ public class UserDataJDBIImpl implements UserData {
 	}
 
 	@Override
-	public Optional<Tokens> refreshOrUpdateTokens(Tokens tokens, Consumer<Holder<String>> job) {
-		Holder<Tokens> rv = new Holder<>();
-
-		db.transact(h -> {
+	public Optional<List<User>> readUsersForSubscription(Long subscriptionId, Long afterId, int limit) {
+		Holder<List<User>> rv = new Holder<>();
 
-			// read, locking
-			// Long start = System.currentTimeMillis();
-			// logger.info("refreshOrUpdateTokens: select for update ...");
-			Tokens latest = h.createQuery("select id, lms_refresh, lms_token, user from tokens where id = :id for update") //
-					.bind("id", tokens.get_id()) //
-					.map(new TokensMapper()) //
-					.first();
-			// logger.info("refreshOrUpdateTokens: select for update: done: " + (System.currentTimeMillis() - start));
+		db.read(h -> {
+			List<User> users = h.createQuery(SELECT_USER_FULL + "where U.subscription = :subscription and U.id > :after order by U.id limit :limit") //
+					.bind("subscription", subscriptionId) //
+					.bind("after", afterId) //
+					.bind("limit", limit) //
+					.map(new UserMapperFull()) //
+					.list();
 
-			// if the token has changed, return this
-			if (!latest.getLmsToken().equals(tokens.getLmsToken())) {
-				// logger.info("refreshOrUpdateTokens: found new token");
-				rv.value = Optional.of(latest);
-			}
+			rv.value = Optional.ofNullable(users);
+		});
 
-			// if we had the latest, run the job with our holder, then, if we get a new token, update the db
-			else {
-				Holder<String> newToken = new Holder<>();
+		return rv.value;
+	}
 
-				job.accept(newToken);
+	@Override
+	public Optional<Tokens> refreshOrUpdateTokens(Tokens tokens, Consumer<Holder<String>> job) {
+		Long id = tokens.get_id();
 
-				// if we got a new token, update the db
-				if (newToken.value.isPresent()) {
-					// logger.info("refreshOrUpdateTokens: update db");
-					h.createStatement("update tokens set lms_token = :lms_token where id = :id") //
-							.bind("lms_token", newToken.value.get()) //
-							.bind("id", tokens.get_id()) //
-							.executeAndReturnGeneratedKeys(LongColumnMapper.PRIMITIVE) //
-							.first();
+		// refreshed here just now, from the token the caller has?
+		RefreshedTokens refreshed = refreshedTokens.getIfPresent(id);
+		if ((refreshed != null) && refreshed.from.equals(tokens.getLmsToken()))
+			return Optional.of(copy(refreshed.to));
 
-					// return the updated tokens
-					tokens.setLmsToken(newToken.value.get());
-					rv.value = Optional.of(tokens);
-				}
+		// one refresh per user at a time - others wait for it (for a while), and take its tokens
+		CompletableFuture<Optional<Tokens>> mine = new CompletableFuture<>();
+		CompletableFuture<Optional<Tokens>> refreshing = tokensRefreshing.putIfAbsent(id, mine);
+		if (refreshing != null) {
+			try {
+				return refreshing.get(refreshWaitSeconds, TimeUnit.SECONDS).map(this::copy);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return Optional.empty();
+			} catch (ExecutionException | TimeoutException e) {
+				logger.warn("refreshOrUpdateTokens: gave up waiting for refresh: " + id + " " + e.toString());
+				return Optional.empty();
 			}
-		});
+		}
 
-		// logger.info("refreshOrUpdateTokens: transaction done");
-		return rv.value;
+		Optional<Tokens> rv = Optional.empty();
+		try {
+			rv = refreshTokens(tokens, job);
+			rv.ifPresent(t -> refreshedTokens.put(id, new RefreshedTokens(tokens.getLmsToken(), t)));
+		} finally {
+			mine.complete(rv);
+			tokensRefreshing.remove(id, mine);
+		}
+
+		return rv.map(this::copy);
 	}
 
 	@Override
 	public void updateUser(User user) {
-		db.transact(h -> {
-			h.createStatement(
-					"update user set email = :email, name_family = :name_family, name_given = :name_given, lms_id = :lms_id, sis_id = :sis_id where id = :id") //
+		Set<User.Field> changed = user.getChanged();
+		if (changed.isEmpty()) {
+			updatesSkipped.inc();
+			return;
+		}
+
+		int columns = 0;
+		for (User.Field f : changed) {
+			columns |= 1 << f.ordinal();
+		}
+		String sql = UPDATE_USER[columns];
+
+		boolean done = db.transact(h -> {
+			h.createStatement(sql) //
 					.bind("email", user.getEmail()) //
 					.bind("name_family", user.getFamilyName()) //
 					.bind("name_given", user.getGivenName()) //
@@ -385,6 +482,227 @@ public class UserDataJDBIImpl implements UserData {
 					.bind("id", user.get_id()) //
 					.execute();
 		});
+
+		if (!done)
+			return;
+
+		// in a unit of work, the update is written only if the unit of work commits - until then, the user keeps its changes
+		db.afterCommit(() -> {
+			user.clearChanged();
+			updatesWritten.inc();
+			return true;
+		});
+	}
+
+	/**
+	 * @return A copy of the tokens, so callers sharing a refresh don't share the object.
+	 */
+	protected Tokens copy(Tokens tokens) {
+		return new Tokens(tokens.get_id(), tokens.getLmsRefresh(), tokens.getLmsToken(), tokens.getUserId());
+	}
+
+	/**
+	 * Refresh the tokens, unless already refreshed (maybe by another server). The job (a call to the LMS) runs with no db lock, or connection, held - the
+	 * new token is then stored only if the stored token is still the one we refreshed, so if another server refreshed at the same time, its token is kept and
+	 * returned.
+	 * 
+	 * @param tokens
+	 *            The user's tokens, with the token to be refreshed.
+	 * @param job
+	 *            The job to run that gets a new token.
+	 * @return The tokens with the new token, or not if the job fails.
+	 */
+	protected Optional<Tokens> refreshTokens(Tokens tokens, Consumer<Holder<String>> job) {
+
+		// if the token has changed, return this
+		Optional<Tokens> latest = readTokensById(tokens.get_id());
+		if (!latest.isPresent())
+			return Optional.empty();
+		if (!latest.get().getLmsToken().equals(tokens.getLmsToken()))
+			return latest;
+
+		// if we had the latest, run the job with our holder
+		Holder<String> newToken = new Holder<>();
+		job.accept(newToken);
+		if (!newToken.value.isPresent())
+			return Optional.empty();
+
+		// if we got a new token, update the db, if no one else has
+		Holder<Integer> updated = new Holder<>();
+		boolean done = db.transact(h -> {
+			updated.value = Optional.of(h.createStatement("update tokens set lms_token = :lms_token where id = :id and lms_token = :old_token") //
+					.bind("lms_token", newToken.value.get()) //
+					.bind("old_token", tokens.getLmsToken()) //
+					.bind("id", tokens.get_id()) //
+					.execute());
+		});
+		if (!done)
+			return Optional.empty();
+
+		// someone else refreshed first - theirs is what the db has
+		if (updated.value.orElse(0) == 0)
+			return readTokensById(tokens.get_id());
+
+		// return the updated tokens
+		Tokens rv = copy(latest.get());
+		rv.setLmsToken(newToken.value.get());
+		return Optional.of(rv);
+	}
+
+	/**
+	 * Read tokens by the tokens id.
+	 * 
+	 * @param id
+	 *            The tokens id.
+	 * @return The tokens, or not.
+	 */
+	protected Optional<Tokens> readTokensById(Long id) {
+		Holder<Tokens> rv = new Holder<>();
+
+		db.read(h -> {
+			Tokens tokens = h.createQuery("select id, lms_refresh, lms_token, user from tokens where id = :id") //
+					.bind("id", id) //
+					.map(new TokensMapper()) //
+					.first();
+
+			rv.value = Optional.ofNullable(tokens);
+		});
+
+		return rv.value;
+	}
+
+	/**
+	 * Check if the table has the index.
+	 * 
+	 * @param h
+	 *            A handle.
+	 * @param table
+	 *            The table name.
+	 * @param index
+	 *            The index name.
+	 * @return true if the index is there, false if not, or if we can't tell.
+	 */
+	protected boolean hasIndex(Handle h, String table, String index) {
+		try {
+			DatabaseMetaData meta = h.getConnection().getMetaData();
+
+			// MySQL keeps the table name as created, H2 upper cases it
+			for (String name : new String[] { table, table.toUpperCase() }) {
+				try (ResultSet rs = meta.getIndexInfo(null, null, name, false, false)) {
+					while (rs.next()) {
+						if (index.equalsIgnoreCase(rs.getString("INDEX_NAME")))
+							return true;
+					}
+				}
+			}
+		} catch (SQLException e) {
+			logger.warn("hasIndex: " + e.toString());
+		}
+
+		return false;
+	}
+
+	/**
+	 * Check if the db is MySQL.
+	 * 
+	 * @param h
+	 *            A handle.
+	 * @return true if MySQL, false if something else (H2 for testing).
+	 */
+	protected boolean isMysql(Handle h) {
+		if (mysql == null) {
+			try {
+				mysql = "MySQL".equalsIgnoreCase(h.getConnection().getMetaData().getDatabaseProductName());
+			} catch (SQLException e) {
+				logger.warn("isMysql: " + e.toString());
+				return false;
+			}
+		}
+
+		return mysql;
+	}
+
+	/**
+	 * Read the user with no lms id in this subscription, creating one if needed.
+	 * 
+	 * @param subscriptionId
+	 *            The subscription id.
+	 * @return The user, or not if the db failed.
+	 */
+	protected Optional<User> readCreateUserNoLmsId(Long subscriptionId) {
+		Holder<User> rv = new Holder<>();
+
+		String sqlRead = SELECT_USER + "where subscription = :subscription and lms_id is null";
+
+		db.transact(h -> {
+			User user = h.createQuery(sqlRead) //
+					.bind("subscription", subscriptionId) //
+					.map(new UserMapperAll()) //
+					.first();
+
+			// insert if not found
+			if (user == null) {
+				h.createStatement("insert into user (lms_id, subscription) values (null, :subscription)") //
+						.bind("subscription", subscriptionId) //
+						.execute();
+
+				user = h.createQuery(sqlRead) //
+						.bind("subscription", subscriptionId) //
+						.map(new UserMapperAll()) //
+						.first();
+			}
+
+			rv.value = Optional.ofNullable(user);
+		});
+
+		return rv.value;
+	}
+
+	/**
+	 * Insert a user for this subscription and lms id, unless one is already there.
+	 * 
+	 * @param h
+	 *            The handle, in a transaction.
+	 * @param subscriptionId
+	 *            The subscription id.
+	 * @param lmsId
+	 *            The lms id, not null.
+	 * @return The id of the user, inserted or already there.
+	 */
+	protected Long upsertUser(Handle h, Long subscriptionId, String lmsId) {
+		Long id = null;
+
+		// one statement, giving the id either way
+		if (isMysql(h)) {
+			id = h.createStatement(UPSERT_USER) //
+					.bind("lms_id", lmsId) //
+					.bind("subscription", subscriptionId) //
+					.executeAndReturnGeneratedKeys(LongColumnMapper.WRAPPER) //
+					.first();
+		}
+
+		// otherwise attempt to insert the user - let it fail if already there
+		else {
+			try {
+				id = h.createStatement("insert into user (lms_id, subscription) values (:lms_id, :subscription)") //
+						.bind("lms_id", lmsId) //
+						.bind("subscription", subscriptionId) //
+						.executeAndReturnGeneratedKeys(LongColumnMapper.WRAPPER) //
+						.first();
+			} catch (UnableToExecuteStatementException e) {
+			}
+		}
+
+		// if already there (or the driver did not give us the id), read the id
+		if (id == null) {
+			id = h.createQuery("select id from user where subscription = :subscription and lms_id = :lms_id") //
+					.bind("lms_id", lmsId) //
+					.bind("subscription", subscriptionId) //
+					.map(LongColumnMapper.WRAPPER) //
+					.first();
+		}
+
+		return id;
 	}
 
 	/**
@@ -420,6 +738,15 @@ public class UserDataJDBIImpl implements UserData {
 					+ "unique key tokens_u (user)" //
 					+ ")");
 
+			// for reading a subscription's users a page at a time, in id order (the index includes the primary key)
+			if (!hasIndex(h, "user", "user_s")) {
+				try {
+					h.execute("create index user_s on user (subscription)");
+				} catch (RuntimeException e) {
+					logger.warn("createTables: user_s: " + e.toString());
+				}
+			}
+
 			// load initial data
 			try {
 				h.begin();
@@ -18,11 +18,26 @@
 
 package org.etudes.apps.user.impl;
 
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 
 import org.etudes.apps.db.DB.Holder;
@@ -35,42 +50,115 @@ import org.jvnet.hk2.annotations.Service;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
 @Service
 public class UserServiceImpl implements UserService {
 	final static private Logger logger = LoggerFactory.getLogger(UserServiceImpl.class);
 
+	/** Threads for checking passwords - about half the cores, leaving the rest for everything else. */
+	protected static int HASH_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+
+	/** Password checks waiting for a thread, beyond which logins are refused at once. */
+	protected static int HASH_QUEUE = 64;
+
+	/** How long, in seconds, a login waits for its password check. */
+	protected static long HASH_TIMEOUT_SECONDS = 10;
+
+	/** How many users to read at a time, when streaming a subscription's users. */
+	protected static int ROSTER_PAGE_SIZE = 1000;
+
 	/** Data access */
 	protected UserData data = null;
 
+	/** Password checks, and re-encoding, run here - not on the request threads, and with a bounded queue, so a burst of logins can't take them all. */
+	protected final ThreadPoolExecutor hashExecutor;
+
+	/** Count of logins refused because the password check queue was full. */
+	protected final Counter hashRejected;
+
 	/**
 	 * Create the user service
 	 * 
-	 * @param config
-	 *            The configuration
 	 * @param data
 	 *            The UserData object that interfaces with the persisted user data.
 	 */
-	@Inject
 	public UserServiceImpl(UserData data) {
+		this(data, new MetricRegistry());
+	}
+
+	/**
+	 * Create the user service
+	 * 
+	 * @param data
+	 *            The UserData object that interfaces with the persisted user data.
+	 * @param metrics
+	 *            The metric registry, for reporting password check queue statistics.
+	 */
+	@Inject
+	public UserServiceImpl(UserData data, MetricRegistry metrics) {
 		this.data = data;
+
+		AtomicInteger threads = new AtomicInteger();
+		hashExecutor = new ThreadPoolExecutor(HASH_THREADS, HASH_THREADS, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(HASH_QUEUE), r -> {
+			Thread t = new Thread(r, "password-" + threads.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+
+		metrics.register(MetricRegistry.name(UserService.class, "password", "queued"), (Gauge<Integer>) () -> hashExecutor.getQueue().size());
+		metrics.register(MetricRegistry.name(UserService.class, "password", "active"), (Gauge<Integer>) () -> hashExecutor.getActiveCount());
+		hashRejected = metrics.counter(MetricRegistry.name(UserService.class, "password", "rejected"));
+
 		logger.info("UserService:  data = " + this.data);
 	}
 
+	/**
+	 * Stop the password check threads, letting checks already started finish.
+	 */
+	@PreDestroy
+	public void stop() {
+		hashExecutor.shutdown();
+	}
+
 	@Override
 	public Optional<User> getAuthenticatedUser(String email, String password) {
 
 		// start with all users with this login
 		List<Login> logins = data.readLoginsByEmail(email);
+		if (logins.isEmpty())
+			return Optional.empty();
 
-		// if we have any users with this login, pick the first one that also has this password
-		List<Login> authenticated = logins.stream().filter(l -> l.checkPassword(password)).collect(Collectors.toList());
+		// check the password on the password threads
+		Future<Optional<Login>> checked;
+		try {
+			checked = hashExecutor.submit(() -> checkPassword(logins, password));
+		} catch (RejectedExecutionException e) {
+			logger.warn("getAuthenticatedUser: too many logins waiting, refusing: " + email);
+			hashRejected.inc();
+			return Optional.empty();
+		}
 
-		// if we have more than one authenticated, that's not good
-		if (authenticated.size() != 1)
+		Optional<Login> authenticated;
+		try {
+			authenticated = checked.get(HASH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			checked.cancel(true);
+			return Optional.empty();
+		} catch (ExecutionException | TimeoutException e) {
+			logger.warn("getAuthenticatedUser: " + e.toString());
+			checked.cancel(true);
+			return Optional.empty();
+		}
+
+		if (!authenticated.isPresent())
 			return Optional.empty();
 
 		// get and return this user
-		return data.readUser(authenticated.get(0).getUserId());
+		return data.readUser(authenticated.get().getUserId());
 	}
 
 	@Override
@@ -108,6 +196,12 @@ public class UserServiceImpl implements UserService {
 		return rv;
 	}
 
+	@Override
+	public Optional<List<User>> getUsersForSubscription(Long subscriptionId, Long afterId, int limit) {
+
+		return data.readUsersForSubscription(subscriptionId, afterId, limit);
+	}
+
 	@Override
 	public Optional<Tokens> refreshOrUpdateTokens(Tokens tokens, Consumer<Holder<String>> job) {
 		return data.refreshOrUpdateTokens(tokens, job);
@@ -133,6 +227,70 @@ public class UserServiceImpl implements UserService {
 		data.deleteUser(user.get_id());
 	}
 
+	/**
+	 * Find the one login of these with this password, and if its password encoding is old, re-encode and save it.
+	 * 
+	 * @param logins
+	 *            The logins for an email.
+	 * @param password
+	 *            The clear text password.
+	 * @return The login, or not if none, or more than one, has this password.
+	 */
+	protected Optional<Login> checkPassword(List<Login> logins, String password) {
+
+		// if we have any users with this login, pick the first one that also has this password
+		List<Login> authenticated = logins.stream().filter(l -> l.checkPassword(password)).collect(Collectors.toList());
+
+		// if we have more than one authenticated, that's not good
+		if (authenticated.size() != 1)
+			return Optional.empty();
+
+		Login login = authenticated.get(0);
+		if (login.rehashPassword(password)) {
+			data.createOrUpdateLogin(login);
+		}
+
+		return Optional.of(login);
+	}
+
+	@Override
+	public Stream<User> streamUsersForSubscription(Long subscriptionId) {
+		Iterator<User> users = new Iterator<User>() {
+			// not read until first asked for
+			List<User> page = null;
+			int next = 0;
+
+			@Override
+			public boolean hasNext() {
+				if (page == null) {
+					page = read(0L);
+				}
+
+				// a full page may have more after it
+				else if ((next == page.size()) && (page.size() == ROSTER_PAGE_SIZE)) {
+					page = read(page.get(page.size() - 1).get_id());
+					next = 0;
+				}
+				return next < page.size();
+			}
+
+			/** Read the page after this id - a failed read must not look like the end of the users. */
+			List<User> read(Long afterId) {
+				return data.readUsersForSubscription(subscriptionId, afterId, ROSTER_PAGE_SIZE)
+						.orElseThrow(() -> new IllegalStateException("streamUsersForSubscription: read failed: " + subscriptionId + " after: " + afterId));
+			}
+
+			@Override
+			public User next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				return page.get(next++);
+			}
+		};
+
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(users, Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+
 	@Override
 	public void saveLogin(Login login) {
 		data.createOrUpdateLogin(login);
@@ -18,15 +18,9 @@
 
 package org.etudes.apps.user.model;
 
-import static org.apache.commons.codec.binary.Base64.encodeBase64String;
-
-import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.regex.Pattern;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.etudes.apps.user.password.PasswordEncoding;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 
@@ -39,7 +33,6 @@ import lombok.NoArgsConstructor;
 @AllArgsConstructor
 // @JsonIgnoreProperties(ignoreUnknown = true)
 public class Login {
-	final static private Logger logger = LoggerFactory.getLogger(Login.class);
 
 	/** The internal user id */
 	@JsonProperty("id")
@@ -69,7 +62,7 @@ public class Login {
 		if (!strongPassword(password))
 			return false;
 
-		this.password = encodePassword(password);
+		this.password = PasswordEncoding.current().encode(password, userId);
 		return true;
 	}
 
@@ -84,45 +77,36 @@ public class Login {
 		if ((password == null) || (this.password == null))
 			return false;
 
-		String encoded = encodePassword(password);
-
-		// logger.info(password + " : " + encoded);
-		// return true;
+		return PasswordEncoding.of(this.password).matches(password, userId, this.password);
+	}
 
-		boolean matches = encoded.equals(this.password);
-		return matches;
+	/**
+	 * Check if the registered encoded password was made in an older way, and should be encoded again (on the user's next successful login).
+	 * 
+	 * @return true if the password should be encoded again, false if not.
+	 */
+	public boolean needsRehash() {
+		return (this.password != null) && PasswordEncoding.of(this.password).needsRehash(this.password);
 	}
 
 	/**
-	 * Encode the clear text password.
+	 * Encode the password again, the current way, if the registered encoding is old. Unlike changePassword(), the password is not checked for strength - it
+	 * is the password the user already has. Call only after checkPassword() accepts the password.
 	 * 
 	 * @param password
-	 *            The clear text password.
-	 * @return The encoded password, or null if there was a problem.
+	 *            The plain text password, checked.
+	 * @return true if the encoding changed (and the login needs saving), false if not.
 	 */
-	protected String encodePassword(String password) {
-		try {
-			// static and dynamic salt the password
-			String salted = "ETUDES@" + password + "@" + userId.toString();
-			byte[] bytes = salted.getBytes("UTF-8");
-
-			// digest with MD5, repeated a few times
-			MessageDigest md = MessageDigest.getInstance("MD5");
-
-			for (int i = 0; i < 1001; i++) {
-				md.update(bytes);
-				bytes = md.digest();
-			}
-
-			String encoded = encodeBase64String(bytes);
-			return encoded;
-		} catch (NoSuchAlgorithmException e) {
-			logger.warn("encodePassword: " + e.toString());
-		} catch (UnsupportedEncodingException e) {
-			logger.warn("encodePassword: " + e.toString());
-		}
-
-		return null;
+	public boolean rehashPassword(String password) {
+		if ((password == null) || !needsRehash())
+			return false;
+
+		String encoded = PasswordEncoding.current().encode(password, userId);
+		if (encoded == null)
+			return false;
+
+		this.password = encoded;
+		return true;
 	}
 
 	/**
@@ -18,21 +18,34 @@
 
 package org.etudes.apps.user.model;
 
+import java.util.EnumSet;
+import java.util.Objects;
+import java.util.Set;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import lombok.AccessLevel;
-import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
+import lombok.ToString;
 
 @Data
 @NoArgsConstructor
-@AllArgsConstructor
+@ToString(exclude = "changed")
 // @JsonIgnoreProperties(ignoreUnknown = true)
 public class User {
 	// final static private Logger logger = LoggerFactory.getLogger(User.class);
 
+	/**
+	 * The user fields that can be changed, and saved.
+	 */
+	public enum Field {
+		email, familyName, givenName, lmsId, sisId
+	}
+
 	/** The internal user id */
 	@JsonProperty("id")
 	protected Long _id;
@@ -63,6 +76,32 @@ public class User {
 	@Setter(AccessLevel.NONE)
 	protected boolean tokensSet;
 
+	/** The fields set to a new value since the user was read (or last saved). Not part of equals. */
+	@Getter(AccessLevel.NONE)
+	@Setter(AccessLevel.NONE)
+	protected transient EnumSet<Field> changed = EnumSet.noneOf(Field.class);
+
+	/** If changes are tracked - set once the user is known to match the db (read or saved). Until then, all fields count as changed. */
+	@Getter(AccessLevel.NONE)
+	@Setter(AccessLevel.NONE)
+	protected transient boolean tracked = false;
+
+	/**
+	 * Construct with all fields. Changes are not tracked (all fields count as changed) until clearChanged(), as the data layer does on read.
+	 */
+	public User(Long id, String email, String familyName, String givenName, String lmsId, boolean loginSet, String sisId, Long subscriptionId,
+			boolean tokensSet) {
+		this._id = id;
+		this.email = email;
+		this.familyName = familyName;
+		this.givenName = givenName;
+		this.lmsId = lmsId;
+		this.loginSet = loginSet;
+		this.sisId = sisId;
+		this.subscriptionId = subscriptionId;
+		this.tokensSet = tokensSet;
+	}
+
 	/**
 	 * Construct with the non-optional fields.
 	 * 
@@ -91,4 +130,60 @@ public class User {
 			return 0L;
 		}
 	}
+
+	/**
+	 * @return The fields changed since the user was read or last saved - all of them if the user was neither.
+	 */
+	@JsonIgnore
+	public Set<Field> getChanged() {
+		return tracked ? EnumSet.copyOf(changed) : EnumSet.allOf(Field.class);
+	}
+
+	/**
+	 * @return true if any field has changed since the user was read or last saved, or if the user was neither.
+	 */
+	@JsonIgnore
+	public boolean isChanged() {
+		return !tracked || !changed.isEmpty();
+	}
+
+	/**
+	 * Forget the changes, and track changes from here - once read, or saved.
+	 */
+	public void clearChanged() {
+		changed.clear();
+		tracked = true;
+	}
+
+	public void setEmail(String email) {
+		this.email = change(Field.email, this.email, email);
+	}
+
+	public void setFamilyName(String familyName) {
+		this.familyName = change(Field.familyName, this.familyName, familyName);
+	}
+
+	public void setGivenName(String givenName) {
+		this.givenName = change(Field.givenName, this.givenName, givenName);
+	}
+
+	public void setLmsId(String lmsId) {
+		this.lmsId = change(Field.lmsId, this.lmsId, lmsId);
+	}
+
+	public void setSisId(String sisId) {
+		this.sisId = change(Field.sisId, this.sisId, sisId);
+	}
+
+	/**
+	 * Note a field as changed if the new value is different.
+	 * 
+	 * @return The new value.
+	 */
+	protected String change(Field field, String value, String newValue) {
+		if (!Objects.equals(value, newValue)) {
+			changed.add(field);
+		}
+		return newValue;
+	}
 }
@@ -0,0 +1,75 @@
+/**********************************************************************************
+ *
+ * Copyright (c) 2017 Etudes, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.etudes.apps.user.password;
+
+import static org.apache.commons.codec.binary.Base64.encodeBase64String;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The original password encoding: MD5, 1001 rounds, over the password with a static and a user id salt. Read, but no longer written.
+ */
+public class Md5PasswordEncoding implements PasswordEncoding {
+	final static private Logger logger = LoggerFactory.getLogger(Md5PasswordEncoding.class);
+
+	protected final static Md5PasswordEncoding INSTANCE = new Md5PasswordEncoding();
+
+	@Override
+	public String encode(String password, Long userId) {
+		try {
+			// static and dynamic salt the password
+			String salted = "ETUDES@" + password + "@" + userId.toString();
+			byte[] bytes = salted.getBytes(StandardCharsets.UTF_8);
+
+			// digest with MD5, repeated a few times
+			MessageDigest md = MessageDigest.getInstance("MD5");
+
+			for (int i = 0; i < 1001; i++) {
+				md.update(bytes);
+				bytes = md.digest();
+			}
+
+			String encoded = encodeBase64String(bytes);
+			return encoded;
+		} catch (NoSuchAlgorithmException e) {
+			logger.warn("encode: " + e.toString());
+		}
+
+		return null;
+	}
+
+	@Override
+	public boolean matches(String password, Long userId, String encoded) {
+		String check = encode(password, userId);
+		if ((check == null) || (encoded == null))
+			return false;
+
+		return MessageDigest.isEqual(check.getBytes(StandardCharsets.US_ASCII), encoded.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	@Override
+	public boolean needsRehash(String encoded) {
+		return true;
+	}
+}
@@ -0,0 +1,81 @@
+/**********************************************************************************
+ *
+ * Copyright (c) 2017 Etudes, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.etudes.apps.user.password;
+
+/**
+ * A way to encode passwords for storage, and to check a password against an encoding.
+ * 
+ * Encodings say which way they were made, so logins encoded in older ways keep working, and can be re-encoded the current way when the user next logs in.
+ */
+public interface PasswordEncoding {
+
+	/** The encoding for new passwords. */
+	static PasswordEncoding current() {
+		return Pbkdf2PasswordEncoding.CURRENT;
+	}
+
+	/**
+	 * Find the encoding that made this encoded password.
+	 * 
+	 * @param encoded
+	 *            The encoded password.
+	 * @return The encoding that made it.
+	 */
+	static PasswordEncoding of(String encoded) {
+		if ((encoded != null) && encoded.startsWith(Pbkdf2PasswordEncoding.PREFIX)) {
+			return Pbkdf2PasswordEncoding.CURRENT;
+		}
+
+		// from before encodings were marked
+		return Md5PasswordEncoding.INSTANCE;
+	}
+
+	/**
+	 * Encode a password.
+	 * 
+	 * @param password
+	 *            The clear text password.
+	 * @param userId
+	 *            The id of the user whose password it is.
+	 * @return The encoded password, or null if there was a problem.
+	 */
+	String encode(String password, Long userId);
+
+	/**
+	 * Check a password.
+	 * 
+	 * @param password
+	 *            The clear text password.
+	 * @param userId
+	 *            The id of the user whose password it is.
+	 * @param encoded
+	 *            The encoded password, made by this encoding.
+	 * @return true if the password matches, false if not.
+	 */
+	boolean matches(String password, Long userId, String encoded);
+
+	/**
+	 * Check if an encoded password should be re-encoded - if it was made by another encoding, or by this one with weaker settings.
+	 * 
+	 * @param encoded
+	 *            The encoded password.
+	 * @return true if the password should be encoded again, false if not.
+	 */
+	boolean needsRehash(String encoded);
+}
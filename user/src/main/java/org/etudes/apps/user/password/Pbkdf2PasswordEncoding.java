@@ -0,0 +1,133 @@
+/**********************************************************************************
+ *
+ * Copyright (c) 2017 Etudes, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.etudes.apps.user.password;
+
+import static org.apache.commons.codec.binary.Base64.decodeBase64;
+import static org.apache.commons.codec.binary.Base64.encodeBase64String;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * PBKDF2 with HMAC-SHA256 and a random salt per password. Encoded as "$pbkdf2-sha256$iterations$salt$hash", salt and hash in Base64, so the iterations can
+ * be raised later, with older encodings still read (and re-encoded on login).
+ */
+public class Pbkdf2PasswordEncoding implements PasswordEncoding {
+	final static private Logger logger = LoggerFactory.getLogger(Pbkdf2PasswordEncoding.class);
+
+	protected final static String ALGORITHM = "PBKDF2WithHmacSHA256";
+
+	protected final static String PREFIX = "$pbkdf2-sha256$";
+
+	/** Iterations for new encodings. */
+	protected final static int ITERATIONS = 20000;
+
+	protected final static int SALT_BYTES = 16;
+
+	protected final static int HASH_BYTES = 32;
+
+	protected final static Pbkdf2PasswordEncoding CURRENT = new Pbkdf2PasswordEncoding(ITERATIONS);
+
+	protected final static SecureRandom random = new SecureRandom();
+
+	/** The iterations this encoding uses for new encodings. */
+	protected final int iterations;
+
+	public Pbkdf2PasswordEncoding(int iterations) {
+		this.iterations = iterations;
+	}
+
+	@Override
+	public String encode(String password, Long userId) {
+		byte[] salt = new byte[SALT_BYTES];
+		random.nextBytes(salt);
+
+		byte[] hash = hash(password, salt, iterations);
+		if (hash == null)
+			return null;
+
+		return PREFIX + iterations + "$" + encodeBase64String(salt) + "$" + encodeBase64String(hash);
+	}
+
+	@Override
+	public boolean matches(String password, Long userId, String encoded) {
+		String[] parts = parse(encoded);
+		if (parts == null)
+			return false;
+
+		try {
+			byte[] expected = decodeBase64(parts[2]);
+			byte[] hash = hash(password, decodeBase64(parts[1]), Integer.parseInt(parts[0]));
+			return (hash != null) && MessageDigest.isEqual(hash, expected);
+		} catch (NumberFormatException e) {
+			logger.warn("matches: bad iterations: " + parts[0]);
+			return false;
+		}
+	}
+
+	@Override
+	public boolean needsRehash(String encoded) {
+		String[] parts = parse(encoded);
+		if (parts == null)
+			return true;
+
+		try {
+			return Integer.parseInt(parts[0]) < iterations;
+		} catch (NumberFormatException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Compute the hash.
+	 * 
+	 * @return The hash, or null if there was a problem.
+	 */
+	protected byte[] hash(String password, byte[] salt, int iterations) {
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BYTES * 8);
+		try {
+			return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+		} catch (GeneralSecurityException e) {
+			logger.warn("hash: " + e.toString());
+			return null;
+		} finally {
+			spec.clearPassword();
+		}
+	}
+
+	/**
+	 * Split an encoding into iterations, salt and hash.
+	 * 
+	 * @return The parts, or null if not a PBKDF2 encoding.
+	 */
+	protected String[] parse(String encoded) {
+		if ((encoded == null) || !encoded.startsWith(PREFIX))
+			return null;
+
+		String[] parts = encoded.substring(PREFIX.length()).split("\\$");
+		return (parts.length == 3) ? parts : null;
+	}
+}
@@ -20,20 +20,30 @@ package org.etudes.apps.user;
 
 import org.assertj.core.api.Assertions;
 import org.etudes.apps.user.model.Login;
+import org.etudes.apps.user.password.Md5PasswordEncoding;
+import org.etudes.apps.user.password.Pbkdf2PasswordEncoding;
 import org.junit.Test;
 
 public class LoginTest {
 
 	@Test
 	public void testPasswordEncoding() {
-		Login login = new Login(null, "email", null, 1l);
-		login.changePassword("Pass2Word");
-
-		String encoded = login.getPassword();
-		Assertions.assertThat(encoded).isEqualTo("rEFrX5bUuAkzQQ2ULinR/Q==");
+		// the original (MD5) encoding is still read
+		Login login = new Login(null, "email", "rEFrX5bUuAkzQQ2ULinR/Q==", 1l);
+		Assertions.assertThat(new Md5PasswordEncoding().encode("Pass2Word", 1L)).isEqualTo("rEFrX5bUuAkzQQ2ULinR/Q==");
 
 		boolean valid = login.checkPassword("Pass2Word");
 		Assertions.assertThat(valid).isTrue();
+		Assertions.assertThat(login.checkPassword("Pass3Word")).isFalse();
+
+		// and re-encoded the current way
+		Assertions.assertThat(login.needsRehash()).isTrue();
+		Assertions.assertThat(login.rehashPassword("Pass2Word")).isTrue();
+		Assertions.assertThat(login.getPassword()).startsWith("$pbkdf2-sha256$");
+		Assertions.assertThat(login.needsRehash()).isFalse();
+		Assertions.assertThat(login.rehashPassword("Pass2Word")).isFalse();
+		Assertions.assertThat(login.checkPassword("Pass2Word")).isTrue();
+		Assertions.assertThat(login.checkPassword("Pass3Word")).isFalse();
 
 		// to get any encoding
 		Long idToTest = 1L;
@@ -46,5 +56,16 @@ public class LoginTest {
 		System.out.println("id: " + l2.get_id() + "  clear: " + pwToTest + "  encoded: " + l2.getPassword());
 
 		Assertions.assertThat(l2.getPassword()).isNotEqualTo(login.getPassword());
+		Assertions.assertThat(l2.checkPassword(pwToTest)).isTrue();
+
+		// the same password encodes differently each time (random salt)
+		Login l3 = new Login(null, "email", null, idToTest);
+		l3.changePassword(pwToTest);
+		Assertions.assertThat(l3.getPassword()).isNotEqualTo(l2.getPassword());
+
+		// encodings with fewer iterations than now are re-encoded
+		Login l4 = new Login(null, "email", new Pbkdf2PasswordEncoding(1000).encode(pwToTest, idToTest), idToTest);
+		Assertions.assertThat(l4.checkPassword(pwToTest)).isTrue();
+		Assertions.assertThat(l4.needsRehash()).isTrue();
 	}
 }
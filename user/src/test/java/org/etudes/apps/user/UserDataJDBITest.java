@@ -18,8 +18,12 @@
 
 package org.etudes.apps.user;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.assertj.core.api.Assertions;
 import org.etudes.apps.db.DB;
@@ -47,6 +51,8 @@ public class UserDataJDBITest {
 	// create the DBI to test
 	private static UserData data = null;
 
+	private DB db = null;
+
 	@Before
 	public void setUp() throws Exception {
 
@@ -58,7 +64,7 @@ public class UserDataJDBITest {
 
 		Environment environment = new Environment("test-env", Jackson.newObjectMapper(), null, new MetricRegistry(), null);
 
-		DB db = new DB(new DBIFactory().build(environment, database, "db"), true);
+		db = new DB(new DBIFactory().build(environment, database, "db"), true);
 
 		data = new UserDataJDBIImpl(db);
 	}
@@ -68,7 +74,7 @@ public class UserDataJDBITest {
 	 */
 	@After
 	public void tearDown() {
-
+		db.stop();
 	}
 
 	/**
@@ -88,6 +94,19 @@ public class UserDataJDBITest {
 		// verify we can find our first by values
 		Optional<User> found = data.readCreateUser(2L, "lms1");
 		Assertions.assertThat(found.isPresent()).isTrue();
+		Assertions.assertThat(found).isEqualTo(u);
+		Assertions.assertThat(u2.get().get_id()).isNotEqualTo(u.get().get_id());
+
+		// the same lms id in another subscription is another user - and finding the first wrote nothing, so took no id
+		Optional<User> other = data.readCreateUser(3L, "lms1");
+		Assertions.assertThat(other.get().get_id()).isNotEqualTo(u.get().get_id());
+		Assertions.assertThat(other.get().get_id()).isEqualTo(u2.get().get_id() + 1);
+		Assertions.assertThat(other.get().getSubscriptionId()).isEqualTo(3L);
+
+		// a user without an lms id
+		Optional<User> noLms = data.readCreateUser(3L, null);
+		Assertions.assertThat(noLms.isPresent()).isTrue();
+		Assertions.assertThat(data.readCreateUser(3L, null)).isEqualTo(noLms);
 
 		// verify we can find our first by id
 		maybe = data.readUser(u.get().get_id());
@@ -103,6 +122,46 @@ public class UserDataJDBITest {
 		// verify we can find the user, and the found user matches in all fields
 		maybe = data.readUser(u.get().get_id());
 		Assertions.assertThat(maybe).isEqualTo(u);
+		Assertions.assertThat(u.get().isChanged()).isFalse();
+
+		// only changed fields are written - changes to different fields of two copies both stick
+		User copy1 = data.readUser(u.get().get_id()).get();
+		User copy2 = data.readUser(u.get().get_id()).get();
+		copy1.setEmail("other@address.com");
+		copy2.setGivenName("Jan");
+		copy2.setFamilyName("Smith");
+		Assertions.assertThat(copy2.getChanged()).containsOnly(User.Field.givenName);
+		data.updateUser(copy1);
+		data.updateUser(copy2);
+		maybe = data.readUser(u.get().get_id());
+		Assertions.assertThat(maybe.get().getEmail()).isEqualTo("other@address.com");
+		Assertions.assertThat(maybe.get().getGivenName()).isEqualTo("Jan");
+
+		// a user not read from the db has all its fields written - even one cleared to null it already had
+		User built = new User(u.get().get_id(), "built@address.com", null, "Jan", u.get().getLmsId(), false, "214365879", u.get().getSubscriptionId(), false);
+		built.setFamilyName(null);
+		Assertions.assertThat(built.isChanged()).isTrue();
+		data.updateUser(built);
+		Assertions.assertThat(built.isChanged()).isFalse();
+		maybe = data.readUser(u.get().get_id());
+		Assertions.assertThat(maybe.get().getEmail()).isEqualTo("built@address.com");
+		Assertions.assertThat(maybe.get().getFamilyName()).isNull();
+		u = maybe;
+
+		// in a unit of work that rolls back, the user keeps its changes; in one that commits, they are cleared
+		User inUnit = u.get();
+		inUnit.setEmail("rolledback@address.com");
+		Assertions.assertThat(db.unitOfWork(() -> {
+			data.updateUser(inUnit);
+			Assertions.assertThat(inUnit.isChanged()).isTrue();
+			throw new IllegalStateException("rollback");
+		})).isFalse();
+		Assertions.assertThat(inUnit.getChanged()).containsOnly(User.Field.email);
+		Assertions.assertThat(data.readUser(inUnit.get_id()).get().getEmail()).isEqualTo("built@address.com");
+		inUnit.setEmail("committed@address.com");
+		Assertions.assertThat(db.unitOfWork(() -> data.updateUser(inUnit))).isTrue();
+		Assertions.assertThat(inUnit.isChanged()).isFalse();
+		Assertions.assertThat(data.readUser(inUnit.get_id()).get().getEmail()).isEqualTo("committed@address.com");
 
 		// add tokens
 		Tokens t = new Tokens(null, "refresh", "token", u.get().get_id());
@@ -168,4 +227,121 @@ public class UserDataJDBITest {
 		// maybe = data.readUser(u2.get().get_id());
 		// Assertions.assertThat(maybe).isEqualTo(Optional.empty());
 	}
+
+	/**
+	 * Test token refresh - one refresh at a time per user, shared by all who ask.
+	 */
+	@Test
+	public void testRefreshTokens() {
+		User u = data.readCreateUser(5L, "lms-tokens").get();
+		Tokens t = new Tokens(null, "refresh", "token", u.get_id());
+		data.createOrUpdateTokens(t);
+
+		// many at once with the old token - the LMS is asked once
+		AtomicInteger asked = new AtomicInteger();
+		List<CompletableFuture<Optional<Tokens>>> refreshes = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			refreshes.add(CompletableFuture.supplyAsync(() -> data.refreshOrUpdateTokens(new Tokens(t.get_id(), "refresh", "token", u.get_id()), h -> {
+				asked.incrementAndGet();
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+				}
+				h.value = Optional.of("token-2");
+			})));
+		}
+		refreshes.forEach(r -> Assertions.assertThat(r.join().get().getLmsToken()).isEqualTo("token-2"));
+		Assertions.assertThat(asked.get()).isEqualTo(1);
+		Assertions.assertThat(data.readTokens(u.get_id()).get().getLmsToken()).isEqualTo("token-2");
+
+		// later, with the old token, get the new one without asking
+		Optional<Tokens> refreshed = data.refreshOrUpdateTokens(new Tokens(t.get_id(), "refresh", "token", u.get_id()), h -> {
+			asked.incrementAndGet();
+		});
+		Assertions.assertThat(refreshed.get().getLmsToken()).isEqualTo("token-2");
+		Assertions.assertThat(asked.get()).isEqualTo(1);
+
+		// another server refreshes while we ask the LMS - its token is kept
+		refreshed = data.refreshOrUpdateTokens(new Tokens(t.get_id(), "refresh", "token-2", u.get_id()), h -> {
+			asked.incrementAndGet();
+			data.createOrUpdateTokens(new Tokens(t.get_id(), "refresh", "token-other", u.get_id()));
+			h.value = Optional.of("token-3");
+		});
+		Assertions.assertThat(refreshed.get().getLmsToken()).isEqualTo("token-other");
+		Assertions.assertThat(data.readTokens(u.get_id()).get().getLmsToken()).isEqualTo("token-other");
+
+		// a failed refresh
+		refreshed = data.refreshOrUpdateTokens(new Tokens(t.get_id(), "refresh", "token-other", u.get_id()), h -> {
+		});
+		Assertions.assertThat(refreshed.isPresent()).isFalse();
+	}
+
+	/**
+	 * Test that a caller waiting on another's refresh gives up, without tokens, if the refresh takes too long.
+	 */
+	@Test
+	public void testRefreshTokensWait() throws Exception {
+		UserData shortWait = new UserDataJDBIImpl(db) {
+			{
+				refreshWaitSeconds = 1;
+			}
+		};
+
+		User u = shortWait.readCreateUser(6L, "lms-tokens-wait").get();
+		Tokens t = new Tokens(null, "refresh", "token", u.get_id());
+		shortWait.createOrUpdateTokens(t);
+
+		// a refresh stuck asking the LMS
+		CountDownLatch asking = new CountDownLatch(1);
+		CountDownLatch answer = new CountDownLatch(1);
+		CompletableFuture<Optional<Tokens>> stuck = CompletableFuture
+				.supplyAsync(() -> shortWait.refreshOrUpdateTokens(new Tokens(t.get_id(), "refresh", "token", u.get_id()), h -> {
+					asking.countDown();
+					try {
+						answer.await();
+					} catch (InterruptedException e) {
+					}
+					h.value = Optional.of("token-2");
+				}));
+		asking.await();
+
+		// another waits for it only so long
+		long start = System.currentTimeMillis();
+		Optional<Tokens> waited = shortWait.refreshOrUpdateTokens(new Tokens(t.get_id(), "refresh", "token", u.get_id()), h -> {
+			Assertions.fail("refreshed twice");
+		});
+		Assertions.assertThat(waited.isPresent()).isFalse();
+		Assertions.assertThat(System.currentTimeMillis() - start).isLessThan(5000);
+
+		answer.countDown();
+		Assertions.assertThat(stuck.get().get().getLmsToken()).isEqualTo("token-2");
+	}
+
+	/**
+	 * Test reading a subscription's users a page at a time.
+	 */
+	@Test
+	public void testUsersForSubscriptionPaged() {
+		List<User> created = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			created.add(data.readCreateUser(7L, "lms-page-" + i).get());
+		}
+		data.readCreateUser(8L, "lms-page-other");
+
+		List<User> read = new ArrayList<>();
+		Long after = 0L;
+		List<User> page;
+		do {
+			page = data.readUsersForSubscription(7L, after, 2).get();
+			Assertions.assertThat(page.size()).isLessThanOrEqualTo(2);
+			read.addAll(page);
+			if (!page.isEmpty())
+				after = page.get(page.size() - 1).get_id();
+		} while (page.size() == 2);
+
+		Assertions.assertThat(read).hasSize(5);
+		Assertions.assertThat(read).isSortedAccordingTo((a, b) -> a.get_id().compareTo(b.get_id()));
+		Assertions.assertThat(read).containsExactlyInAnyOrder(created.toArray(new User[0]));
+		Assertions.assertThat(data.readUsersForSubscription(7L)).containsExactlyInAnyOrder(read.toArray(new User[0]));
+	}
 }
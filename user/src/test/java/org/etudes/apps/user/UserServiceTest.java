@@ -21,6 +21,8 @@ package org.etudes.apps.user;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.assertj.core.api.Assertions;
 import org.etudes.apps.user.UserService;
@@ -29,6 +31,7 @@ import org.etudes.apps.user.impl.UserServiceImpl;
 import org.etudes.apps.user.model.Login;
 import org.etudes.apps.user.model.User;
 import org.junit.After;
+import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
@@ -84,6 +87,14 @@ public class UserServiceTest {
 		Mockito.reset(userData);
 	}
 
+	/**
+	 * Stop the service's password threads when done.
+	 */
+	@AfterClass
+	public static void stop() {
+		((UserServiceImpl) userService).stop();
+	}
+
 	@Test
 	public void testFetch() {
 		Assertions.assertThat(userService.getUser(1L)).isEqualTo(Optional.of(USER_1));
@@ -101,4 +112,63 @@ public class UserServiceTest {
 		Optional<User> u = userService.getAuthenticatedUser("login@client.org", "Pass4word");
 		Assertions.assertThat(u).isEqualTo(Optional.of(USER_4));
 	}
+
+	@Test
+	public void testLoginRehash() {
+		// a login with the original encoding of "Pass2Word"
+		Login legacy = new Login(2L, "legacy@client.org", "rEFrX5bUuAkzQQ2ULinR/Q==", 1L);
+		List<Login> loginList = new ArrayList<>();
+		loginList.add(legacy);
+		Mockito.when(userData.readLoginsByEmail("legacy@client.org")).thenReturn(loginList);
+
+		// a wrong password does not re-encode
+		Assertions.assertThat(userService.getAuthenticatedUser("legacy@client.org", "Pass3Word")).isEqualTo(Optional.empty());
+		Mockito.verify(userData, Mockito.never()).createOrUpdateLogin(Mockito.any());
+
+		// the right one authenticates, and is re-encoded and saved
+		Optional<User> u = userService.getAuthenticatedUser("legacy@client.org", "Pass2Word");
+		Assertions.assertThat(u).isEqualTo(Optional.of(USER_1));
+		Assertions.assertThat(legacy.getPassword()).startsWith("$pbkdf2-sha256$");
+		Mockito.verify(userData).createOrUpdateLogin(legacy);
+
+		// and still authenticates
+		Assertions.assertThat(userService.getAuthenticatedUser("legacy@client.org", "Pass2Word")).isEqualTo(Optional.of(USER_1));
+		Mockito.verify(userData, Mockito.times(1)).createOrUpdateLogin(legacy);
+	}
+
+	@Test
+	public void testStreamUsersForSubscription() {
+		// 2500 users, read by the service a page (of 1000) at a time
+		List<User> all = new ArrayList<>();
+		for (long id = 1; id <= 2500; id++) {
+			all.add(new User(id, "lms-" + id, 20L));
+		}
+		Mockito.when(userData.readUsersForSubscription(Mockito.eq(20L), Mockito.anyLong(), Mockito.anyInt())).thenAnswer(i -> {
+			long after = i.getArgument(1);
+			int limit = i.getArgument(2);
+			return Optional.of(all.stream().filter(u -> u.get_id() > after).limit(limit).collect(Collectors.toList()));
+		});
+
+		Assertions.assertThat(userService.streamUsersForSubscription(20L).collect(Collectors.toList())).isEqualTo(all);
+		Mockito.verify(userData, Mockito.times(3)).readUsersForSubscription(Mockito.eq(20L), Mockito.anyLong(), Mockito.anyInt());
+
+		// only the pages needed are read, and none until the stream is consumed
+		Mockito.clearInvocations(userData);
+		Stream<User> stream = userService.streamUsersForSubscription(20L);
+		Mockito.verify(userData, Mockito.never()).readUsersForSubscription(Mockito.eq(20L), Mockito.anyLong(), Mockito.anyInt());
+		Assertions.assertThat(stream.limit(10).count()).isEqualTo(10);
+		Mockito.verify(userData, Mockito.times(1)).readUsersForSubscription(Mockito.eq(20L), Mockito.anyLong(), Mockito.anyInt());
+
+		// an empty subscription
+		Mockito.when(userData.readUsersForSubscription(Mockito.eq(21L), Mockito.anyLong(), Mockito.anyInt())).thenReturn(Optional.of(new ArrayList<>()));
+		Assertions.assertThat(userService.streamUsersForSubscription(21L).count()).isEqualTo(0);
+
+		// a page that can't be read fails the stream, rather than ending it
+		Mockito.when(userData.readUsersForSubscription(Mockito.eq(22L), Mockito.anyLong(), Mockito.anyInt())).thenAnswer(i -> {
+			long after = i.getArgument(1);
+			return (after == 0L) ? Optional.of(all.subList(0, 1000)) : Optional.empty();
+		});
+		Assertions.assertThatThrownBy(() -> userService.streamUsersForSubscription(22L).count()).isInstanceOf(IllegalStateException.class);
+		Assertions.assertThat(userService.streamUsersForSubscription(22L).limit(1000).count()).isEqualTo(1000);
+	}
 }